@@ -16,3 +16,136 @@
 -- If not, see http://www.gnu.org/licenses/.
 --
 
+
+-- Monthly usage rollups, increased by TigSocks5UpdateTransferUsed (or once per batch of updates) by number of bytes
+-- transferred since previous update, so used transfer is read without summing connections of whole month. Month is
+-- stored as yyyymm.
+-- Rollups of current month are filled from existing connections during upgrade, if they do not exist yet.
+
+-- QUERY START:
+CREATE procedure TigSocks5CreateTransferUsedTables()
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	EXTERNAL NAME 'tigase.socks5.repository.derby.StoredProcedures.tigSocks5CreateTransferUsedTables';
+-- QUERY END:
+
+-- QUERY START:
+call TigSocks5CreateTransferUsedTables();
+-- QUERY END:
+
+-- QUERY START:
+insert into tig_socks5_used_user ("month", uid, transferred_bytes)
+	select YEAR(CURRENT_DATE) * 100 + MONTH(CURRENT_DATE), c.uid, sum(c.transferred_bytes) from tig_socks5_connections c
+		where MONTH(c.transfer_timestamp) = MONTH(CURRENT_DATE) and YEAR(c.transfer_timestamp) = YEAR(CURRENT_DATE)
+			and not exists (select 1 from tig_socks5_used_user r
+				where r."month" = YEAR(CURRENT_DATE) * 100 + MONTH(CURRENT_DATE) and r.uid = c.uid)
+		group by c.uid;
+-- QUERY END:
+
+-- QUERY START:
+insert into tig_socks5_used_domain ("month", "domain", transferred_bytes)
+	select YEAR(CURRENT_DATE) * 100 + MONTH(CURRENT_DATE), u."domain", sum(c.transferred_bytes)
+		from tig_socks5_connections c inner join tig_socks5_users u on u.uid = c.uid
+		where MONTH(c.transfer_timestamp) = MONTH(CURRENT_DATE) and YEAR(c.transfer_timestamp) = YEAR(CURRENT_DATE)
+			and not exists (select 1 from tig_socks5_used_domain r
+				where r."month" = YEAR(CURRENT_DATE) * 100 + MONTH(CURRENT_DATE) and r."domain" = u."domain")
+		group by u."domain";
+-- QUERY END:
+
+-- QUERY START:
+insert into tig_socks5_used_instance ("month", instance, transferred_bytes)
+	select YEAR(CURRENT_DATE) * 100 + MONTH(CURRENT_DATE), c.instance, sum(c.transferred_bytes) from tig_socks5_connections c
+		where MONTH(c.transfer_timestamp) = MONTH(CURRENT_DATE) and YEAR(c.transfer_timestamp) = YEAR(CURRENT_DATE)
+			and not exists (select 1 from tig_socks5_used_instance r
+				where r."month" = YEAR(CURRENT_DATE) * 100 + MONTH(CURRENT_DATE) and r.instance = c.instance)
+		group by c.instance;
+-- QUERY END:
+
+-- QUERY START:
+insert into tig_socks5_used_general ("month", transferred_bytes)
+	select YEAR(CURRENT_DATE) * 100 + MONTH(CURRENT_DATE), coalesce((select sum(transferred_bytes) from tig_socks5_connections
+		where MONTH(transfer_timestamp) = MONTH(CURRENT_DATE) and YEAR(transfer_timestamp) = YEAR(CURRENT_DATE)), 0)
+		from sysibm.sysdummy1
+		where not exists (select 1 from tig_socks5_used_general r
+			where r."month" = YEAR(CURRENT_DATE) * 100 + MONTH(CURRENT_DATE));
+-- QUERY END:
+
+-- Procedures below are used by batches of updates, which set transferred bytes of connections and then add
+-- increases of all connections of batch to each rollup once, in the same order on all nodes.
+
+-- QUERY START:
+CREATE procedure TigSocks5SetTransferUsed(cid bigint, transferredBytes bigint)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	EXTERNAL NAME 'tigase.socks5.repository.derby.StoredProcedures.tigSocks5SetTransferUsed';
+-- QUERY END:
+
+-- QUERY START:
+CREATE procedure TigSocks5AddTransferUsedUser(userId varchar(2049), delta bigint)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	EXTERNAL NAME 'tigase.socks5.repository.derby.StoredProcedures.tigSocks5AddTransferUsedUser';
+-- QUERY END:
+
+-- QUERY START:
+CREATE procedure TigSocks5AddTransferUsedDomain("domain" varchar(2049), delta bigint)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	EXTERNAL NAME 'tigase.socks5.repository.derby.StoredProcedures.tigSocks5AddTransferUsedDomain';
+-- QUERY END:
+
+-- QUERY START:
+CREATE procedure TigSocks5AddTransferUsedInstance(instance varchar(128), delta bigint)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	EXTERNAL NAME 'tigase.socks5.repository.derby.StoredProcedures.tigSocks5AddTransferUsedInstance';
+-- QUERY END:
+
+-- QUERY START:
+CREATE procedure TigSocks5AddTransferUsedGeneral(delta bigint)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	EXTERNAL NAME 'tigase.socks5.repository.derby.StoredProcedures.tigSocks5AddTransferUsedGeneral';
+-- QUERY END:
+
+-- Retention of connections: connections of months older than retained months are folded into monthly rollups
+-- (if rollups of their month do not exist yet) and removed. Both procedures may be called repeatedly.
+
+-- QUERY START:
+CREATE procedure TigSocks5CreateTransferTimestampIndex()
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	EXTERNAL NAME 'tigase.socks5.repository.derby.StoredProcedures.tigSocks5CreateTransferTimestampIndex';
+-- QUERY END:
+
+-- QUERY START:
+call TigSocks5CreateTransferTimestampIndex();
+-- QUERY END:
+
+-- QUERY START:
+CREATE procedure TigSocks5FoldTransferUsed(months int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	EXTERNAL NAME 'tigase.socks5.repository.derby.StoredProcedures.tigSocks5FoldTransferUsed';
+-- QUERY END:
+
+-- QUERY START:
+CREATE procedure TigSocks5RemoveTransferUsed(months int, maxRows int)
+	PARAMETER STYLE JAVA
+	LANGUAGE JAVA
+	MODIFIES SQL DATA
+	DYNAMIC RESULT SETS 1
+	EXTERNAL NAME 'tigase.socks5.repository.derby.StoredProcedures.tigSocks5RemoveTransferUsed';
+-- QUERY END:
+
+-- QUERY START:
+call TigSetComponentVersion('socks5', '2.1.0');
+-- QUERY END:
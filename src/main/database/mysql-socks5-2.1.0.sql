@@ -16,3 +16,339 @@
 -- If not, see http://www.gnu.org/licenses/.
 --
 
+
+-- Monthly usage rollups, increased by TigSocks5UpdateTransferUsed (or once per batch of updates) by number of bytes
+-- transferred since previous update, so used transfer is read without summing connections of whole month. Month is
+-- stored as yyyymm.
+-- Rollups of current month are filled from existing connections during upgrade, if they do not exist yet.
+
+-- QUERY START:
+create table if not exists tig_socks5_used_user (
+	`month` int NOT NULL,
+	uid bigint unsigned NOT NULL,
+	transferred_bytes bigint NOT NULL default 0,
+
+	primary key (`month`, uid)
+)
+ENGINE=InnoDB default character set utf8 ROW_FORMAT=DYNAMIC;
+-- QUERY END:
+
+-- QUERY START:
+create table if not exists tig_socks5_used_domain (
+	`month` int NOT NULL,
+	-- sha1 hash of domain
+	sha1_domain char(128) NOT NULL,
+	transferred_bytes bigint NOT NULL default 0,
+
+	primary key (`month`, sha1_domain)
+)
+ENGINE=InnoDB default character set utf8 ROW_FORMAT=DYNAMIC;
+-- QUERY END:
+
+-- QUERY START:
+create table if not exists tig_socks5_used_instance (
+	`month` int NOT NULL,
+	instance varchar(128) NOT NULL,
+	transferred_bytes bigint NOT NULL default 0,
+
+	primary key (`month`, instance)
+)
+ENGINE=InnoDB default character set utf8 ROW_FORMAT=DYNAMIC;
+-- QUERY END:
+
+-- QUERY START:
+create table if not exists tig_socks5_used_general (
+	`month` int NOT NULL,
+	transferred_bytes bigint NOT NULL default 0,
+
+	primary key (`month`)
+)
+ENGINE=InnoDB default character set utf8 ROW_FORMAT=DYNAMIC;
+-- QUERY END:
+
+-- QUERY START:
+insert ignore into tig_socks5_used_user (`month`, uid, transferred_bytes)
+	select EXTRACT(YEAR_MONTH FROM now()), uid, sum(transferred_bytes) from tig_socks5_connections
+		where transfer_timestamp >= DATE_FORMAT(now(), '%Y-%m-01')
+		group by uid;
+-- QUERY END:
+
+-- QUERY START:
+insert ignore into tig_socks5_used_domain (`month`, sha1_domain, transferred_bytes)
+	select EXTRACT(YEAR_MONTH FROM now()), u.sha1_domain, sum(c.transferred_bytes)
+		from tig_socks5_connections c inner join tig_socks5_users u on u.uid = c.uid
+		where c.transfer_timestamp >= DATE_FORMAT(now(), '%Y-%m-01')
+		group by u.sha1_domain;
+-- QUERY END:
+
+-- QUERY START:
+insert ignore into tig_socks5_used_instance (`month`, instance, transferred_bytes)
+	select EXTRACT(YEAR_MONTH FROM now()), instance, sum(transferred_bytes) from tig_socks5_connections
+		where transfer_timestamp >= DATE_FORMAT(now(), '%Y-%m-01')
+		group by instance;
+-- QUERY END:
+
+-- QUERY START:
+insert ignore into tig_socks5_used_general (`month`, transferred_bytes)
+	select EXTRACT(YEAR_MONTH FROM now()), coalesce(sum(transferred_bytes), 0) from tig_socks5_connections
+		where transfer_timestamp >= DATE_FORMAT(now(), '%Y-%m-01');
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigSocks5TransferUsedGeneral;
+-- QUERY END:
+-- QUERY START:
+drop procedure if exists TigSocks5TransferUsedInstance;
+-- QUERY END:
+-- QUERY START:
+drop procedure if exists TigSocks5TransferUsedDomain;
+-- QUERY END:
+-- QUERY START:
+drop procedure if exists TigSocks5TransferUsedUser;
+-- QUERY END:
+-- QUERY START:
+drop procedure if exists TigSocks5UpdateTransferUsed;
+-- QUERY END:
+-- QUERY START:
+drop procedure if exists TigSocks5SetTransferUsed;
+-- QUERY END:
+-- QUERY START:
+drop procedure if exists TigSocks5AddTransferUsedUser;
+-- QUERY END:
+-- QUERY START:
+drop procedure if exists TigSocks5AddTransferUsedDomain;
+-- QUERY END:
+-- QUERY START:
+drop procedure if exists TigSocks5AddTransferUsedInstance;
+-- QUERY END:
+-- QUERY START:
+drop procedure if exists TigSocks5AddTransferUsedGeneral;
+-- QUERY END:
+
+delimiter //
+
+-- QUERY START:
+create procedure TigSocks5TransferUsedGeneral()
+begin
+	select transferred_bytes from tig_socks5_used_general
+		where `month` = EXTRACT(YEAR_MONTH FROM now());
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigSocks5TransferUsedInstance(_instance varchar(128) CHARSET utf8)
+begin
+	select transferred_bytes from tig_socks5_used_instance
+		where `month` = EXTRACT(YEAR_MONTH FROM now()) and instance = _instance;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigSocks5TransferUsedDomain(_domain varchar(2049) CHARSET utf8)
+begin
+	select transferred_bytes from tig_socks5_used_domain
+		where `month` = EXTRACT(YEAR_MONTH FROM now()) and sha1_domain = sha1(lower(_domain));
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigSocks5TransferUsedUser(_uid bigint unsigned)
+begin
+	select transferred_bytes from tig_socks5_used_user
+		where `month` = EXTRACT(YEAR_MONTH FROM now()) and uid = _uid;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigSocks5UpdateTransferUsed(_conn_id bigint unsigned, _transferred_bytes bigint unsigned)
+begin
+	declare _uid bigint unsigned;
+	declare _instance varchar(128) CHARSET utf8;
+	declare _sha1_domain char(128);
+	declare _delta bigint;
+	declare _month int;
+
+	-- row of connection is locked, so concurrent updates of the same connection add each delta once
+	select c.uid, c.instance, u.sha1_domain, cast(_transferred_bytes as signed) - c.transferred_bytes
+		into _uid, _instance, _sha1_domain, _delta
+		from tig_socks5_connections c inner join tig_socks5_users u on u.uid = c.uid
+		where c.conn_id = _conn_id for update;
+
+	update tig_socks5_connections set transferred_bytes = _transferred_bytes
+		where conn_id = _conn_id;
+
+	if _delta is not null and _delta <> 0 then
+		set _month = EXTRACT(YEAR_MONTH FROM now());
+
+		insert into tig_socks5_used_user (`month`, uid, transferred_bytes) values (_month, _uid, _delta)
+			on duplicate key update transferred_bytes = transferred_bytes + _delta;
+		insert into tig_socks5_used_domain (`month`, sha1_domain, transferred_bytes) values (_month, _sha1_domain, _delta)
+			on duplicate key update transferred_bytes = transferred_bytes + _delta;
+		insert into tig_socks5_used_instance (`month`, instance, transferred_bytes) values (_month, _instance, _delta)
+			on duplicate key update transferred_bytes = transferred_bytes + _delta;
+		insert into tig_socks5_used_general (`month`, transferred_bytes) values (_month, _delta)
+			on duplicate key update transferred_bytes = transferred_bytes + _delta;
+	end if;
+end //
+-- QUERY END:
+
+-- Procedures below are used by batches of updates, which set transferred bytes of connections and then add
+-- increases of all connections of batch to each rollup once, in the same order on all nodes.
+
+-- QUERY START:
+create procedure TigSocks5SetTransferUsed(_conn_id bigint unsigned, _transferred_bytes bigint unsigned)
+begin
+	update tig_socks5_connections set transferred_bytes = _transferred_bytes
+		where conn_id = _conn_id;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigSocks5AddTransferUsedUser(_user_id varchar(2049) CHARSET utf8, _delta bigint)
+begin
+	insert into tig_socks5_used_user (`month`, uid, transferred_bytes)
+		select EXTRACT(YEAR_MONTH FROM now()), u.uid, _delta from tig_socks5_users u
+			where u.sha1_user_id = sha1(lower(_user_id))
+		on duplicate key update transferred_bytes = transferred_bytes + _delta;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigSocks5AddTransferUsedDomain(_domain varchar(2049) CHARSET utf8, _delta bigint)
+begin
+	insert into tig_socks5_used_domain (`month`, sha1_domain, transferred_bytes)
+		values (EXTRACT(YEAR_MONTH FROM now()), sha1(lower(_domain)), _delta)
+		on duplicate key update transferred_bytes = transferred_bytes + _delta;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigSocks5AddTransferUsedInstance(_instance varchar(128) CHARSET utf8, _delta bigint)
+begin
+	insert into tig_socks5_used_instance (`month`, instance, transferred_bytes)
+		values (EXTRACT(YEAR_MONTH FROM now()), _instance, _delta)
+		on duplicate key update transferred_bytes = transferred_bytes + _delta;
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigSocks5AddTransferUsedGeneral(_delta bigint)
+begin
+	insert into tig_socks5_used_general (`month`, transferred_bytes)
+		values (EXTRACT(YEAR_MONTH FROM now()), _delta)
+		on duplicate key update transferred_bytes = transferred_bytes + _delta;
+end //
+-- QUERY END:
+
+delimiter ;
+
+-- Retention of connections: connections of months older than retained months are folded into monthly rollups
+-- (if rollups of their month do not exist yet) and removed. Both procedures may be called repeatedly.
+
+-- QUERY START:
+drop procedure if exists TigSocks5CreateTransferTimestampIndex;
+-- QUERY END:
+
+delimiter //
+
+-- QUERY START:
+create procedure TigSocks5CreateTransferTimestampIndex()
+begin
+	if not exists (select 1 from information_schema.statistics where table_schema = database()
+			and table_name = 'tig_socks5_connections' and index_name = 'transfer_timestamp') then
+		create index transfer_timestamp on tig_socks5_connections (transfer_timestamp);
+	end if;
+end //
+-- QUERY END:
+
+delimiter ;
+
+-- QUERY START:
+call TigSocks5CreateTransferTimestampIndex();
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigSocks5CreateTransferTimestampIndex;
+-- QUERY END:
+
+-- QUERY START:
+drop procedure if exists TigSocks5FoldTransferUsed;
+-- QUERY END:
+-- QUERY START:
+drop procedure if exists TigSocks5RemoveTransferUsed;
+-- QUERY END:
+
+delimiter //
+
+-- QUERY START:
+create procedure TigSocks5FoldTransferUsed(_months int)
+begin
+	declare _cutoff timestamp;
+	declare exit handler for sqlexception
+	begin
+		do release_lock('TigSocks5FoldTransferUsed');
+		resignal;
+	end;
+
+	-- folds of all nodes are serialized, so the same month is not folded concurrently
+	do get_lock('TigSocks5FoldTransferUsed', -1);
+
+	set _cutoff = DATE_SUB(DATE_FORMAT(now(), '%Y-%m-01'), INTERVAL _months MONTH);
+
+	-- month is folded only if it has no rollups, general rollup is created last so interrupted fold is resumed
+	insert into tig_socks5_used_user (`month`, uid, transferred_bytes)
+		select t.`month`, t.uid, sum(t.transferred_bytes) from (
+			select EXTRACT(YEAR_MONTH FROM transfer_timestamp) as `month`, uid, transferred_bytes
+				from tig_socks5_connections where transfer_timestamp < _cutoff
+		) t
+		where not exists (select 1 from tig_socks5_used_general g where g.`month` = t.`month`)
+			and not exists (select 1 from tig_socks5_used_user r where r.`month` = t.`month` and r.uid = t.uid)
+		group by t.`month`, t.uid;
+
+	insert into tig_socks5_used_domain (`month`, sha1_domain, transferred_bytes)
+		select t.`month`, t.sha1_domain, sum(t.transferred_bytes) from (
+			select EXTRACT(YEAR_MONTH FROM c.transfer_timestamp) as `month`, u.sha1_domain, c.transferred_bytes
+				from tig_socks5_connections c inner join tig_socks5_users u on u.uid = c.uid
+				where c.transfer_timestamp < _cutoff
+		) t
+		where not exists (select 1 from tig_socks5_used_general g where g.`month` = t.`month`)
+			and not exists (select 1 from tig_socks5_used_domain r where r.`month` = t.`month` and r.sha1_domain = t.sha1_domain)
+		group by t.`month`, t.sha1_domain;
+
+	insert into tig_socks5_used_instance (`month`, instance, transferred_bytes)
+		select t.`month`, t.instance, sum(t.transferred_bytes) from (
+			select EXTRACT(YEAR_MONTH FROM transfer_timestamp) as `month`, instance, transferred_bytes
+				from tig_socks5_connections where transfer_timestamp < _cutoff
+		) t
+		where not exists (select 1 from tig_socks5_used_general g where g.`month` = t.`month`)
+			and not exists (select 1 from tig_socks5_used_instance r where r.`month` = t.`month` and r.instance = t.instance)
+		group by t.`month`, t.instance;
+
+	insert into tig_socks5_used_general (`month`, transferred_bytes)
+		select t.`month`, sum(t.transferred_bytes) from (
+			select EXTRACT(YEAR_MONTH FROM transfer_timestamp) as `month`, transferred_bytes
+				from tig_socks5_connections where transfer_timestamp < _cutoff
+		) t
+		where not exists (select 1 from tig_socks5_used_general g where g.`month` = t.`month`)
+		group by t.`month`;
+
+	do release_lock('TigSocks5FoldTransferUsed');
+end //
+-- QUERY END:
+
+-- QUERY START:
+create procedure TigSocks5RemoveTransferUsed(_months int, _limit int)
+begin
+	delete from tig_socks5_connections
+		where transfer_timestamp < DATE_SUB(DATE_FORMAT(now(), '%Y-%m-01'), INTERVAL _months MONTH)
+		limit _limit;
+
+	select row_count();
+end //
+-- QUERY END:
+
+delimiter ;
+
+-- QUERY START:
+call TigSetComponentVersion('socks5', '2.1.0');
+-- QUERY END:
@@ -16,3 +16,421 @@
 -- If not, see http://www.gnu.org/licenses/.
 --
 
+
+-- Monthly usage rollups, increased by TigSocks5UpdateTransferUsed (or once per batch of updates) by number of bytes
+-- transferred since previous update, so used transfer is read without summing connections of whole month. Month is
+-- stored as yyyymm.
+-- Rollups of current month are filled from existing connections during upgrade, if they do not exist yet.
+
+-- QUERY START:
+create table if not exists tig_socks5_used_user (
+	"month" int NOT NULL,
+	uid bigint NOT NULL,
+	transferred_bytes bigint NOT NULL default 0,
+
+	primary key ("month", uid)
+);
+-- QUERY END:
+
+-- QUERY START:
+create table if not exists tig_socks5_used_domain (
+	"month" int NOT NULL,
+	"domain" varchar(2049) NOT NULL,
+	transferred_bytes bigint NOT NULL default 0,
+
+	primary key ("month", "domain")
+);
+-- QUERY END:
+
+-- QUERY START:
+create table if not exists tig_socks5_used_instance (
+	"month" int NOT NULL,
+	instance varchar(128) NOT NULL,
+	transferred_bytes bigint NOT NULL default 0,
+
+	primary key ("month", instance)
+);
+-- QUERY END:
+
+-- QUERY START:
+create table if not exists tig_socks5_used_general (
+	"month" int NOT NULL,
+	transferred_bytes bigint NOT NULL default 0,
+
+	primary key ("month")
+);
+-- QUERY END:
+
+-- QUERY START:
+insert into tig_socks5_used_user ("month", uid, transferred_bytes)
+	select cast(to_char(now(), 'YYYYMM') as int), uid, sum(transferred_bytes) from tig_socks5_connections
+		where transfer_timestamp >= date_trunc('month', now())
+		group by uid
+	on conflict do nothing;
+-- QUERY END:
+
+-- QUERY START:
+insert into tig_socks5_used_domain ("month", "domain", transferred_bytes)
+	select cast(to_char(now(), 'YYYYMM') as int), u."domain", sum(c.transferred_bytes)
+		from tig_socks5_connections c inner join tig_socks5_users u on u.uid = c.uid
+		where c.transfer_timestamp >= date_trunc('month', now())
+		group by u."domain"
+	on conflict do nothing;
+-- QUERY END:
+
+-- QUERY START:
+insert into tig_socks5_used_instance ("month", instance, transferred_bytes)
+	select cast(to_char(now(), 'YYYYMM') as int), instance, sum(transferred_bytes) from tig_socks5_connections
+		where transfer_timestamp >= date_trunc('month', now())
+		group by instance
+	on conflict do nothing;
+-- QUERY END:
+
+-- QUERY START:
+insert into tig_socks5_used_general ("month", transferred_bytes)
+	select cast(to_char(now(), 'YYYYMM') as int), coalesce(sum(transferred_bytes), 0) from tig_socks5_connections
+		where transfer_timestamp >= date_trunc('month', now())
+	on conflict do nothing;
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigSocks5TransferUsedGeneral()
+	returns bigint as '
+declare
+	_res bigint;
+begin
+	select transferred_bytes into _res from tig_socks5_used_general
+		where "month" = cast(to_char(now(), ''YYYYMM'') as int);
+
+	return _res;
+end;
+' LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigSocks5TransferUsedInstance(varchar(128))
+	returns bigint as '
+declare
+	_instance alias for $1;
+	_res bigint;
+begin
+	select transferred_bytes into _res from tig_socks5_used_instance
+		where "month" = cast(to_char(now(), ''YYYYMM'') as int)
+		and instance = _instance;
+
+	return _res;
+end;
+' LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigSocks5TransferUsedDomain(varchar(2049))
+	returns bigint as '
+declare
+	_domain alias for $1;
+	_res bigint;
+begin
+	select transferred_bytes into _res from tig_socks5_used_domain
+		where "month" = cast(to_char(now(), ''YYYYMM'') as int)
+		and "domain" = _domain;
+
+	return _res;
+end;
+' LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigSocks5TransferUsedUser(bigint)
+	returns bigint as '
+declare
+	_uid alias for $1;
+	_res bigint;
+begin
+	select transferred_bytes into _res from tig_socks5_used_user
+		where "month" = cast(to_char(now(), ''YYYYMM'') as int)
+		and uid = _uid;
+
+	return _res;
+end;
+' LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigSocks5UpdateTransferUsed(bigint, bigint)
+	returns void as '
+declare
+	_conn_id alias for $1;
+	_transferred_bytes alias for $2;
+	_uid bigint;
+	_instance varchar(128);
+	_domain varchar(2049);
+	_delta bigint;
+	_month int;
+begin
+	-- row of connection is locked, so concurrent updates of the same connection add each delta once
+	select c.uid, c.instance, u."domain", _transferred_bytes - c.transferred_bytes
+		into _uid, _instance, _domain, _delta
+		from tig_socks5_connections c inner join tig_socks5_users u on u.uid = c.uid
+		where c.conn_id = _conn_id for update of c;
+
+	-- timestamp of last transfer decides month of connection, as on MySQL where it is updated automatically
+	update tig_socks5_connections set transferred_bytes = _transferred_bytes, transfer_timestamp = now()
+		where conn_id = _conn_id;
+
+	if _delta is null or _delta = 0 then
+		return;
+	end if;
+
+	_month := cast(to_char(now(), ''YYYYMM'') as int);
+
+	-- rows of rollups are created if they do not exist, retried if created concurrently
+	loop
+		update tig_socks5_used_user set transferred_bytes = transferred_bytes + _delta
+			where "month" = _month and uid = _uid;
+		exit when found;
+		begin
+			insert into tig_socks5_used_user ("month", uid, transferred_bytes) values (_month, _uid, _delta);
+			exit;
+		exception when unique_violation then
+		end;
+	end loop;
+
+	loop
+		update tig_socks5_used_domain set transferred_bytes = transferred_bytes + _delta
+			where "month" = _month and "domain" = _domain;
+		exit when found;
+		begin
+			insert into tig_socks5_used_domain ("month", "domain", transferred_bytes) values (_month, _domain, _delta);
+			exit;
+		exception when unique_violation then
+		end;
+	end loop;
+
+	loop
+		update tig_socks5_used_instance set transferred_bytes = transferred_bytes + _delta
+			where "month" = _month and instance = _instance;
+		exit when found;
+		begin
+			insert into tig_socks5_used_instance ("month", instance, transferred_bytes) values (_month, _instance, _delta);
+			exit;
+		exception when unique_violation then
+		end;
+	end loop;
+
+	loop
+		update tig_socks5_used_general set transferred_bytes = transferred_bytes + _delta
+			where "month" = _month;
+		exit when found;
+		begin
+			insert into tig_socks5_used_general ("month", transferred_bytes) values (_month, _delta);
+			exit;
+		exception when unique_violation then
+		end;
+	end loop;
+end;
+' LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- Functions below are used by batches of updates, which set transferred bytes of connections and then add
+-- increases of all connections of batch to each rollup once, in the same order on all nodes.
+
+-- QUERY START:
+create or replace function TigSocks5SetTransferUsed(bigint, bigint)
+	returns void as '
+declare
+	_conn_id alias for $1;
+	_transferred_bytes alias for $2;
+begin
+	update tig_socks5_connections set transferred_bytes = _transferred_bytes, transfer_timestamp = now()
+		where conn_id = _conn_id;
+end;
+' LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigSocks5AddTransferUsedUser(varchar(2049), bigint)
+	returns void as '
+declare
+	_user_id alias for $1;
+	_delta alias for $2;
+	_uid bigint;
+	_month int;
+begin
+	select uid into _uid from tig_socks5_users where user_id = _user_id;
+	if _uid is null then
+		return;
+	end if;
+
+	_month := cast(to_char(now(), ''YYYYMM'') as int);
+
+	-- row of rollup is created if it does not exist, retried if created concurrently
+	loop
+		update tig_socks5_used_user set transferred_bytes = transferred_bytes + _delta
+			where "month" = _month and uid = _uid;
+		exit when found;
+		begin
+			insert into tig_socks5_used_user ("month", uid, transferred_bytes) values (_month, _uid, _delta);
+			exit;
+		exception when unique_violation then
+		end;
+	end loop;
+end;
+' LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigSocks5AddTransferUsedDomain(varchar(2049), bigint)
+	returns void as '
+declare
+	_domain alias for $1;
+	_delta alias for $2;
+	_month int;
+begin
+	_month := cast(to_char(now(), ''YYYYMM'') as int);
+
+	-- row of rollup is created if it does not exist, retried if created concurrently
+	loop
+		update tig_socks5_used_domain set transferred_bytes = transferred_bytes + _delta
+			where "month" = _month and "domain" = _domain;
+		exit when found;
+		begin
+			insert into tig_socks5_used_domain ("month", "domain", transferred_bytes) values (_month, _domain, _delta);
+			exit;
+		exception when unique_violation then
+		end;
+	end loop;
+end;
+' LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigSocks5AddTransferUsedInstance(varchar(128), bigint)
+	returns void as '
+declare
+	_instance alias for $1;
+	_delta alias for $2;
+	_month int;
+begin
+	_month := cast(to_char(now(), ''YYYYMM'') as int);
+
+	-- row of rollup is created if it does not exist, retried if created concurrently
+	loop
+		update tig_socks5_used_instance set transferred_bytes = transferred_bytes + _delta
+			where "month" = _month and instance = _instance;
+		exit when found;
+		begin
+			insert into tig_socks5_used_instance ("month", instance, transferred_bytes) values (_month, _instance, _delta);
+			exit;
+		exception when unique_violation then
+		end;
+	end loop;
+end;
+' LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigSocks5AddTransferUsedGeneral(bigint)
+	returns void as '
+declare
+	_delta alias for $1;
+	_month int;
+begin
+	_month := cast(to_char(now(), ''YYYYMM'') as int);
+
+	-- row of rollup is created if it does not exist, retried if created concurrently
+	loop
+		update tig_socks5_used_general set transferred_bytes = transferred_bytes + _delta
+			where "month" = _month;
+		exit when found;
+		begin
+			insert into tig_socks5_used_general ("month", transferred_bytes) values (_month, _delta);
+			exit;
+		exception when unique_violation then
+		end;
+	end loop;
+end;
+' LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- Retention of connections: connections of months older than retained months are folded into monthly rollups
+-- (if rollups of their month do not exist yet) and removed. Both functions may be called repeatedly.
+
+-- QUERY START:
+create index if not exists tig_socks5_connections_transfer_timestamp on tig_socks5_connections ( transfer_timestamp );
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigSocks5FoldTransferUsed(int)
+	returns void as '
+declare
+	_months alias for $1;
+	_cutoff timestamp with time zone;
+begin
+	-- folds of all nodes are serialized, so the same month is not folded concurrently
+	perform pg_advisory_xact_lock(hashtext(''TigSocks5FoldTransferUsed''));
+
+	_cutoff := date_trunc(''month'', now()) - _months * interval ''1 month'';
+
+	-- month is folded only if it has no rollups, general rollup is created last so interrupted fold is resumed
+	insert into tig_socks5_used_user ("month", uid, transferred_bytes)
+		select t."month", t.uid, sum(t.transferred_bytes) from (
+			select cast(to_char(transfer_timestamp, ''YYYYMM'') as int) as "month", uid, transferred_bytes
+				from tig_socks5_connections where transfer_timestamp < _cutoff
+		) t
+		where not exists (select 1 from tig_socks5_used_general g where g."month" = t."month")
+			and not exists (select 1 from tig_socks5_used_user r where r."month" = t."month" and r.uid = t.uid)
+		group by t."month", t.uid;
+
+	insert into tig_socks5_used_domain ("month", "domain", transferred_bytes)
+		select t."month", t."domain", sum(t.transferred_bytes) from (
+			select cast(to_char(c.transfer_timestamp, ''YYYYMM'') as int) as "month", u."domain", c.transferred_bytes
+				from tig_socks5_connections c inner join tig_socks5_users u on u.uid = c.uid
+				where c.transfer_timestamp < _cutoff
+		) t
+		where not exists (select 1 from tig_socks5_used_general g where g."month" = t."month")
+			and not exists (select 1 from tig_socks5_used_domain r where r."month" = t."month" and r."domain" = t."domain")
+		group by t."month", t."domain";
+
+	insert into tig_socks5_used_instance ("month", instance, transferred_bytes)
+		select t."month", t.instance, sum(t.transferred_bytes) from (
+			select cast(to_char(transfer_timestamp, ''YYYYMM'') as int) as "month", instance, transferred_bytes
+				from tig_socks5_connections where transfer_timestamp < _cutoff
+		) t
+		where not exists (select 1 from tig_socks5_used_general g where g."month" = t."month")
+			and not exists (select 1 from tig_socks5_used_instance r where r."month" = t."month" and r.instance = t.instance)
+		group by t."month", t.instance;
+
+	insert into tig_socks5_used_general ("month", transferred_bytes)
+		select t."month", sum(t.transferred_bytes) from (
+			select cast(to_char(transfer_timestamp, ''YYYYMM'') as int) as "month", transferred_bytes
+				from tig_socks5_connections where transfer_timestamp < _cutoff
+		) t
+		where not exists (select 1 from tig_socks5_used_general g where g."month" = t."month")
+		group by t."month";
+end;
+' LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+create or replace function TigSocks5RemoveTransferUsed(int, int)
+	returns int as '
+declare
+	_months alias for $1;
+	_limit alias for $2;
+	_res int;
+begin
+	delete from tig_socks5_connections where conn_id in (
+		select conn_id from tig_socks5_connections
+			where transfer_timestamp < date_trunc(''month'', now()) - _months * interval ''1 month''
+			limit _limit
+	);
+	get diagnostics _res = row_count;
+
+	return _res;
+end;
+' LANGUAGE 'plpgsql';
+-- QUERY END:
+
+-- QUERY START:
+select TigSetComponentVersion('socks5', '2.1.0');
+-- QUERY END:
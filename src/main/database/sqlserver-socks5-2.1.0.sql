@@ -16,3 +16,447 @@
 -- If not, see http://www.gnu.org/licenses/.
 --
 
+
+-- Monthly usage rollups, increased by TigSocks5UpdateTransferUsed (or once per batch of updates) by number of bytes
+-- transferred since previous update, so used transfer is read without summing connections of whole month. Month is
+-- stored as yyyymm.
+-- Rollups of current month are filled from existing connections once, during upgrade.
+
+-- QUERY START:
+if not exists (select * from sysobjects where name='tig_socks5_used_user' and xtype='U')
+	create table [dbo].[tig_socks5_used_user] (
+	[month] int NOT NULL,
+	[uid] [bigint] NOT NULL,
+	[transferred_bytes] bigint NOT NULL default 0,
+
+	primary key ([month], [uid])
+)
+-- QUERY END:
+GO
+
+-- QUERY START:
+if not exists (select * from sysobjects where name='tig_socks5_used_domain' and xtype='U')
+	create table [dbo].[tig_socks5_used_domain] (
+	[month] int NOT NULL,
+	-- sha1 hash of domain for fast lookup
+	[sha1_domain] [varbinary](128) NOT NULL,
+	[transferred_bytes] bigint NOT NULL default 0,
+
+	primary key ([month], [sha1_domain])
+)
+-- QUERY END:
+GO
+
+-- QUERY START:
+if not exists (select * from sysobjects where name='tig_socks5_used_instance' and xtype='U')
+	create table [dbo].[tig_socks5_used_instance] (
+	[month] int NOT NULL,
+	[instance] nvarchar(128) NOT NULL,
+	[transferred_bytes] bigint NOT NULL default 0,
+
+	primary key ([month], [instance])
+)
+-- QUERY END:
+GO
+
+-- QUERY START:
+if not exists (select * from sysobjects where name='tig_socks5_used_general' and xtype='U')
+	create table [dbo].[tig_socks5_used_general] (
+	[month] int NOT NULL,
+	[transferred_bytes] bigint NOT NULL default 0,
+
+	primary key ([month])
+)
+-- QUERY END:
+GO
+
+-- QUERY START:
+if not exists (select * from dbo.tig_socks5_used_general where [month] = YEAR(GETDATE()) * 100 + MONTH(GETDATE()))
+begin
+	insert into dbo.tig_socks5_used_user ([month], [uid], [transferred_bytes])
+		select YEAR(GETDATE()) * 100 + MONTH(GETDATE()), [uid], sum([transferred_bytes]) from dbo.tig_socks5_connections
+			where [transfer_timestamp] >= DATEFROMPARTS(YEAR(GETDATE()), MONTH(GETDATE()), 1)
+			group by [uid];
+
+	insert into dbo.tig_socks5_used_domain ([month], [sha1_domain], [transferred_bytes])
+		select YEAR(GETDATE()) * 100 + MONTH(GETDATE()), u.[sha1_domain], sum(c.[transferred_bytes])
+			from dbo.tig_socks5_connections c inner join dbo.tig_socks5_users u on u.[uid] = c.[uid]
+			where c.[transfer_timestamp] >= DATEFROMPARTS(YEAR(GETDATE()), MONTH(GETDATE()), 1)
+			group by u.[sha1_domain];
+
+	insert into dbo.tig_socks5_used_instance ([month], [instance], [transferred_bytes])
+		select YEAR(GETDATE()) * 100 + MONTH(GETDATE()), [instance], sum([transferred_bytes]) from dbo.tig_socks5_connections
+			where [transfer_timestamp] >= DATEFROMPARTS(YEAR(GETDATE()), MONTH(GETDATE()), 1)
+			group by [instance];
+
+	insert into dbo.tig_socks5_used_general ([month], [transferred_bytes])
+		select YEAR(GETDATE()) * 100 + MONTH(GETDATE()), coalesce(sum([transferred_bytes]), 0) from dbo.tig_socks5_connections
+			where [transfer_timestamp] >= DATEFROMPARTS(YEAR(GETDATE()), MONTH(GETDATE()), 1);
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigSocks5TransferUsedGeneral')
+DROP PROCEDURE [dbo].[TigSocks5TransferUsedGeneral]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[TigSocks5TransferUsedGeneral]
+AS
+begin
+	select [transferred_bytes] from [dbo].[tig_socks5_used_general]
+		where [month] = YEAR(GETDATE()) * 100 + MONTH(GETDATE());
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigSocks5TransferUsedInstance')
+DROP PROCEDURE [dbo].[TigSocks5TransferUsedInstance]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[TigSocks5TransferUsedInstance]
+	@_instance nvarchar(128)
+AS
+begin
+	select [transferred_bytes] from dbo.tig_socks5_used_instance
+		where [month] = YEAR(GETDATE()) * 100 + MONTH(GETDATE()) and [instance] = @_instance;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigSocks5TransferUsedDomain')
+DROP PROCEDURE [dbo].[TigSocks5TransferUsedDomain]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[TigSocks5TransferUsedDomain]
+	@_domain nvarchar(2049)
+AS
+begin
+	select [transferred_bytes] from dbo.tig_socks5_used_domain
+		where [month] = YEAR(GETDATE()) * 100 + MONTH(GETDATE())
+		and [sha1_domain] = HASHBYTES('SHA1', lower(@_domain));
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigSocks5TransferUsedUser')
+DROP PROCEDURE [dbo].[TigSocks5TransferUsedUser]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[TigSocks5TransferUsedUser]
+	@_uid bigint
+AS
+begin
+	select [transferred_bytes] from dbo.tig_socks5_used_user
+		where [month] = YEAR(GETDATE()) * 100 + MONTH(GETDATE()) and [uid] = @_uid;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigSocks5UpdateTransferUsed')
+DROP PROCEDURE [dbo].[TigSocks5UpdateTransferUsed]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[TigSocks5UpdateTransferUsed]
+	@_conn_id bigint,
+	@_transferred_bytes bigint
+AS
+begin
+	declare @_uid bigint;
+	declare @_instance nvarchar(128);
+	declare @_sha1_domain varbinary(128);
+	declare @_delta bigint;
+	declare @_month int;
+
+	set nocount on;
+	set xact_abort on;
+	begin transaction;
+
+	-- row of connection is locked, so concurrent updates of the same connection add each delta once
+	select @_uid = c.[uid], @_instance = c.[instance], @_sha1_domain = u.[sha1_domain],
+			@_delta = @_transferred_bytes - c.[transferred_bytes]
+		from dbo.tig_socks5_connections c with (updlock, rowlock)
+		inner join dbo.tig_socks5_users u on u.[uid] = c.[uid]
+		where c.[conn_id] = @_conn_id;
+
+	-- timestamp of last transfer decides month of connection, as on MySQL where it is updated automatically
+	update dbo.tig_socks5_connections set transferred_bytes = @_transferred_bytes, transfer_timestamp = GETDATE()
+		where conn_id = @_conn_id;
+
+	if @_delta is not null and @_delta <> 0
+	begin
+		set @_month = YEAR(GETDATE()) * 100 + MONTH(GETDATE());
+
+		-- rows of rollups are created if they do not exist, range is locked so they are not created concurrently
+		update dbo.tig_socks5_used_user with (updlock, serializable)
+			set [transferred_bytes] = [transferred_bytes] + @_delta
+			where [month] = @_month and [uid] = @_uid;
+		if @@ROWCOUNT = 0
+			insert into dbo.tig_socks5_used_user ([month], [uid], [transferred_bytes]) values (@_month, @_uid, @_delta);
+
+		update dbo.tig_socks5_used_domain with (updlock, serializable)
+			set [transferred_bytes] = [transferred_bytes] + @_delta
+			where [month] = @_month and [sha1_domain] = @_sha1_domain;
+		if @@ROWCOUNT = 0
+			insert into dbo.tig_socks5_used_domain ([month], [sha1_domain], [transferred_bytes]) values (@_month, @_sha1_domain, @_delta);
+
+		update dbo.tig_socks5_used_instance with (updlock, serializable)
+			set [transferred_bytes] = [transferred_bytes] + @_delta
+			where [month] = @_month and [instance] = @_instance;
+		if @@ROWCOUNT = 0
+			insert into dbo.tig_socks5_used_instance ([month], [instance], [transferred_bytes]) values (@_month, @_instance, @_delta);
+
+		update dbo.tig_socks5_used_general with (updlock, serializable)
+			set [transferred_bytes] = [transferred_bytes] + @_delta
+			where [month] = @_month;
+		if @@ROWCOUNT = 0
+			insert into dbo.tig_socks5_used_general ([month], [transferred_bytes]) values (@_month, @_delta);
+	end
+
+	commit transaction;
+end
+-- QUERY END:
+GO
+
+-- Procedures below are used by batches of updates, which set transferred bytes of connections and then add
+-- increases of all connections of batch to each rollup once, in the same order on all nodes.
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigSocks5SetTransferUsed')
+DROP PROCEDURE [dbo].[TigSocks5SetTransferUsed]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[TigSocks5SetTransferUsed]
+	@_conn_id bigint,
+	@_transferred_bytes bigint
+AS
+begin
+	set nocount on;
+	update dbo.tig_socks5_connections set transferred_bytes = @_transferred_bytes, transfer_timestamp = GETDATE()
+		where conn_id = @_conn_id;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigSocks5AddTransferUsedUser')
+DROP PROCEDURE [dbo].[TigSocks5AddTransferUsedUser]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[TigSocks5AddTransferUsedUser]
+	@_user_id nvarchar(2049),
+	@_delta bigint
+AS
+begin
+	set nocount on;
+	declare @_uid bigint;
+
+	select @_uid = [uid] from dbo.tig_socks5_users where sha1_user_id = HASHBYTES('SHA1', lower(@_user_id));
+	if @_uid is null
+		return;
+
+	declare @_month int = YEAR(GETDATE()) * 100 + MONTH(GETDATE());
+
+	-- row of rollup is created if it does not exist, range is locked so it is not created concurrently
+	update dbo.tig_socks5_used_user with (updlock, serializable)
+		set [transferred_bytes] = [transferred_bytes] + @_delta
+		where [month] = @_month and [uid] = @_uid;
+	if @@ROWCOUNT = 0
+		insert into dbo.tig_socks5_used_user ([month], [uid], [transferred_bytes]) values (@_month, @_uid, @_delta);
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigSocks5AddTransferUsedDomain')
+DROP PROCEDURE [dbo].[TigSocks5AddTransferUsedDomain]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[TigSocks5AddTransferUsedDomain]
+	@_domain nvarchar(2049),
+	@_delta bigint
+AS
+begin
+	set nocount on;
+	declare @_month int = YEAR(GETDATE()) * 100 + MONTH(GETDATE());
+
+	-- row of rollup is created if it does not exist, range is locked so it is not created concurrently
+	update dbo.tig_socks5_used_domain with (updlock, serializable)
+		set [transferred_bytes] = [transferred_bytes] + @_delta
+		where [month] = @_month and [sha1_domain] = HASHBYTES('SHA1', lower(@_domain));
+	if @@ROWCOUNT = 0
+		insert into dbo.tig_socks5_used_domain ([month], [sha1_domain], [transferred_bytes]) values (@_month, HASHBYTES('SHA1', lower(@_domain)), @_delta);
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigSocks5AddTransferUsedInstance')
+DROP PROCEDURE [dbo].[TigSocks5AddTransferUsedInstance]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[TigSocks5AddTransferUsedInstance]
+	@_instance nvarchar(128),
+	@_delta bigint
+AS
+begin
+	set nocount on;
+	declare @_month int = YEAR(GETDATE()) * 100 + MONTH(GETDATE());
+
+	-- row of rollup is created if it does not exist, range is locked so it is not created concurrently
+	update dbo.tig_socks5_used_instance with (updlock, serializable)
+		set [transferred_bytes] = [transferred_bytes] + @_delta
+		where [month] = @_month and [instance] = @_instance;
+	if @@ROWCOUNT = 0
+		insert into dbo.tig_socks5_used_instance ([month], [instance], [transferred_bytes]) values (@_month, @_instance, @_delta);
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigSocks5AddTransferUsedGeneral')
+DROP PROCEDURE [dbo].[TigSocks5AddTransferUsedGeneral]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[TigSocks5AddTransferUsedGeneral]
+	@_delta bigint
+AS
+begin
+	set nocount on;
+	declare @_month int = YEAR(GETDATE()) * 100 + MONTH(GETDATE());
+
+	-- row of rollup is created if it does not exist, range is locked so it is not created concurrently
+	update dbo.tig_socks5_used_general with (updlock, serializable)
+		set [transferred_bytes] = [transferred_bytes] + @_delta
+		where [month] = @_month;
+	if @@ROWCOUNT = 0
+		insert into dbo.tig_socks5_used_general ([month], [transferred_bytes]) values (@_month, @_delta);
+end
+-- QUERY END:
+GO
+
+-- Retention of connections: connections of months older than retained months are folded into monthly rollups
+-- (if rollups of their month do not exist yet) and removed. Both procedures may be called repeatedly.
+
+-- QUERY START:
+if not exists (select * from sys.indexes where name = 'tig_socks5_connections_transfer_timestamp'
+		and object_id = object_id('dbo.tig_socks5_connections'))
+	create index tig_socks5_connections_transfer_timestamp on dbo.tig_socks5_connections ( transfer_timestamp );
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigSocks5FoldTransferUsed')
+DROP PROCEDURE [dbo].[TigSocks5FoldTransferUsed]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[TigSocks5FoldTransferUsed]
+	@_months int
+AS
+begin
+	declare @_cutoff datetime;
+
+	set nocount on;
+	set xact_abort on;
+	begin transaction;
+
+	-- folds of all nodes are serialized, so the same month is not folded concurrently
+	exec sp_getapplock @Resource = 'TigSocks5FoldTransferUsed', @LockMode = 'Exclusive', @LockOwner = 'Transaction',
+		@LockTimeout = -1;
+
+	set @_cutoff = DATEADD(month, -@_months, DATEFROMPARTS(YEAR(GETDATE()), MONTH(GETDATE()), 1));
+
+	-- month is folded only if it has no rollups, general rollup is created last so interrupted fold is resumed
+	insert into dbo.tig_socks5_used_user ([month], [uid], [transferred_bytes])
+		select t.[month], t.[uid], sum(t.[transferred_bytes]) from (
+			select YEAR([transfer_timestamp]) * 100 + MONTH([transfer_timestamp]) as [month], [uid], [transferred_bytes]
+				from dbo.tig_socks5_connections where [transfer_timestamp] < @_cutoff
+		) t
+		where not exists (select 1 from dbo.tig_socks5_used_general g where g.[month] = t.[month])
+			and not exists (select 1 from dbo.tig_socks5_used_user r where r.[month] = t.[month] and r.[uid] = t.[uid])
+		group by t.[month], t.[uid];
+
+	insert into dbo.tig_socks5_used_domain ([month], [sha1_domain], [transferred_bytes])
+		select t.[month], t.[sha1_domain], sum(t.[transferred_bytes]) from (
+			select YEAR(c.[transfer_timestamp]) * 100 + MONTH(c.[transfer_timestamp]) as [month], u.[sha1_domain], c.[transferred_bytes]
+				from dbo.tig_socks5_connections c inner join dbo.tig_socks5_users u on u.[uid] = c.[uid]
+				where c.[transfer_timestamp] < @_cutoff
+		) t
+		where not exists (select 1 from dbo.tig_socks5_used_general g where g.[month] = t.[month])
+			and not exists (select 1 from dbo.tig_socks5_used_domain r where r.[month] = t.[month] and r.[sha1_domain] = t.[sha1_domain])
+		group by t.[month], t.[sha1_domain];
+
+	insert into dbo.tig_socks5_used_instance ([month], [instance], [transferred_bytes])
+		select t.[month], t.[instance], sum(t.[transferred_bytes]) from (
+			select YEAR([transfer_timestamp]) * 100 + MONTH([transfer_timestamp]) as [month], [instance], [transferred_bytes]
+				from dbo.tig_socks5_connections where [transfer_timestamp] < @_cutoff
+		) t
+		where not exists (select 1 from dbo.tig_socks5_used_general g where g.[month] = t.[month])
+			and not exists (select 1 from dbo.tig_socks5_used_instance r where r.[month] = t.[month] and r.[instance] = t.[instance])
+		group by t.[month], t.[instance];
+
+	insert into dbo.tig_socks5_used_general ([month], [transferred_bytes])
+		select t.[month], sum(t.[transferred_bytes]) from (
+			select YEAR([transfer_timestamp]) * 100 + MONTH([transfer_timestamp]) as [month], [transferred_bytes]
+				from dbo.tig_socks5_connections where [transfer_timestamp] < @_cutoff
+		) t
+		where not exists (select 1 from dbo.tig_socks5_used_general g where g.[month] = t.[month])
+		group by t.[month];
+
+	commit transaction;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+IF EXISTS (SELECT * FROM sys.objects WHERE type = 'P' AND name = 'TigSocks5RemoveTransferUsed')
+DROP PROCEDURE [dbo].[TigSocks5RemoveTransferUsed]
+-- QUERY END:
+GO
+
+-- QUERY START:
+create procedure [dbo].[TigSocks5RemoveTransferUsed]
+	@_months int,
+	@_limit int
+AS
+begin
+	set nocount on;
+
+	delete top (@_limit) from dbo.tig_socks5_connections
+		where [transfer_timestamp] < DATEADD(month, -@_months, DATEFROMPARTS(YEAR(GETDATE()), MONTH(GETDATE()), 1));
+
+	select @@ROWCOUNT;
+end
+-- QUERY END:
+GO
+
+-- QUERY START:
+exec TigSetComponentVersion 'socks5', '2.1.0';
+-- QUERY END:
+GO
@@ -58,6 +58,8 @@ public abstract class AbstractConnectionManager<IO extends IOService<?>>
 
 	protected static final String[] PORT_IFC_PROP_VAL = {"*"};
 
+	protected static final String PORT_ACCEPTORS_PROP_KEY = "acceptors";
+
 	protected static final String PORT_KEY = "port-no";
 
 	protected static final String PORT_SOCKET_PROP_KEY = "socket";
@@ -73,6 +75,8 @@ public abstract class AbstractConnectionManager<IO extends IOService<?>>
 	@ConfigField(desc = "Size of a network buffer", alias = "net-buffer")
 	protected int net_buffer = NET_BUFFER_ST_PROP_VAL;
 	protected Map<String, IO> services = new ConcurrentHashMap<String, IO>();
+	// acceptors of ports accepting connections by own threads instead of shared connection open thread
+	private final Map<ConnectionOpenListener, Acceptors> acceptors = new ConcurrentHashMap<ConnectionOpenListener, Acceptors>();
 	private long bytesReceived = 0;
 	private long bytesSent = 0;
 	private boolean initializationCompleted = false;
@@ -152,6 +156,15 @@ public abstract class AbstractConnectionManager<IO extends IOService<?>>
 		list.add(getName(), "Bytes sent", bytesSent, Level.FINE);
 		list.add(getName(), "Bytes received", bytesReceived, Level.FINE);
 		list.add(getName(), "Socket overflow", socketOverflow, Level.FINE);
+		if (!acceptors.isEmpty()) {
+			for (Acceptors portAcceptors : acceptors.values()) {
+				portAcceptors.getStatistics(getName(), list);
+			}
+			long listenDrops = Acceptors.getListenDrops();
+			if (listenDrops >= 0) {
+				list.add(getName(), "Listen queue drops", listenDrops, Level.FINE);
+			}
+		}
 	}
 
 	@Override
@@ -190,6 +203,27 @@ public abstract class AbstractConnectionManager<IO extends IOService<?>>
 		portsConfigBean.start();
 	}
 
+	/**
+	 * Check if accepted connection may be handled, called before any resources are allocated for it. Rejected
+	 * connection is closed.
+	 *
+	 * @param sc accepted connection
+	 *
+	 * @return true if connection should be handled
+	 */
+	protected boolean admitConnection(SocketChannel sc) {
+		return true;
+	}
+
+	/**
+	 * Called if admitted connection could not be started, so resources reserved by
+	 * {@link #admitConnection(SocketChannel)} may be released
+	 *
+	 * @param sc accepted connection
+	 */
+	protected void connectionNotStarted(SocketChannel sc) {
+	}
+
 	/**
 	 * Perform a given action defined by ServiceChecker for all active IOService objects (active network connections).
 	 *
@@ -233,6 +267,15 @@ public abstract class AbstractConnectionManager<IO extends IOService<?>>
 		return ports.stream().mapToInt(i -> i).toArray();
 	}
 
+	/**
+	 * Returns size of socket receive buffer set for accepted connections
+	 *
+	 * @return
+	 */
+	protected int getSocketReceiveBufferSize() {
+		return net_buffer;
+	}
+
 	/**
 	 * Returns true if instance should handle high throughtput
 	 *
@@ -246,7 +289,12 @@ public abstract class AbstractConnectionManager<IO extends IOService<?>>
 
 	protected void releaseListener(ConnectionOpenListener toStop) {
 		pending_open.remove(toStop);
-		connectThread.removeConnectionOpenListener(toStop);
+		Acceptors portAcceptors = acceptors.remove(toStop);
+		if (portAcceptors != null) {
+			portAcceptors.stop();
+		} else {
+			connectThread.removeConnectionOpenListener(toStop);
+		}
 	}
 
 	/**
@@ -280,8 +328,13 @@ public abstract class AbstractConnectionManager<IO extends IOService<?>>
 	 * Release listeners
 	 */
 	private void releaseListeners() {
-		for (ConnectionListenerImpl cli : pending_open) {
-			connectThread.removeConnectionOpenListener(cli);
+		// releaseListener() removes listener from pending_open, so we need to iterate over a copy
+		List<ConnectionListenerImpl> listeners;
+		synchronized (pending_open) {
+			listeners = new ArrayList<>(pending_open);
+		}
+		for (ConnectionListenerImpl cli : listeners) {
+			releaseListener(cli);
 		}
 		pending_open.clear();
 	}
@@ -295,6 +348,19 @@ public abstract class AbstractConnectionManager<IO extends IOService<?>>
 
 		if (cli.getConnectionType() == ConnectionType.accept) {
 			pending_open.add(cli);
+
+			Integer count = (Integer) port_props.get(PORT_ACCEPTORS_PROP_KEY);
+			if (count != null && count > 0 && cli.getSocketType() == SocketType.plain) {
+				Acceptors portAcceptors = new Acceptors(getName() + "-acceptor-" + cli.getPort(), cli, count);
+				try {
+					portAcceptors.start();
+					acceptors.put(cli, portAcceptors);
+					return cli;
+				} catch (IOException ex) {
+					log.log(Level.WARNING, "could not start acceptors for port " + cli.getPort() +
+							", connections will be accepted by shared thread", ex);
+				}
+			}
 		}
 		connectThread.addConnectionOpenListener(cli);
 
@@ -306,6 +372,8 @@ public abstract class AbstractConnectionManager<IO extends IOService<?>>
 	public static class PortConfigBean
 			implements ConfigurationChangedAware, Initializable, UnregisterAware {
 
+		@ConfigField(desc = "Number of threads accepting connections on each interface using sockets bound with SO_REUSEPORT (0 - connections are accepted by shared thread)")
+		protected int acceptors = 0;
 		@ConfigField(desc = "Interface to listen on")
 		protected String[] ifc = null;
 		@ConfigField(desc = "Socket type")
@@ -357,6 +425,7 @@ public abstract class AbstractConnectionManager<IO extends IOService<?>>
 			props.put(PORT_KEY, name);
 			props.put(PORT_TYPE_PROP_KEY, type);
 			props.put(PORT_SOCKET_PROP_KEY, socket);
+			props.put(PORT_ACCEPTORS_PROP_KEY, acceptors);
 			if (ifc == null) {
 				props.put(PORT_IFC_PROP_KEY, connectionManager.PORT_IFC_PROP_VAL);
 			} else {
@@ -449,16 +518,30 @@ public abstract class AbstractConnectionManager<IO extends IOService<?>>
 
 		@Override
 		public void accept(SocketChannel sc) {
+			if (!admitConnection(sc)) {
+				try {
+					sc.close();
+				} catch (IOException ex) {
+					// connection is closed anyway
+				}
+				return;
+			}
+
 			IO conn = null;
+			boolean started = false;
 
 			try {
 				conn = getIOServiceInstance();
 				conn.setIOServiceListener(null);
 				conn.accept(sc);
 				serviceStarted(conn);
+				started = true;
 				SocketThread.addSocketService(conn);
 			} catch (IOException ex) {
 				log.log(Level.WARNING, "Can not accept connection.", ex);
+				if (!started) {
+					connectionNotStarted(sc);
+				}
 				if (conn != null) {
 
 //        try {
@@ -498,7 +581,7 @@ public abstract class AbstractConnectionManager<IO extends IOService<?>>
 
 		@Override
 		public int getReceiveBufferSize() {
-			return net_buffer;
+			return getSocketReceiveBufferSize();
 		}
 
 		@Override
@@ -0,0 +1,252 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import tigase.net.ConnectionOpenListener;
+import tigase.stats.StatisticsList;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Group of threads accepting connections on the same port, each using its own listening socket bound with
+ * SO_REUSEPORT.
+ * <br>
+ * Kernel spreads incoming connections between all sockets bound to the port, so accepting connections is not limited
+ * by a single thread shared by all ports of all components and each socket has its own accept queue. Accepted
+ * connections are passed to connection listener of the port, in the same way as connections accepted by the shared
+ * thread.
+ *
+ * @author andrzej
+ */
+public class Acceptors {
+
+	private static final int BACKLOG = 1024;
+	private static final String NETSTAT_FILE = "/proc/net/netstat";
+	private static final long RETRY_DELAY = 10;
+	private static final Logger log = Logger.getLogger(Acceptors.class.getCanonicalName());
+
+	private final List<Acceptor> acceptors = new ArrayList<Acceptor>();
+	private final int count;
+	private final ConnectionOpenListener listener;
+	private final String name;
+
+	/**
+	 * Returns number of connections dropped by kernel due to overflow of accept queues of all listening sockets
+	 *
+	 * @return number of dropped connections or -1 if it is not available
+	 */
+	public static long getListenDrops() {
+		try (BufferedReader reader = new BufferedReader(new FileReader(NETSTAT_FILE))) {
+			String names;
+			while ((names = reader.readLine()) != null) {
+				String values = reader.readLine();
+				if (values == null || !names.startsWith("TcpExt:")) {
+					continue;
+				}
+				String[] keys = names.split(" ");
+				String[] vals = values.split(" ");
+				for (int i = 1; i < keys.length && i < vals.length; i++) {
+					if ("ListenDrops".equals(keys[i])) {
+						return Long.parseLong(vals[i]);
+					}
+				}
+			}
+		} catch (IOException | NumberFormatException ex) {
+			// not available on this system
+		}
+		return -1;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> getReusePortOption() {
+		// option is available since Java 9
+		try {
+			return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (ReflectiveOperationException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Creates acceptors for a port
+	 *
+	 * @param name prefix of names of acceptor threads
+	 * @param listener listener of the port
+	 * @param count number of acceptors for each interface
+	 */
+	public Acceptors(String name, ConnectionOpenListener listener, int count) {
+		this.name = name;
+		this.listener = listener;
+		this.count = count;
+	}
+
+	/**
+	 * Bind listening sockets and start acceptor threads
+	 *
+	 * @throws IOException if any socket could not be bound, already bound sockets are closed
+	 */
+	public void start() throws IOException {
+		SocketOption<Boolean> option = getReusePortOption();
+		if (option == null) {
+			throw new IOException("SO_REUSEPORT is not supported");
+		}
+
+		try {
+			for (String ifc : listener.getIfcs()) {
+				InetSocketAddress address = "*".equals(ifc)
+											? new InetSocketAddress(listener.getPort())
+											: new InetSocketAddress(ifc, listener.getPort());
+				for (int i = 0; i < count; i++) {
+					ServerSocketChannel channel = ServerSocketChannel.open();
+					try {
+						channel.setOption(option, true);
+						channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+						// accepted sockets inherit size of receive buffer, which needs to be set before listening
+						channel.setOption(StandardSocketOptions.SO_RCVBUF, listener.getReceiveBufferSize());
+						channel.bind(address, BACKLOG);
+					} catch (IOException | RuntimeException ex) {
+						channel.close();
+						throw ex;
+					}
+					acceptors.add(new Acceptor(name + "-" + acceptors.size(), channel));
+				}
+			}
+		} catch (IOException | RuntimeException ex) {
+			stop();
+			throw ex;
+		}
+
+		for (Acceptor acceptor : acceptors) {
+			acceptor.start();
+		}
+	}
+
+	/**
+	 * Close listening sockets, which stops acceptor threads
+	 */
+	public void stop() {
+		for (Acceptor acceptor : acceptors) {
+			acceptor.stop();
+		}
+	}
+
+	/**
+	 * Fill statistics list with statistics of acceptors
+	 *
+	 * @param compName
+	 * @param list
+	 */
+	public void getStatistics(String compName, StatisticsList list) {
+		for (Acceptor acceptor : acceptors) {
+			list.add(compName, acceptor.name + " accepted", acceptor.accepted.get(), Level.FINE);
+			list.add(compName, acceptor.name + " accept rate [1/s]", acceptor.accepted.getRate(), Level.FINE);
+			list.add(compName, acceptor.name + " accept errors", acceptor.errors.sum(), Level.FINE);
+		}
+	}
+
+	/**
+	 * Thread accepting connections from a single listening socket
+	 */
+	private class Acceptor
+			implements Runnable {
+
+		// used only to count and estimate rate of accepted connections
+		private final TrafficCounter accepted = new TrafficCounter();
+		private final ServerSocketChannel channel;
+		private final LongAdder errors = new LongAdder();
+		private final String name;
+
+		private Acceptor(String name, ServerSocketChannel channel) {
+			this.name = name;
+			this.channel = channel;
+		}
+
+		@Override
+		public void run() {
+			while (channel.isOpen()) {
+				SocketChannel sc;
+				try {
+					sc = channel.accept();
+				} catch (ClosedChannelException ex) {
+					break;
+				} catch (IOException ex) {
+					// ie. limit of open files was reached, connections wait in accept queue
+					errors.increment();
+					if (log.isLoggable(Level.FINE)) {
+						log.log(Level.FINE, "could not accept connection by " + name, ex);
+					}
+					try {
+						Thread.sleep(RETRY_DELAY);
+					} catch (InterruptedException e) {
+						break;
+					}
+					continue;
+				}
+
+				accepted.add(1);
+				try {
+					sc.configureBlocking(false);
+					sc.setOption(StandardSocketOptions.IP_TOS, listener.getTrafficClass());
+				} catch (IOException ex) {
+					errors.increment();
+					if (log.isLoggable(Level.FINEST)) {
+						log.log(Level.FINEST, "could not configure accepted connection", ex);
+					}
+					try {
+						sc.close();
+					} catch (IOException e) {
+						// connection is closed anyway
+					}
+					continue;
+				}
+				listener.accept(sc);
+			}
+
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "acceptor {0} stopped", name);
+			}
+		}
+
+		private void start() {
+			Thread thread = new Thread(this, name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		private void stop() {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				log.log(Level.FINEST, "exception while closing listening socket of " + name, ex);
+			}
+		}
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import tigase.stats.StatisticsList;
+
+import java.net.InetAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Limits number of open connections and rate of new connections, in total and per source address.
+ * <br>
+ * Counters of source addresses are kept in fixed size table without keys, each address is counted in one slot of each
+ * of two rows selected by different hashes and its value is the smaller one of both counters (count-min sketch). Value
+ * of an address is never lower than real number of its connections, it may be higher only if both its slots are
+ * shared with other busy addresses. All counters are updated without locking, so table may be checked for each
+ * accepted connection before any other resources are allocated for it.
+ * <br>
+ * IPv6 addresses are counted per /64 prefix, as a single host usually has whole prefix available.
+ *
+ * @author andrzej
+ */
+public class AdmissionControl {
+
+	private static final int COUNT_BITS = 24;
+	private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+	private static final int ROWS = 2;
+	private static final int SLOTS = 8192;
+
+	// global counters: open connections and connections in current second
+	private final AtomicLongArray global = new AtomicLongArray(2);
+	private final int maxConnections;
+	private final int maxConnectionsPerAddress;
+	private final int maxRate;
+	private final int maxRatePerAddress;
+	// open connections of addresses
+	private final AtomicLongArray open = new AtomicLongArray(ROWS * SLOTS);
+	// connections of addresses in current second, as number of second and counter packed into single value
+	private final AtomicLongArray rates = new AtomicLongArray(ROWS * SLOTS);
+	private final LongAdder rejectedAddressLimit = new LongAdder();
+	private final LongAdder rejectedAddressRate = new LongAdder();
+	private final LongAdder rejectedLimit = new LongAdder();
+	private final LongAdder rejectedRate = new LongAdder();
+	private final long seed = ThreadLocalRandom.current().nextLong();
+	private final long start = System.nanoTime();
+
+	/**
+	 * Creates admission control
+	 *
+	 * @param maxConnections maximal number of open connections (0 - unlimited)
+	 * @param maxRate maximal number of new connections per second (0 - unlimited)
+	 * @param maxConnectionsPerAddress maximal number of open connections from single address (0 - unlimited)
+	 * @param maxRatePerAddress maximal number of new connections per second from single address (0 - unlimited)
+	 */
+	public AdmissionControl(int maxConnections, int maxRate, int maxConnectionsPerAddress, int maxRatePerAddress) {
+		this.maxConnections = maxConnections;
+		this.maxRate = maxRate;
+		this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+		this.maxRatePerAddress = maxRatePerAddress;
+	}
+
+	/**
+	 * Check if new connection from address may be accepted. Connection is counted as open if it is accepted, so
+	 * {@link #release(InetAddress)} needs to be called after it is closed.
+	 *
+	 * @param address
+	 *
+	 * @return true if connection is accepted
+	 */
+	public boolean admit(InetAddress address) {
+		long key = getKey(address);
+		int slot0 = getSlot(key, 0);
+		int slot1 = getSlot(key, 1);
+		long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start);
+
+		// attempts are counted even if they are rejected, so flooding address is not able to connect until it slows
+		// down, while other addresses are not affected
+		if (maxRatePerAddress > 0 && Math.min(incrementRate(rates, slot0, second), incrementRate(rates, slot1, second)) >
+				maxRatePerAddress) {
+			rejectedAddressRate.increment();
+			return false;
+		}
+		if (maxRate > 0 && incrementRate(global, 1, second) > maxRate) {
+			rejectedRate.increment();
+			return false;
+		}
+
+		if (maxConnectionsPerAddress > 0) {
+			if (Math.min(open.incrementAndGet(slot0), open.incrementAndGet(slot1)) > maxConnectionsPerAddress) {
+				open.decrementAndGet(slot0);
+				open.decrementAndGet(slot1);
+				rejectedAddressLimit.increment();
+				return false;
+			}
+		}
+		if (maxConnections > 0 && global.incrementAndGet(0) > maxConnections) {
+			global.decrementAndGet(0);
+			if (maxConnectionsPerAddress > 0) {
+				open.decrementAndGet(slot0);
+				open.decrementAndGet(slot1);
+			}
+			rejectedLimit.increment();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Release connection from address accepted by {@link #admit(InetAddress)}
+	 *
+	 * @param address
+	 */
+	public void release(InetAddress address) {
+		if (maxConnectionsPerAddress > 0) {
+			long key = getKey(address);
+			open.decrementAndGet(getSlot(key, 0));
+			open.decrementAndGet(getSlot(key, 1));
+		}
+		if (maxConnections > 0) {
+			global.decrementAndGet(0);
+		}
+	}
+
+	/**
+	 * Fill statistics list with statistics of admission control
+	 *
+	 * @param compName
+	 * @param list
+	 */
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Connections rejected by limit", rejectedLimit.sum(), Level.FINE);
+		list.add(compName, "Connections rejected by rate limit", rejectedRate.sum(), Level.FINE);
+		list.add(compName, "Connections rejected by address limit", rejectedAddressLimit.sum(), Level.FINE);
+		list.add(compName, "Connections rejected by address rate limit", rejectedAddressRate.sum(), Level.FINE);
+	}
+
+	/**
+	 * Increase counter of connections in current second
+	 *
+	 * @return value of counter after increase
+	 */
+	private static long incrementRate(AtomicLongArray counters, int idx, long second) {
+		while (true) {
+			long value = counters.get(idx);
+			long updated;
+			if ((value >>> COUNT_BITS) != second) {
+				updated = (second << COUNT_BITS) | 1;
+			} else if ((value & COUNT_MASK) < COUNT_MASK) {
+				updated = value + 1;
+			} else {
+				return COUNT_MASK;
+			}
+			if (counters.compareAndSet(idx, value, updated)) {
+				return updated & COUNT_MASK;
+			}
+		}
+	}
+
+	private static long getKey(InetAddress address) {
+		byte[] bytes = address.getAddress();
+		long key = 0;
+		// only /64 prefix of IPv6 address is used
+		for (int i = 0; i < Math.min(bytes.length, 8); i++) {
+			key = (key << 8) | (bytes[i] & 0xFF);
+		}
+		return bytes.length == 4 ? key | (1L << 32) : key;
+	}
+
+	private int getSlot(long key, int row) {
+		long h = (key ^ seed) + row * 0x9E3779B97F4A7C15L;
+		h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+		h ^= h >>> 31;
+		return row * SLOTS + (int) (h & (SLOTS - 1));
+	}
+}
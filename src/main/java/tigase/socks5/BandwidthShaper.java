@@ -0,0 +1,153 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import tigase.stats.StatisticsList;
+import tigase.xmpp.jid.BareJID;
+import tigase.xmpp.jid.JID;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Keeps token buckets used to limit transfer rate of streams.
+ * <br>
+ * Data read from connection is limited by buckets of stream, user, domain, instance and whole installation. Only
+ * buckets with limit set are created, so unlimited levels add no cost to relaying data. Buckets of users and domains
+ * are shared by all streams of the same user or domain and are removed when last of those streams is closed.
+ * <br>
+ * Global limit is split equally between all cluster nodes.
+ *
+ * @author andrzej
+ */
+public class BandwidthShaper {
+
+	private final ConcurrentHashMap<String, TokenBucket> domains = new ConcurrentHashMap<String, TokenBucket>();
+	private final TokenBucket global;
+	private final long globalRate;
+	private final TokenBucket instance;
+	private final ConcurrentHashMap<BareJID, TokenBucket> users = new ConcurrentHashMap<BareJID, TokenBucket>();
+
+	/**
+	 * Creates shaper
+	 *
+	 * @param globalRate maximal number of bytes per second transferred by all cluster nodes (0 - unlimited)
+	 * @param instanceRate maximal number of bytes per second transferred by this instance (0 - unlimited)
+	 */
+	public BandwidthShaper(long globalRate, long instanceRate) {
+		this.globalRate = globalRate;
+		this.global = globalRate > 0 ? new TokenBucket(globalRate) : null;
+		this.instance = instanceRate > 0 ? new TokenBucket(instanceRate) : null;
+	}
+
+	/**
+	 * Update number of cluster nodes sharing global limit
+	 *
+	 * @param nodes
+	 */
+	public void setClusterNodes(int nodes) {
+		if (global != null) {
+			global.setRate(Math.max(globalRate / Math.max(nodes, 1), 1));
+		}
+	}
+
+	/**
+	 * Returns buckets limiting data read from connection, starting from the most specific one
+	 *
+	 * @param source connection from which data will be read
+	 * @param stream bucket of stream or null if stream is not limited
+	 *
+	 * @return array of buckets or null if data is not limited
+	 */
+	public TokenBucket[] acquire(Socks5IOService source, TokenBucket stream) {
+		List<TokenBucket> buckets = new ArrayList<TokenBucket>(5);
+		if (stream != null) {
+			buckets.add(stream);
+		}
+
+		Limits limits = source.getLimits();
+		JID jid = source.getJID();
+		if (limits != null && jid != null) {
+			long userRate = limits.getTransferRateLimitPerUser();
+			if (userRate > 0) {
+				buckets.add(acquire(users, jid.getBareJID(), userRate));
+			}
+			long domainRate = limits.getTransferRateLimitPerDomain();
+			if (domainRate > 0) {
+				buckets.add(acquire(domains, jid.getDomain(), domainRate));
+			}
+		}
+
+		if (instance != null) {
+			buckets.add(instance);
+		}
+		if (global != null) {
+			buckets.add(global);
+		}
+
+		return buckets.isEmpty() ? null : buckets.toArray(new TokenBucket[buckets.size()]);
+	}
+
+	/**
+	 * Release buckets of user and domain acquired for connection
+	 *
+	 * @param source
+	 */
+	public void release(Socks5IOService source) {
+		Limits limits = source.getLimits();
+		JID jid = source.getJID();
+		if (limits == null || jid == null) {
+			return;
+		}
+
+		if (limits.getTransferRateLimitPerUser() > 0) {
+			release(users, jid.getBareJID());
+		}
+		if (limits.getTransferRateLimitPerDomain() > 0) {
+			release(domains, jid.getDomain());
+		}
+	}
+
+	/**
+	 * Fill statistics list with statistics of shaper
+	 *
+	 * @param compName
+	 * @param list
+	 */
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Rate limited users", users.size(), Level.FINE);
+		list.add(compName, "Rate limited domains", domains.size(), Level.FINE);
+	}
+
+	private <K> TokenBucket acquire(ConcurrentHashMap<K, TokenBucket> buckets, K key, long rate) {
+		return buckets.compute(key, (k, bucket) -> {
+			if (bucket == null) {
+				bucket = new TokenBucket(rate);
+			} else {
+				bucket.setRate(rate);
+			}
+			return bucket.retain();
+		});
+	}
+
+	private <K> void release(ConcurrentHashMap<K, TokenBucket> buckets, K key) {
+		buckets.computeIfPresent(key, (k, bucket) -> bucket.release() ? null : bucket);
+	}
+}
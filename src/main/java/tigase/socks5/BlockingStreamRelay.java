@@ -0,0 +1,268 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.IllegalBlockingModeException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Relay forwarding data between both connections of an activated stream using a thread per direction.
+ * <br>
+ * Each thread reads data from source connection and writes it to destination connection using blocking operations,
+ * so connections of a stream are not handled by socket threads after activation. Connections are switched to
+ * blocking mode only after socket threads released them: after all data written during handshake was sent, the socket
+ * thread which dropped registration of a connection decides not to register it again and signals it to relay
+ * threads waiting for the connection.
+ * <br>
+ * When end of stream is read from connection, output of the other connection is shut down and thread of this
+ * direction ends, while the other thread keeps relaying data. Stream is stopped when both directions reached end of
+ * stream or when any of them fails, which closes both connections and ends the other thread.
+ *
+ * @author andrzej
+ */
+public class BlockingStreamRelay {
+
+	private static final Logger log = Logger.getLogger(BlockingStreamRelay.class.getCanonicalName());
+	private static final long RELEASE_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+	private final Direction[] directions = new Direction[2];
+	// number of directions which have not reached end of stream yet
+	private final AtomicInteger running = new AtomicInteger(2);
+
+	public BlockingStreamRelay(Socks5IOService first, Socks5IOService second, Socks5ConnectionManager manager) {
+		long streamRate = StreamRelay.getStreamRateLimit(first, second);
+		TokenBucket stream = streamRate > 0 ? new TokenBucket(streamRate) : null;
+		directions[0] = new Direction(first, second, manager, stream);
+		directions[1] = new Direction(second, first, manager, stream);
+	}
+
+	/**
+	 * Adds data received from connection before relay was started. This data will be sent before any other data read
+	 * from this connection and returned to the pool after that. Needs to be called before relay is started.
+	 *
+	 * @param source
+	 * @param data buffer borrowed from pool
+	 */
+	public void addEarlyData(Socks5IOService source, ByteBuffer data) {
+		for (Direction direction : directions) {
+			if (direction.source == source) {
+				if (data.hasRemaining()) {
+					direction.earlyData = data;
+				} else {
+					direction.bufferPool.release(data);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts threads relaying data in both directions
+	 *
+	 * @param executor
+	 */
+	public void start(Executor executor) {
+		for (Direction direction : directions) {
+			executor.execute(direction);
+		}
+	}
+
+	/**
+	 * Wait until connection is released by socket thread and switch it to blocking mode. Connection closed in the
+	 * meantime is released as well, so waiting ends when connection is closed after its timeout.
+	 *
+	 * @param con
+	 * @param statistics
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static void awaitRelease(Socks5IOService con, RelayStatistics statistics)
+			throws IOException, InterruptedException {
+		while (!con.awaitReleased(RELEASE_TIMEOUT)) {
+			statistics.releaseDelayed();
+			if (log.isLoggable(Level.FINE)) {
+				log.log(Level.FINE, "connection {0} was not released by socket thread in {1} ms, still waiting",
+						new Object[]{con, RELEASE_TIMEOUT});
+			}
+		}
+		try {
+			con.getSocketChannel().configureBlocking(true);
+		} catch (IllegalBlockingModeException ex) {
+			throw new IOException("connection " + con + " is still registered by socket thread", ex);
+		}
+	}
+
+	/**
+	 * Single direction of a relay
+	 */
+	private class Direction
+			implements Runnable {
+
+		private final BandwidthShaper bandwidthShaper;
+		private final BufferPool bufferPool;
+		private final Socks5IOService destination;
+		private final Socks5ConnectionManager manager;
+		private final Socks5IOService source;
+		private final RelayStatistics statistics;
+		private final TokenBucket[] buckets;
+		// data received before relay was started
+		private ByteBuffer earlyData = null;
+
+		private Direction(Socks5IOService source, Socks5IOService destination, Socks5ConnectionManager manager,
+						  TokenBucket stream) {
+			this.source = source;
+			this.destination = destination;
+			this.manager = manager;
+			this.bufferPool = manager.getBufferPool();
+			this.bandwidthShaper = manager.getBandwidthShaper();
+			this.statistics = manager.getRelayStatistics();
+			this.buckets = bandwidthShaper.acquire(source, stream);
+		}
+
+		@Override
+		public void run() {
+			ByteBuffer buffer = null;
+			boolean stop = true;
+			statistics.relayThreadStarted();
+			try {
+				awaitRelease(source, statistics);
+				awaitRelease(destination, statistics);
+
+				if (earlyData != null) {
+					write(earlyData);
+					bufferPool.release(earlyData);
+					earlyData = null;
+				}
+
+				buffer = bufferPool.borrow(bufferPool.getMinBufferSize());
+				while (true) {
+					buffer.clear();
+					if (buckets != null) {
+						long allowed = getAllowed();
+						if (allowed < buffer.capacity()) {
+							buffer.limit((int) allowed);
+						}
+					}
+
+					int read = source.getSocketChannel().read(buffer);
+					statistics.readCall();
+					if (read == -1) {
+						if (log.isLoggable(Level.FINEST)) {
+							log.log(Level.FINEST, "{0} reached end of stream, shutting down output of {1}",
+									new Object[]{source, destination});
+						}
+						destination.getSocketChannel().shutdownOutput();
+						// stream is stopped by the last finished direction
+						stop = running.decrementAndGet() == 0;
+						break;
+					}
+					source.addBytesReceived(read);
+					if (buckets != null) {
+						for (TokenBucket bucket : buckets) {
+							bucket.consume(read);
+						}
+					}
+
+					buffer.flip();
+					write(buffer);
+
+					// adjust buffer to amount of data read at once, starting from small buffers
+					int size = buffer.capacity();
+					if (read == size) {
+						size = bufferPool.getNextSize(size);
+					} else if (read < size / 8) {
+						size = bufferPool.getPreviousSize(size);
+					}
+					if (size != buffer.capacity()) {
+						bufferPool.release(buffer);
+						buffer = bufferPool.borrow(size);
+					}
+
+					manager.socketDataProcessed(source);
+				}
+			} catch (ClosedChannelException ex) {
+				// stream was closed by the other direction
+			} catch (IOException ex) {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "stopping service after exception " + ex.getMessage(), ex);
+				}
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			} finally {
+				if (buffer != null) {
+					bufferPool.release(buffer);
+				}
+				if (earlyData != null) {
+					bufferPool.release(earlyData);
+					earlyData = null;
+				}
+				if (buckets != null) {
+					bandwidthShaper.release(source);
+				}
+				statistics.relayThreadStopped();
+				if (stop) {
+					source.forceStop();
+				}
+			}
+		}
+
+		/**
+		 * Returns number of bytes which may be read, waiting until transfer rate limits allow reading
+		 *
+		 * @return
+		 *
+		 * @throws InterruptedException
+		 */
+		private long getAllowed() throws InterruptedException {
+			while (true) {
+				long allowed = Long.MAX_VALUE;
+				long delay = 0;
+				for (TokenBucket bucket : buckets) {
+					allowed = Math.min(allowed, bucket.available());
+					delay = Math.max(delay, bucket.getDelay());
+				}
+				if (allowed > 0) {
+					return allowed;
+				}
+				statistics.throttled();
+				TimeUnit.NANOSECONDS.sleep(delay);
+			}
+		}
+
+		private void write(ByteBuffer data) throws IOException {
+			int written = 0;
+			while (data.hasRemaining()) {
+				int bytes = destination.getSocketChannel().write(data);
+				statistics.writeCall(bytes);
+				written += bytes;
+			}
+			destination.addBytesSent(written);
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "{0} written data: {1}", new Object[]{destination, written});
+			}
+		}
+	}
+}
@@ -0,0 +1,212 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import tigase.stats.StatisticsList;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Pool of direct buffers in size classes.
+ * <br>
+ * Sizes of buffers are powers of two starting from minimal size, up to maximal size. Buffers are sliced from slabs
+ * allocated on demand, until memory reserved for pooled buffers (maximal number of buffers of maximal size) is used.
+ * If there is no free buffer of requested size in the pool and limit is reached, new heap buffer is allocated outside
+ * of the pool and it is left for garbage collector after it is released.
+ *
+ * @author andrzej
+ */
+public class BufferPool {
+
+	private static final int BUFFERS_PER_SLAB = 16;
+
+	private final AtomicInteger allocated = new AtomicInteger(0);
+	private final AtomicLong allocatedBytes = new AtomicLong(0);
+	private final AtomicInteger borrowed = new AtomicInteger(0);
+	private final ConcurrentLinkedQueue<ByteBuffer>[] free;
+	private final AtomicInteger highWaterMark = new AtomicInteger(0);
+	private final long maxBytes;
+	private final AtomicLong misses = new AtomicLong(0);
+	private final int[] sizes;
+
+	@SuppressWarnings("unchecked")
+	public BufferPool(int minBufferSize, int maxBufferSize, int maxBuffers) {
+		List<Integer> sizes = new ArrayList<Integer>();
+		int size = Math.max(Math.min(minBufferSize, maxBufferSize), 1);
+		while (size < maxBufferSize) {
+			sizes.add(size);
+			size = size * 2;
+		}
+		sizes.add(maxBufferSize);
+
+		this.sizes = new int[sizes.size()];
+		this.free = new ConcurrentLinkedQueue[sizes.size()];
+		for (int i = 0; i < this.sizes.length; i++) {
+			this.sizes[i] = sizes.get(i);
+			this.free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+		}
+		this.maxBytes = (long) maxBufferSize * maxBuffers;
+	}
+
+	/**
+	 * Returns free buffer of maximal size from pool, allocating new one if needed
+	 *
+	 * @return cleared buffer
+	 */
+	public ByteBuffer borrow() {
+		return borrow(getMaxBufferSize());
+	}
+
+	/**
+	 * Returns free buffer from pool, allocating new one if needed
+	 *
+	 * @param size minimal size of buffer, buffer will not be bigger than maximal size of pooled buffer
+	 *
+	 * @return cleared buffer
+	 */
+	public ByteBuffer borrow(int size) {
+		int idx = getSizeClass(size);
+		ByteBuffer buffer = free[idx].poll();
+		if (buffer == null) {
+			buffer = allocate(idx);
+		}
+
+		int inUse = borrowed.incrementAndGet();
+		int max;
+		while (inUse > (max = highWaterMark.get())) {
+			if (highWaterMark.compareAndSet(max, inUse)) {
+				break;
+			}
+		}
+
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Returns buffer to the pool
+	 *
+	 * @param buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		borrowed.decrementAndGet();
+		// only direct buffers are sliced from slabs
+		if (buffer.isDirect()) {
+			int idx = getSizeClass(buffer.capacity());
+			if (sizes[idx] == buffer.capacity()) {
+				free[idx].offer(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Returns size of the biggest buffers in this pool
+	 *
+	 * @return
+	 */
+	public int getMaxBufferSize() {
+		return sizes[sizes.length - 1];
+	}
+
+	/**
+	 * Returns size of the smallest buffers in this pool
+	 *
+	 * @return
+	 */
+	public int getMinBufferSize() {
+		return sizes[0];
+	}
+
+	/**
+	 * Returns size of buffers bigger than buffers of passed size
+	 *
+	 * @param size
+	 *
+	 * @return next size or the same size if there are no bigger buffers
+	 */
+	public int getNextSize(int size) {
+		return sizes[Math.min(getSizeClass(size) + 1, sizes.length - 1)];
+	}
+
+	/**
+	 * Returns size of buffers smaller than buffers of passed size
+	 *
+	 * @param size
+	 *
+	 * @return previous size or the same size if there are no smaller buffers
+	 */
+	public int getPreviousSize(int size) {
+		return sizes[Math.max(getSizeClass(size) - 1, 0)];
+	}
+
+	/**
+	 * Fill statistics list with statistics of pool
+	 *
+	 * @param compName
+	 * @param list
+	 */
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Relay buffers in use", borrowed.get(), Level.FINE);
+		list.add(compName, "Relay buffers in use high-water mark", highWaterMark.get(), Level.FINE);
+		list.add(compName, "Relay buffers pooled", allocated.get(), Level.FINE);
+		list.add(compName, "Relay buffers pooled KB", allocatedBytes.get() / 1024, Level.FINE);
+		list.add(compName, "Relay buffer pool misses", misses.get(), Level.FINE);
+	}
+
+	private ByteBuffer allocate(int idx) {
+		int bufferSize = sizes[idx];
+		long slabSize = (long) bufferSize * BUFFERS_PER_SLAB;
+		long bytes;
+		while ((bytes = allocatedBytes.get()) + slabSize <= maxBytes) {
+			if (allocatedBytes.compareAndSet(bytes, bytes + slabSize)) {
+				allocated.addAndGet(BUFFERS_PER_SLAB);
+				ByteBuffer slab = ByteBuffer.allocateDirect((int) slabSize);
+				ByteBuffer first = null;
+				for (int i = 0; i < BUFFERS_PER_SLAB; i++) {
+					slab.limit((i + 1) * bufferSize);
+					slab.position(i * bufferSize);
+					ByteBuffer buffer = slab.slice();
+					if (first == null) {
+						first = buffer;
+					} else {
+						free[idx].offer(buffer);
+					}
+				}
+				return first;
+			}
+		}
+
+		misses.incrementAndGet();
+		return ByteBuffer.allocate(bufferSize);
+	}
+
+	private int getSizeClass(int size) {
+		for (int i = 0; i < sizes.length; i++) {
+			if (size <= sizes[i]) {
+				return i;
+			}
+		}
+		return sizes.length - 1;
+	}
+}
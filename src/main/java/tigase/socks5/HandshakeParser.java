@@ -0,0 +1,208 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parser of Socks5 WELCOME and CONNECT messages working in place on the buffer with data read from socket.
+ * <br>
+ * Message is consumed from the buffer only if it is complete, otherwise position of the buffer is not changed so
+ * parsing may be retried after more data is read.
+ *
+ * @author andrzej
+ */
+public final class HandshakeParser {
+
+	/**
+	 * Possible results of parsing a message
+	 */
+	public static enum Result {
+		Incomplete,
+		Accepted,
+		Rejected,
+		Invalid
+	}
+
+	public static final byte VERSION = 0x05;
+
+	private static final byte ATYPE_DOMAIN = 0x03;
+	private static final byte CMD_CONNECT = 0x01;
+	private static final int CONNECT_HEADER_LENGTH = 5;
+	private static final int CONNECT_PORT_LENGTH = 2;
+	private static final byte METHOD_NO_AUTH = 0x00;
+	private static final byte REPLY_SUCCEEDED = 0x00;
+	// reply for CONNECT up to DST.ADDR, which is copied from request, followed by cleared port
+	private static final byte[] CONNECT_REPLY_HEADER = new byte[]{VERSION, REPLY_SUCCEEDED, 0x00, ATYPE_DOMAIN};
+	private static final byte[] CONNECT_REPLY_PORT = new byte[CONNECT_PORT_LENGTH];
+	private static final int WELCOME_HEADER_LENGTH = 2;
+	private static final byte[] WELCOME_REPLY = new byte[]{VERSION, METHOD_NO_AUTH};
+	private static final ByteBuffer WELCOME_ACCEPTED = ByteBuffer.wrap(WELCOME_REPLY).asReadOnlyBuffer();
+
+	/**
+	 * Parse WELCOME message
+	 *
+	 * @param in buffer with data read from socket
+	 *
+	 * @return
+	 */
+	public static Result parseWelcome(ByteBuffer in) {
+		int start = in.position();
+		if (in.remaining() < WELCOME_HEADER_LENGTH) {
+			return Result.Incomplete;
+		}
+		if (in.get(start) != VERSION) {
+			return Result.Invalid;
+		}
+
+		int count = in.get(start + 1) & 0xFF;
+		if (in.remaining() < WELCOME_HEADER_LENGTH + count) {
+			return Result.Incomplete;
+		}
+
+		boolean ok = false;
+		for (int i = start + WELCOME_HEADER_LENGTH; i < start + WELCOME_HEADER_LENGTH + count; i++) {
+			if (in.get(i) == METHOD_NO_AUTH) {
+				ok = true;
+				break;
+			}
+		}
+
+		in.position(start + WELCOME_HEADER_LENGTH + count);
+		return ok ? Result.Accepted : Result.Rejected;
+	}
+
+	/**
+	 * Parse CONNECT message
+	 *
+	 * @param in buffer with data read from socket
+	 *
+	 * @return
+	 */
+	public static Result parseConnect(ByteBuffer in) {
+		int start = in.position();
+		if (in.remaining() < CONNECT_HEADER_LENGTH) {
+			return Result.Incomplete;
+		}
+		if (in.get(start) != VERSION) {
+			return Result.Invalid;
+		}
+		if (in.get(start + 1) != CMD_CONNECT || in.get(start + 3) != ATYPE_DOMAIN) {
+			return Result.Rejected;
+		}
+
+		int len = in.get(start + 4) & 0xFF;
+		if (in.remaining() < CONNECT_HEADER_LENGTH + len + CONNECT_PORT_LENGTH) {
+			return Result.Incomplete;
+		}
+
+		in.position(start + CONNECT_HEADER_LENGTH + len + CONNECT_PORT_LENGTH);
+		return Result.Accepted;
+	}
+
+	/**
+	 * Returns position of DST.ADDR of CONNECT message starting at passed position
+	 *
+	 * @param start position of CONNECT message
+	 *
+	 * @return
+	 */
+	public static int getDestinationAddressOffset(int start) {
+		return start + CONNECT_HEADER_LENGTH;
+	}
+
+	/**
+	 * Returns length of DST.ADDR of CONNECT message starting at passed position
+	 *
+	 * @param in
+	 * @param start position of CONNECT message
+	 *
+	 * @return
+	 */
+	public static int getDestinationAddressLength(ByteBuffer in, int start) {
+		return in.get(start + 4) & 0xFF;
+	}
+
+	/**
+	 * Returns DST.ADDR of CONNECT message starting at passed position
+	 *
+	 * @param in
+	 * @param start position of CONNECT message
+	 *
+	 * @return
+	 */
+	public static String getDestinationAddress(ByteBuffer in, int start) {
+		int len = in.get(start + 4) & 0xFF;
+		int offset = start + CONNECT_HEADER_LENGTH;
+		if (in.hasArray()) {
+			return new String(in.array(), in.arrayOffset() + offset, len, StandardCharsets.US_ASCII);
+		}
+
+		char[] chars = new char[len];
+		for (int i = 0; i < len; i++) {
+			chars[i] = (char) (in.get(offset + i) & 0xFF);
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Returns reply for CONNECT message starting at passed position.
+	 * <br>
+	 * Reply is kept by service until it is written to socket, so it is a new buffer filled from precomputed header
+	 * and DST.ADDR copied from request.
+	 *
+	 * @param in
+	 * @param start position of CONNECT message
+	 * @param withWelcomeReply if reply for WELCOME message should be sent in the same buffer before reply for CONNECT
+	 * message (used when client pipelined both messages)
+	 *
+	 * @return
+	 */
+	public static ByteBuffer getConnectReply(ByteBuffer in, int start, boolean withWelcomeReply) {
+		int len = in.get(start + 4) & 0xFF;
+		int welcomeLength = withWelcomeReply ? WELCOME_REPLY.length : 0;
+		ByteBuffer reply = ByteBuffer.allocate(welcomeLength + CONNECT_HEADER_LENGTH + len + CONNECT_PORT_LENGTH);
+
+		if (withWelcomeReply) {
+			reply.put(WELCOME_REPLY);
+		}
+		reply.put(CONNECT_REPLY_HEADER);
+		int offset = start + CONNECT_REPLY_HEADER.length;
+		for (int i = 0; i <= len; i++) {
+			// length of DST.ADDR followed by DST.ADDR
+			reply.put(in.get(offset + i));
+		}
+		reply.put(CONNECT_REPLY_PORT);
+		reply.flip();
+
+		return reply;
+	}
+
+	/**
+	 * Returns reply for accepted WELCOME message
+	 *
+	 * @return
+	 */
+	public static ByteBuffer getWelcomeReply() {
+		return WELCOME_ACCEPTED.duplicate();
+	}
+
+	private HandshakeParser() {
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import tigase.stats.StatisticsList;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+
+/**
+ * Histogram of non-negative values with fixed memory usage.
+ * <br>
+ * Values are counted in log-linear buckets: each power of two range is split into {@value #SUB_BUCKETS} buckets of
+ * equal width, so value reported for a percentile differs from recorded values by less than 1/{@value #SUB_BUCKETS}.
+ * Recording a value increments a single counter without allocation or locking. Percentiles are calculated from
+ * counters read one by one, so they may not include values recorded while statistics are calculated.
+ *
+ * @author andrzej
+ */
+public class Histogram {
+
+	private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+	private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// values below SUB_BUCKETS are counted exactly, bigger values in SUB_BUCKETS buckets per power of two
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final String name;
+	private final String unit;
+
+	/**
+	 * Creates histogram
+	 *
+	 * @param name name used in statistics
+	 * @param unit unit of recorded values used in statistics
+	 */
+	public Histogram(String name, String unit) {
+		this.name = name;
+		this.unit = unit;
+	}
+
+	/**
+	 * Record value, negative values are recorded as 0
+	 *
+	 * @param value
+	 */
+	public void record(long value) {
+		counts.incrementAndGet(getBucket(Math.max(value, 0)));
+	}
+
+	/**
+	 * Fill statistics list with count and percentiles of recorded values
+	 *
+	 * @param compName
+	 * @param list
+	 */
+	public void getStatistics(String compName, StatisticsList list) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+
+		list.add(compName, name + " count", total, Level.FINE);
+		for (int i = 0; i < PERCENTILES.length; i++) {
+			list.add(compName, name + " " + PERCENTILE_NAMES[i] + " [" + unit + "]",
+					 getPercentile(snapshot, total, PERCENTILES[i]), Level.FINE);
+		}
+	}
+
+	private static int getBucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Returns highest value counted in bucket
+	 *
+	 * @param bucket
+	 *
+	 * @return
+	 */
+	private static long getHighestValue(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long subBucket = SUB_BUCKETS + bucket % SUB_BUCKETS;
+		long next = (subBucket + 1) << shift;
+		// the last bucket ends at maximal value of long
+		return next <= 0 ? Long.MAX_VALUE : next - 1;
+	}
+
+	private static long getPercentile(long[] snapshot, long total, double percentile) {
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max((long) Math.ceil(percentile * total), 1);
+		long count = 0;
+		for (int i = 0; i < snapshot.length; i++) {
+			count += snapshot[i];
+			if (count >= rank) {
+				return getHighestValue(i);
+			}
+		}
+		return getHighestValue(snapshot.length - 1);
+	}
+}
@@ -25,6 +25,9 @@ public class Limits {
 	private long transferLimitPerDomain = 0;
 	private long transferLimitPerFile = 0;
 	private long transferLimitPerUser = 0;
+	private long transferRateLimitPerDomain = 0;
+	private long transferRateLimitPerFile = 0;
+	private long transferRateLimitPerUser = 0;
 
 	public long getTransferLimitPerFile() {
 		return transferLimitPerFile;
@@ -50,4 +53,28 @@ public class Limits {
 		this.transferLimitPerDomain = transferLimit;
 	}
 
+	public long getTransferRateLimitPerFile() {
+		return transferRateLimitPerFile;
+	}
+
+	public void setTransferRateLimitPerFile(long rateLimit) {
+		this.transferRateLimitPerFile = rateLimit;
+	}
+
+	public long getTransferRateLimitPerUser() {
+		return transferRateLimitPerUser;
+	}
+
+	public void setTransferRateLimitPerUser(long rateLimit) {
+		this.transferRateLimitPerUser = rateLimit;
+	}
+
+	public long getTransferRateLimitPerDomain() {
+		return transferRateLimitPerDomain;
+	}
+
+	public void setTransferRateLimitPerDomain(long rateLimit) {
+		this.transferRateLimitPerDomain = rateLimit;
+	}
+
 }
@@ -0,0 +1,255 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Selector loop owned by Socks5 component, relaying data of activated streams.
+ * <br>
+ * Both connections of a stream are registered in the same loop when stream is activated, so data of a stream is
+ * always read and written by the same thread. Connections are registered only after activation - Socks5 handshake is
+ * still handled by socket threads.
+ * <br>
+ * Other threads never change registrations directly, they add tasks which are executed by the loop thread after it is
+ * woken up.
+ *
+ * @author andrzej
+ */
+public class RelayLoop
+		implements Runnable {
+
+	private static final Logger log = Logger.getLogger(RelayLoop.class.getCanonicalName());
+
+	private final Socks5ConnectionManager manager;
+	private final String name;
+	private final Selector selector;
+	private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	private volatile boolean stopped = false;
+	private Thread thread = null;
+
+	public RelayLoop(String name, Socks5ConnectionManager manager) throws IOException {
+		this.name = name;
+		this.manager = manager;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Starts thread of the loop
+	 */
+	public void start() {
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the loop, connections registered in loop are closed by the loop thread before it exits
+	 */
+	public void stop() {
+		stopped = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * Register both connections of activated stream in this loop
+	 *
+	 * @param stream
+	 * @param relay
+	 */
+	public void register(Stream stream, StreamRelay relay) {
+		execute(() -> {
+			for (Socks5ConnectionType type : Socks5ConnectionType.values()) {
+				Socks5IOService con = stream.getConnection(type);
+				try {
+					con.getSocketChannel().register(selector, 0, con);
+				} catch (IOException ex) {
+					if (log.isLoggable(Level.FINEST)) {
+						log.log(Level.FINEST, "could not register connection " + con + " in relay loop", ex);
+					}
+					con.forceStop();
+					return;
+				}
+			}
+			// data received before activation is sent immediately, unless data written during handshake is still
+			// sent by socket thread
+			for (Socks5ConnectionType type : Socks5ConnectionType.values()) {
+				Socks5IOService con = stream.getConnection(type);
+				if (relay.hasPendingOutput(con) && con.isSocketOutputEmpty()) {
+					try {
+						relay.flush(con);
+					} catch (IOException ex) {
+						if (log.isLoggable(Level.FINEST)) {
+							log.log(Level.FINEST, "could not send data received before activation to " + con, ex);
+						}
+						con.forceStop();
+						return;
+					}
+				}
+			}
+			for (Socks5ConnectionType type : Socks5ConnectionType.values()) {
+				updateInterest(stream.getConnection(type), relay);
+			}
+		});
+	}
+
+	/**
+	 * Update operations for which connection is waiting, ie. after reading from connection was resumed or data written
+	 * to connection by socket thread was sent
+	 *
+	 * @param con
+	 */
+	public void update(Socks5IOService con) {
+		execute(() -> {
+			StreamRelay relay = getRelay(con);
+			if (relay != null) {
+				updateInterest(con, relay);
+			}
+		});
+	}
+
+	/**
+	 * Returns number of connections registered in this loop
+	 *
+	 * @return
+	 */
+	public int getConnectionsCount() {
+		return selector.keys().size();
+	}
+
+	@Override
+	public void run() {
+		while (!stopped) {
+			try {
+				selector.select();
+
+				Runnable task;
+				while ((task = tasks.poll()) != null) {
+					task.run();
+				}
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					process(key);
+				}
+			} catch (ClosedSelectorException ex) {
+				break;
+			} catch (Exception ex) {
+				log.log(Level.WARNING, "exception in relay loop " + name, ex);
+			}
+		}
+
+		// connections would not be relayed by anyone after loop exits
+		for (SelectionKey key : selector.keys().toArray(new SelectionKey[0])) {
+			try {
+				((Socks5IOService) key.attachment()).forceStop();
+			} catch (Exception ex) {
+				log.log(Level.FINEST, "exception while stopping connection of relay loop " + name, ex);
+			}
+		}
+
+		try {
+			selector.close();
+		} catch (IOException ex) {
+			log.log(Level.FINEST, "exception while closing selector of relay loop " + name, ex);
+		}
+	}
+
+	private void execute(Runnable task) {
+		tasks.offer(task);
+		selector.wakeup();
+	}
+
+	private StreamRelay getRelay(Socks5IOService con) {
+		Stream stream = con.getStream();
+		return stream == null ? null : stream.getRelay();
+	}
+
+	private void process(SelectionKey key) {
+		Socks5IOService con = (Socks5IOService) key.attachment();
+		Stream stream = con.getStream();
+		StreamRelay relay = getRelay(con);
+		if (relay == null || !key.isValid()) {
+			return;
+		}
+
+		try {
+			if (key.isReadable()) {
+				relay.relay(con);
+				manager.socketDataProcessed(con);
+			}
+			if (key.isValid() && key.isWritable()) {
+				relay.flush(con);
+			}
+			if (relay.isFinished()) {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "stopping service {0} after reaching end of stream in both directions",
+							con);
+				}
+				con.forceStop();
+				return;
+			}
+		} catch (IOException ex) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "stopping service after exception " + ex.getMessage(), ex);
+			}
+			con.forceStop();
+			return;
+		} catch (CancelledKeyException ex) {
+			// connection was closed while data was processed
+			return;
+		}
+
+		updateInterest(con, relay);
+		updateInterest(stream.getSecondConnection(con), relay);
+	}
+
+	private void updateInterest(Socks5IOService con, StreamRelay relay) {
+		SelectionKey key = con.getSocketChannel().keyFor(selector);
+		if (key == null || !key.isValid()) {
+			return;
+		}
+
+		int ops = 0;
+		if (relay.canRead(con)) {
+			ops |= SelectionKey.OP_READ;
+		}
+		// data written during handshake is sent by socket thread, which will update registration when it is done
+		if (relay.hasPendingOutput(con) && con.isSocketOutputEmpty()) {
+			ops |= SelectionKey.OP_WRITE;
+		}
+
+		try {
+			if (key.interestOps() != ops) {
+				key.interestOps(ops);
+			}
+		} catch (CancelledKeyException ex) {
+			// connection was closed
+		}
+	}
+}
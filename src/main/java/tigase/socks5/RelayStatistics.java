@@ -0,0 +1,144 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import tigase.stats.StatisticsList;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * Statistics of relays of all streams handled by a connection manager.
+ * <br>
+ * Counters are updated by socket threads without locking, so values read for statistics may be slightly out of sync
+ * with each other.
+ *
+ * @author andrzej
+ */
+public class RelayStatistics {
+
+	private final LongAdder handoffs = new LongAdder();
+	private final LongAdder handoffsContended = new LongAdder();
+	private final LongAdder holdTime = new LongAdder();
+	private final AtomicLong maxHoldTime = new AtomicLong(0);
+	private final LongAdder readCalls = new LongAdder();
+	private final AtomicInteger relayThreads = new AtomicInteger(0);
+	private final LongAdder releaseDelays = new LongAdder();
+	private final LongAdder throttled = new LongAdder();
+	private final LongAdder writeCalls = new LongAdder();
+	private final LongAdder written = new LongAdder();
+
+	/**
+	 * Record that direction of a relay was taken over by a thread
+	 *
+	 * @param nanos time for which direction was owned by a thread
+	 */
+	public void handoff(long nanos) {
+		handoffs.increment();
+		holdTime.add(nanos);
+
+		long max;
+		while (nanos > (max = maxHoldTime.get())) {
+			if (maxHoldTime.compareAndSet(max, nanos)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Record that thread did not take over direction of a relay as it was owned by other thread
+	 */
+	public void handoffContended() {
+		handoffsContended.increment();
+	}
+
+	/**
+	 * Record single read from source connection of a relay
+	 */
+	public void readCall() {
+		readCalls.increment();
+	}
+
+	/**
+	 * Record single (possibly gathering) write to destination connection of a relay
+	 *
+	 * @param bytes number of bytes written
+	 */
+	public void writeCall(long bytes) {
+		writeCalls.increment();
+		if (bytes > 0) {
+			written.add(bytes);
+		}
+	}
+
+	/**
+	 * Record that thread relaying direction of a stream was started
+	 */
+	public void relayThreadStarted() {
+		relayThreads.incrementAndGet();
+	}
+
+	/**
+	 * Record that thread relaying direction of a stream was stopped
+	 */
+	public void relayThreadStopped() {
+		relayThreads.decrementAndGet();
+	}
+
+	/**
+	 * Record that thread relaying direction of a stream is still waiting for connection to be released by socket
+	 * thread after timeout
+	 */
+	public void releaseDelayed() {
+		releaseDelays.increment();
+	}
+
+	/**
+	 * Record that reading from connection was paused due to transfer rate limit
+	 */
+	public void throttled() {
+		throttled.increment();
+	}
+
+	/**
+	 * Fill statistics list with statistics of relays
+	 *
+	 * @param compName
+	 * @param list
+	 */
+	public void getStatistics(String compName, StatisticsList list) {
+		long count = handoffs.sum();
+		list.add(compName, "Relay handoffs", count, Level.FINE);
+		list.add(compName, "Relay handoffs contended", handoffsContended.sum(), Level.FINE);
+		list.add(compName, "Relay average hold time [ns]", count == 0 ? 0 : holdTime.sum() / count, Level.FINE);
+		list.add(compName, "Relay max hold time [ns]", maxHoldTime.get(), Level.FINE);
+		list.add(compName, "Relay reads throttled", throttled.sum(), Level.FINE);
+		list.add(compName, "Relay threads", relayThreads.get(), Level.FINE);
+		list.add(compName, "Relay threads release delays", releaseDelays.sum(), Level.FINE);
+
+		long reads = readCalls.sum();
+		long writes = writeCalls.sum();
+		long megabytes = written.sum() / (1024 * 1024);
+		list.add(compName, "Relay read syscalls", reads, Level.FINE);
+		list.add(compName, "Relay write syscalls", writes, Level.FINE);
+		list.add(compName, "Relay syscalls per MB", megabytes == 0 ? 0 : (reads + writes) / megabytes, Level.FINE);
+		list.add(compName, "Relay write syscalls per MB", megabytes == 0 ? 0 : writes / megabytes, Level.FINE);
+	}
+}
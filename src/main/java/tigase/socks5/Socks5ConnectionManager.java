@@ -19,11 +19,17 @@ package tigase.socks5;
 
 //~--- non-JDK imports --------------------------------------------------------
 
+import tigase.kernel.beans.config.ConfigField;
+import tigase.net.SocketThread;
 import tigase.stats.StatisticsList;
-import tigase.util.common.TimerTask;
 
 import java.io.IOException;
-import java.util.concurrent.ConcurrentHashMap;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
@@ -41,12 +47,75 @@ public abstract class Socks5ConnectionManager
 		extends AbstractConnectionManager<Socks5IOService<?>> {
 
 	private static final Logger log = Logger.getLogger(Socks5ConnectionManager.class.getCanonicalName());
-	private static final long STREAM_CREATION_TIMEOUT = TimeUnit.MINUTES.toMillis(2);
+	private static final long ACTIVATION_TIMEOUT_VAL = 120;
+	private static final int BUFFER_POOL_SIZE_VAL = 1024;
+	private static final int EARLY_DATA_LIMIT_VAL = 16 * 1024;
+	private static final long GLOBAL_RATE_LIMIT_VAL = 0;
+	private static final long INSTANCE_RATE_LIMIT_VAL = 0;
+	private static final int MAX_CONNECTION_RATE_PER_ADDRESS_VAL = 0;
+	private static final int MAX_CONNECTION_RATE_VAL = 0;
+	private static final int MAX_CONNECTIONS_PER_ADDRESS_VAL = 0;
+	private static final int MAX_CONNECTIONS_VAL = 0;
+	private static final int RELAY_HIGH_WATERMARK_VAL = 256 * 1024;
+	private static final int RELAY_MIN_BUFFER_SIZE_VAL = 4 * 1024;
+	private static final String RELAY_MODE_LOOP = "loop";
+	private static final String RELAY_MODE_SELECTOR = "selector";
+	private static final String RELAY_MODE_THREAD = "thread";
+	private static final int RELAY_LOW_WATERMARK_VAL = 64 * 1024;
+	private static final int RESUME_WHEEL_SLOTS = 1024;
+	private static final long RESUME_WHEEL_TICK = 1;
+	private static final long STREAM_IDLE_TIMEOUT_VAL = 0;
+	private static final long STREAM_MAX_LIFETIME_VAL = 0;
+	private static final int TIMER_WHEEL_SLOTS = 1024;
+	private static final long TIMER_WHEEL_TICK = 100;
+	// creates executor with virtual thread per task, null if virtual threads are not supported by JVM
+	private static final Method VIRTUAL_THREAD_EXECUTOR_FACTORY = getVirtualThreadExecutorFactory();
 
 	//~--- fields ---------------------------------------------------------------
+	@ConfigField(desc = "Time in seconds after which connection is closed if its stream was not activated", alias = "activation-timeout")
+	private long activationTimeout = ACTIVATION_TIMEOUT_VAL;
+	private volatile AdmissionControl admissionControl = null;
+	@ConfigField(desc = "Maximal number of pooled relay buffers", alias = "buffer-pool-size")
+	private int bufferPoolSize = BUFFER_POOL_SIZE_VAL;
+	private volatile BufferPool bufferPool = null;
+	private volatile BandwidthShaper bandwidthShaper = null;
+	@ConfigField(desc = "Maximal size of data received by connection before stream is activated", alias = "early-data-limit")
+	private int earlyDataLimit = EARLY_DATA_LIMIT_VAL;
+	@ConfigField(desc = "Transfer rate limit of all cluster nodes in bytes per second", alias = "global-rate-limit")
+	private long globalRateLimit = GLOBAL_RATE_LIMIT_VAL;
+	@ConfigField(desc = "Transfer rate limit of this instance in bytes per second", alias = "instance-rate-limit")
+	private long instanceRateLimit = INSTANCE_RATE_LIMIT_VAL;
+	@ConfigField(desc = "Maximal number of new connections per second (0 - unlimited)", alias = "max-connection-rate")
+	private int maxConnectionRate = MAX_CONNECTION_RATE_VAL;
+	@ConfigField(desc = "Maximal number of new connections per second from single address (0 - unlimited)", alias = "max-connection-rate-per-address")
+	private int maxConnectionRatePerAddress = MAX_CONNECTION_RATE_PER_ADDRESS_VAL;
+	@ConfigField(desc = "Maximal number of open connections (0 - unlimited)", alias = "max-connections")
+	private int maxConnections = MAX_CONNECTIONS_VAL;
+	@ConfigField(desc = "Maximal number of open connections from single address (0 - unlimited)", alias = "max-connections-per-address")
+	private int maxConnectionsPerAddress = MAX_CONNECTIONS_PER_ADDRESS_VAL;
 	private AtomicLong kbytesTransferred = new AtomicLong(0);
+	@ConfigField(desc = "Number of bytes waiting to be sent to recipient after which reading from sender is paused", alias = "relay-high-watermark")
+	private int relayHighWatermark = RELAY_HIGH_WATERMARK_VAL;
+	@ConfigField(desc = "Number of bytes waiting to be sent to recipient at which reading from sender is resumed", alias = "relay-low-watermark")
+	private int relayLowWatermark = RELAY_LOW_WATERMARK_VAL;
+	@ConfigField(desc = "Initial size of relay buffer, buffers grow up to size of network buffer", alias = "relay-min-buffer-size")
+	private int relayMinBufferSize = RELAY_MIN_BUFFER_SIZE_VAL;
+	@ConfigField(desc = "Mode of relaying data of activated streams (selector, loop or thread)", alias = "relay-mode")
+	private String relayMode = RELAY_MODE_SELECTOR;
+	private volatile ExecutorService relayExecutor = null;
+	@ConfigField(desc = "Number of relay loops in loop mode (0 - one per CPU core)", alias = "relay-loops")
+	private int relayLoopsCount = 0;
+	private volatile RelayLoop[] relayLoops = null;
+	private final RelayStatistics relayStatistics = new RelayStatistics();
+	private volatile TimerWheel resumeWheel = null;
 	private AtomicLong servicesCompleted = new AtomicLong(0);
-	private ConcurrentHashMap<String, Stream> streams = new ConcurrentHashMap<String, Stream>();
+	@ConfigField(desc = "Time in seconds without any data transferred after which activated stream is closed (0 - disabled)", alias = "stream-idle-timeout")
+	private long streamIdleTimeout = STREAM_IDLE_TIMEOUT_VAL;
+	@ConfigField(desc = "Maximal time in seconds for which activated stream is kept open (0 - unlimited)", alias = "stream-max-lifetime")
+	private long streamMaxLifetime = STREAM_MAX_LIFETIME_VAL;
+	private final StreamRegistry streams = new StreamRegistry();
+	private volatile TimerWheel timerWheel = null;
+	private final TransferStatistics transferStatistics = new TransferStatistics();
 
 	//~--- methods --------------------------------------------------------------
 
@@ -60,28 +129,82 @@ public abstract class Socks5ConnectionManager
 	/**
 	 * Register stream by creating it and assigning connection to it
 	 *
-	 * @param sid
+	 * @param in buffer with id of stream in hexadecimal form
+	 * @param offset position of id in buffer
+	 * @param length length of id
 	 * @param con
+	 *
+	 * @return false if id is not valid stream id
 	 */
-	public void registerStream(String sid, Socks5IOService con) {
-		Stream stream = streams.get(sid);
+	public boolean registerStream(ByteBuffer in, int offset, int length, Socks5IOService con) {
+		if (!StreamRegistry.isId(in, offset, length)) {
+			return false;
+		}
+
+		long id0 = StreamRegistry.parseHex(in, offset, 16);
+		long id1 = StreamRegistry.parseHex(in, offset + 16, 16);
+		int id2 = (int) StreamRegistry.parseHex(in, offset + 32, 8);
+		Stream stream = streams.get(id0, id1, id2);
 
 		if (stream == null) {
-			stream = new Stream(sid, this);
-			streams.put(sid, stream);
+			stream = new Stream(id0, id1, id2, this);
+			Stream existing = streams.putIfAbsent(stream);
+			if (existing != null) {
+				stream = existing;
+			}
 		}
 		if (log.isLoggable(Level.FINER)) {
 			log.log(Level.FINER, "registered connection = {0} for stream = {1}",
 					new Object[]{con.toString(), stream.toString()});
 		}
 		stream.addConnection(con);
+		return true;
+	}
+
+	@Override
+	public void stop() {
+		super.stop();
+		ExecutorService relayExecutor;
+		RelayLoop[] relayLoops;
+		TimerWheel timerWheel;
+		TimerWheel resumeWheel;
+		// fields are cleared, so they are created again if component is restarted
+		synchronized (this) {
+			relayExecutor = this.relayExecutor;
+			this.relayExecutor = null;
+			relayLoops = this.relayLoops;
+			this.relayLoops = null;
+			timerWheel = this.timerWheel;
+			this.timerWheel = null;
+			resumeWheel = this.resumeWheel;
+			this.resumeWheel = null;
+		}
+		if (relayExecutor != null) {
+			relayExecutor.shutdown();
+		}
+		if (relayLoops != null) {
+			for (RelayLoop relayLoop : relayLoops) {
+				relayLoop.stop();
+			}
+		}
+		if (timerWheel != null) {
+			timerWheel.stop();
+		}
+		if (resumeWheel != null) {
+			resumeWheel.stop();
+		}
 	}
 
 	@Override
 	public void serviceStarted(Socks5IOService<?> serv) {
 		super.serviceStarted(serv);
 		serv.setConnectionManager(this);
-		addTimerTask(new AuthenticationTimer(serv.getUniqueId()), STREAM_CREATION_TIMEOUT);
+		if (isAdmissionControlEnabled()) {
+			serv.setAdmittedAddress(serv.getSocketChannel().socket().getInetAddress());
+		}
+		ConnectionTimeout timeout = new ConnectionTimeout(serv);
+		serv.setTimeout(timeout);
+		getTimerWheel().schedule(timeout, TimeUnit.SECONDS.toMillis(activationTimeout));
 	}
 
 	@Override
@@ -90,6 +213,22 @@ public abstract class Socks5ConnectionManager
 
 		this.kbytesTransferred.addAndGet(bytesTransferred / 1024);
 		this.servicesCompleted.incrementAndGet();
+		this.transferStatistics.connectionStopped(bytesTransferred);
+
+		TimerWheel.Timeout timeout = serv.getTimeout();
+		if (timeout != null) {
+			getTimerWheel().cancel(timeout);
+		}
+		TimerWheel.Timeout resumeTimeout = serv.getResumeTimeout();
+		if (resumeTimeout != null) {
+			getResumeWheel().cancel(resumeTimeout);
+		}
+
+		InetAddress admittedAddress = serv.getAdmittedAddress();
+		if (admittedAddress != null) {
+			serv.setAdmittedAddress(null);
+			getAdmissionControl().release(admittedAddress);
+		}
 
 		return super.serviceStopped(serv);
 	}
@@ -115,7 +254,7 @@ public abstract class Socks5ConnectionManager
 	 * @param stream
 	 */
 	public void unregisterStream(Stream stream) {
-		streams.remove(stream.getSID());
+		streams.remove(stream);
 		if (log.isLoggable(Level.FINER)) {
 			log.log(Level.FINER, "unregistered connections for stream = {0}", new Object[]{stream.toString()});
 		}
@@ -136,12 +275,252 @@ public abstract class Socks5ConnectionManager
 		long kbytesTransferred = this.kbytesTransferred.get();
 
 		list.add(getName(), "Open streams", streams.size(), Level.INFO);
+		list.add(getName(), "Stream registry slots", streams.getCapacity(), Level.FINE);
 		list.add(getName(), "KBytes tranferred", kbytesTransferred, Level.INFO);
 		list.add(getName(), "Transfers completed", servicesCompleted / 2, Level.INFO);
 		if (servicesCompleted == 0) {
 			servicesCompleted = 1;
 		}
 		list.add(getName(), "Average transfer size in KB", kbytesTransferred / servicesCompleted, Level.INFO);
+
+		if (list.checkLevel(Level.FINE)) {
+			long[] rates = new long[2];
+			streams.forEach(stream -> {
+				long streamRate = 0;
+				for (Socks5ConnectionType type : Socks5ConnectionType.values()) {
+					streamRate += stream.getTransferRate(type);
+				}
+				rates[0] += streamRate;
+				rates[1] = Math.max(rates[1], streamRate);
+			});
+			list.add(getName(), "Transfer rate [B/s]", rates[0], Level.FINE);
+			list.add(getName(), "Max stream transfer rate [B/s]", rates[1], Level.FINE);
+		}
+
+		BufferPool bufferPool = this.bufferPool;
+		if (bufferPool != null) {
+			bufferPool.getStatistics(getName(), list);
+		}
+		relayStatistics.getStatistics(getName(), list);
+		transferStatistics.getStatistics(getName(), list);
+
+		BandwidthShaper bandwidthShaper = this.bandwidthShaper;
+		if (bandwidthShaper != null) {
+			bandwidthShaper.getStatistics(getName(), list);
+		}
+
+		TimerWheel timerWheel = this.timerWheel;
+		if (timerWheel != null) {
+			timerWheel.getStatistics(getName(), list);
+		}
+
+		AdmissionControl admissionControl = this.admissionControl;
+		if (admissionControl != null) {
+			admissionControl.getStatistics(getName(), list);
+		}
+
+		RelayLoop[] relayLoops = this.relayLoops;
+		if (relayLoops != null) {
+			int connections = 0;
+			for (RelayLoop relayLoop : relayLoops) {
+				connections += relayLoop.getConnectionsCount();
+			}
+			list.add(getName(), "Relay loops", relayLoops.length, Level.FINE);
+			list.add(getName(), "Relay loops connections", connections, Level.FINE);
+		}
+	}
+
+	/**
+	 * Returns loop which should relay data of activated stream. Both connections of a stream are always handled by the
+	 * same loop.
+	 *
+	 * @param stream
+	 *
+	 * @return loop or null if data should be relayed by socket threads
+	 */
+	public RelayLoop getRelayLoop(Stream stream) {
+		if (!RELAY_MODE_LOOP.equals(relayMode)) {
+			return null;
+		}
+
+		RelayLoop[] relayLoops = this.relayLoops;
+		if (relayLoops == null) {
+			synchronized (this) {
+				relayLoops = this.relayLoops;
+				if (relayLoops == null) {
+					relayLoops = createRelayLoops();
+					this.relayLoops = relayLoops;
+				}
+			}
+		}
+		if (relayLoops.length == 0) {
+			return null;
+		}
+		return relayLoops[(stream.hashCodeForStream() & Integer.MAX_VALUE) % relayLoops.length];
+	}
+
+	/**
+	 * Check if activated streams are relayed by thread per direction using blocking operations
+	 *
+	 * @return
+	 */
+	public boolean isBlockingRelay() {
+		return RELAY_MODE_THREAD.equals(relayMode) && VIRTUAL_THREAD_EXECUTOR_FACTORY != null;
+	}
+
+	/**
+	 * Set mode of relaying data of activated streams, unknown modes and thread mode without support for virtual threads
+	 * are replaced with selector mode
+	 *
+	 * @param relayMode
+	 */
+	public void setRelayMode(String relayMode) {
+		if (RELAY_MODE_THREAD.equals(relayMode) && VIRTUAL_THREAD_EXECUTOR_FACTORY == null) {
+			log.log(Level.WARNING, "{0}: relay mode {1} requires virtual threads, which are not supported, using {2} mode",
+					new Object[]{getName(), relayMode, RELAY_MODE_SELECTOR});
+			this.relayMode = RELAY_MODE_SELECTOR;
+		} else if (RELAY_MODE_LOOP.equals(relayMode) || RELAY_MODE_SELECTOR.equals(relayMode) ||
+				RELAY_MODE_THREAD.equals(relayMode)) {
+			this.relayMode = relayMode;
+		} else {
+			log.log(Level.WARNING, "{0}: unknown relay mode {1}, using {2} mode",
+					new Object[]{getName(), relayMode, RELAY_MODE_SELECTOR});
+			this.relayMode = RELAY_MODE_SELECTOR;
+		}
+	}
+
+	/**
+	 * Returns executor running threads relaying data of activated streams in thread mode. Virtual threads are used if
+	 * they are supported by JVM.
+	 *
+	 * @return
+	 */
+	public ExecutorService getRelayExecutor() {
+		ExecutorService relayExecutor = this.relayExecutor;
+		if (relayExecutor == null) {
+			synchronized (this) {
+				relayExecutor = this.relayExecutor;
+				if (relayExecutor == null) {
+					relayExecutor = createRelayExecutor();
+					this.relayExecutor = relayExecutor;
+				}
+			}
+		}
+		return relayExecutor;
+	}
+
+	/**
+	 * Returns shaper limiting transfer rate of activated streams
+	 *
+	 * @return
+	 */
+	public BandwidthShaper getBandwidthShaper() {
+		BandwidthShaper bandwidthShaper = this.bandwidthShaper;
+		if (bandwidthShaper == null) {
+			synchronized (this) {
+				bandwidthShaper = this.bandwidthShaper;
+				if (bandwidthShaper == null) {
+					bandwidthShaper = new BandwidthShaper(globalRateLimit, instanceRateLimit);
+					bandwidthShaper.setClusterNodes(getClusterNodesCount());
+					this.bandwidthShaper = bandwidthShaper;
+				}
+			}
+		}
+		return bandwidthShaper;
+	}
+
+	/**
+	 * Returns pool of buffers used by relays of activated streams
+	 *
+	 * @return
+	 */
+	public BufferPool getBufferPool() {
+		BufferPool bufferPool = this.bufferPool;
+		if (bufferPool == null) {
+			synchronized (this) {
+				bufferPool = this.bufferPool;
+				if (bufferPool == null) {
+					bufferPool = new BufferPool(relayMinBufferSize, getRelayBufferSize(), bufferPoolSize);
+					this.bufferPool = bufferPool;
+				}
+			}
+		}
+		return bufferPool;
+	}
+
+	/**
+	 * Returns admission control limiting connections accepted by proxy
+	 *
+	 * @return
+	 */
+	public AdmissionControl getAdmissionControl() {
+		AdmissionControl admissionControl = this.admissionControl;
+		if (admissionControl == null) {
+			synchronized (this) {
+				admissionControl = this.admissionControl;
+				if (admissionControl == null) {
+					admissionControl = new AdmissionControl(maxConnections, maxConnectionRate, maxConnectionsPerAddress,
+															maxConnectionRatePerAddress);
+					this.admissionControl = admissionControl;
+				}
+			}
+		}
+		return admissionControl;
+	}
+
+	/**
+	 * Returns timer wheel closing connections after their deadlines
+	 *
+	 * @return
+	 */
+	public TimerWheel getTimerWheel() {
+		TimerWheel timerWheel = this.timerWheel;
+		if (timerWheel == null) {
+			synchronized (this) {
+				timerWheel = this.timerWheel;
+				if (timerWheel == null) {
+					timerWheel = new TimerWheel(getName() + "-timer-wheel", TIMER_WHEEL_TICK, TIMER_WHEEL_SLOTS);
+					timerWheel.start();
+					this.timerWheel = timerWheel;
+				}
+			}
+		}
+		return timerWheel;
+	}
+
+	/**
+	 * Replace deadline of connection waiting for activation with idle and lifetime deadlines of activated stream
+	 *
+	 * @param serv
+	 */
+	public void connectionActivated(Socks5IOService<?> serv) {
+		TimerWheel.Timeout timeout = serv.getTimeout();
+		if (timeout == null) {
+			return;
+		}
+		if (streamIdleTimeout <= 0 && streamMaxLifetime <= 0) {
+			getTimerWheel().cancel(timeout);
+			return;
+		}
+		((ConnectionTimeout) timeout).activated();
+	}
+
+	/**
+	 * Returns statistics shared by relays of activated streams
+	 *
+	 * @return
+	 */
+	public RelayStatistics getRelayStatistics() {
+		return relayStatistics;
+	}
+
+	/**
+	 * Returns distributions of transfers handled by this manager
+	 *
+	 * @return
+	 */
+	public TransferStatistics getTransferStatistics() {
+		return transferStatistics;
 	}
 
 	/**
@@ -151,7 +530,7 @@ public abstract class Socks5ConnectionManager
 	 *
 	 * @return
 	 */
-	public Stream getStream(String cid) {
+	public Stream getStream(StreamId cid) {
 		return streams.get(cid);
 	}
 
@@ -162,8 +541,141 @@ public abstract class Socks5ConnectionManager
 	 *
 	 * @return
 	 */
-	public boolean hasStream(String cid) {
-		return streams.contains(cid);
+	public boolean hasStream(StreamId cid) {
+		return streams.get(cid) != null;
+	}
+
+	/**
+	 * Returns maximal number of bytes buffered for connection before stream is activated
+	 *
+	 * @return
+	 */
+	protected int getEarlyDataLimit() {
+		return earlyDataLimit;
+	}
+
+	/**
+	 * Returns number of cluster nodes sharing global limits
+	 *
+	 * @return
+	 */
+	protected int getClusterNodesCount() {
+		return 1;
+	}
+
+	/**
+	 * Adds service back to socket thread after delay, used to resume reading from connection limited by transfer rate
+	 *
+	 * @param serv
+	 * @param delay in milliseconds
+	 */
+	protected void resumeServiceAfter(Socks5IOService<?> serv, long delay) {
+		// only thread reading from connection pauses it, so timeout may be created without locking
+		TimerWheel.Timeout timeout = serv.getResumeTimeout();
+		if (timeout == null) {
+			timeout = new ResumeTimeout(serv);
+			serv.setResumeTimeout(timeout);
+		}
+		getResumeWheel().schedule(timeout, delay);
+	}
+
+	/**
+	 * Returns timer wheel resuming reading from connections paused by transfer rate limit, it uses much shorter tick
+	 * than wheel closing connections after their deadlines
+	 *
+	 * @return
+	 */
+	protected TimerWheel getResumeWheel() {
+		TimerWheel resumeWheel = this.resumeWheel;
+		if (resumeWheel == null) {
+			synchronized (this) {
+				resumeWheel = this.resumeWheel;
+				if (resumeWheel == null) {
+					resumeWheel = new TimerWheel(getName() + "-resume-wheel", RESUME_WHEEL_TICK, RESUME_WHEEL_SLOTS);
+					resumeWheel.start();
+					this.resumeWheel = resumeWheel;
+				}
+			}
+		}
+		return resumeWheel;
+	}
+
+	/**
+	 * Creates and starts relay loops
+	 *
+	 * @return started loops, empty if loops could not be created
+	 */
+	protected RelayLoop[] createRelayLoops() {
+		int count = relayLoopsCount > 0 ? relayLoopsCount : Runtime.getRuntime().availableProcessors();
+		RelayLoop[] relayLoops = new RelayLoop[count];
+		try {
+			for (int i = 0; i < count; i++) {
+				relayLoops[i] = new RelayLoop(getName() + "-relay-loop-" + i, this);
+			}
+		} catch (IOException ex) {
+			log.log(Level.WARNING, "could not create relay loops, data will be relayed by socket threads", ex);
+			return new RelayLoop[0];
+		}
+		for (RelayLoop relayLoop : relayLoops) {
+			relayLoop.start();
+		}
+		return relayLoops;
+	}
+
+	/**
+	 * Returns number of bytes waiting to be sent to connection after which relay stops reading from the other
+	 * connection of a stream
+	 *
+	 * @return
+	 */
+	protected int getRelayHighWatermark() {
+		return relayHighWatermark;
+	}
+
+	/**
+	 * Returns number of bytes waiting to be sent to connection at which relay resumes reading from the other connection
+	 * of a stream
+	 *
+	 * @return
+	 */
+	protected int getRelayLowWatermark() {
+		return relayLowWatermark;
+	}
+
+	/**
+	 * Returns maximal size of a buffer used by relay for each direction of activated stream
+	 *
+	 * @return
+	 */
+	protected int getRelayBufferSize() {
+		return net_buffer;
+	}
+
+	/**
+	 * Returns factory method of executor with virtual thread per task
+	 *
+	 * @return method or null if virtual threads are not supported
+	 */
+	private static Method getVirtualThreadExecutorFactory() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Creates executor with virtual thread per task. Thread mode needs a thread per direction of each activated
+	 * stream, so it is not used if virtual threads are not supported.
+	 *
+	 * @return
+	 */
+	protected ExecutorService createRelayExecutor() {
+		try {
+			return (ExecutorService) VIRTUAL_THREAD_EXECUTOR_FACTORY.invoke(null);
+		} catch (ReflectiveOperationException ex) {
+			throw new IllegalStateException("could not create executor with virtual threads", ex);
+		}
 	}
 
 	@Override
@@ -171,6 +683,36 @@ public abstract class Socks5ConnectionManager
 		return new Socks5IOService();
 	}
 
+	@Override
+	protected boolean admitConnection(SocketChannel sc) {
+		if (!isAdmissionControlEnabled()) {
+			return true;
+		}
+		InetAddress address = sc.socket().getInetAddress();
+		return address == null || getAdmissionControl().admit(address);
+	}
+
+	@Override
+	protected void connectionNotStarted(SocketChannel sc) {
+		if (!isAdmissionControlEnabled()) {
+			return;
+		}
+		InetAddress address = sc.socket().getInetAddress();
+		if (address != null) {
+			getAdmissionControl().release(address);
+		}
+	}
+
+	/**
+	 * Returns true if any limit of accepted connections is set
+	 *
+	 * @return
+	 */
+	protected boolean isAdmissionControlEnabled() {
+		return maxConnections > 0 || maxConnectionRate > 0 || maxConnectionsPerAddress > 0 ||
+				maxConnectionRatePerAddress > 0;
+	}
+
 	@Override
 	protected boolean isHighThroughput() {
 		return true;
@@ -179,24 +721,105 @@ public abstract class Socks5ConnectionManager
 	//~--- inner classes --------------------------------------------------------
 
 	/**
-	 * Timer task used to close connection if it is not activated within specified time period
+	 * Timeout used to resume reading from connection after its transfer rate dropped below limit
 	 */
-	private class AuthenticationTimer
-			extends TimerTask {
+	private class ResumeTimeout
+			extends TimerWheel.Timeout {
 
-		private final String connId;
+		private final Socks5IOService<?> serv;
 
-		public AuthenticationTimer(String connId) {
-			this.connId = connId;
+		public ResumeTimeout(Socks5IOService<?> serv) {
+			this.serv = serv;
 		}
 
 		@Override
-		public void run() {
-			Socks5IOService serv = services.get(connId);
+		public String toString() {
+			return "resume of " + serv;
+		}
 
-			if (serv == null) {
+		@Override
+		protected void expired() {
+			if (serv.getState() != Socks5IOService.State.Active || !serv.isConnected()) {
 				return;
 			}
+			Stream stream = serv.getStream();
+			RelayLoop relayLoop = stream == null ? null : stream.getRelayLoop();
+			if (relayLoop != null) {
+				relayLoop.update(serv);
+			} else {
+				SocketThread.addSocketService(serv);
+			}
+		}
+	}
+
+	/**
+	 * Timeout used to close connection if it is not activated within specified time period and, after activation, if
+	 * its stream is idle or open for too long
+	 */
+	private class ConnectionTimeout
+			extends TimerWheel.Timeout {
+
+		private final Socks5IOService<?> serv;
+		// fields below are set on activation and later updated only by timer wheel thread
+		private volatile long activated = 0;
+		private long lastActivity = 0;
+		private long lastBytes = 0;
+
+		public ConnectionTimeout(Socks5IOService<?> serv) {
+			this.serv = serv;
+		}
+
+		@Override
+		public String toString() {
+			return "timeout of " + serv;
+		}
+
+		@Override
+		protected void expired() {
+			if (activated == 0) {
+				expiredBeforeActivation();
+				return;
+			}
+			if (!serv.isConnected()) {
+				return;
+			}
+
+			long now = System.nanoTime();
+			if (streamMaxLifetime > 0 && now - activated >= TimeUnit.SECONDS.toNanos(streamMaxLifetime)) {
+				if (log.isLoggable(Level.FINER)) {
+					log.log(Level.FINER, "closing Socks5 connection {0} after reaching maximal lifetime of stream",
+							serv);
+				}
+				serv.forceStop();
+				return;
+			}
+
+			if (streamIdleTimeout > 0) {
+				long bytes = getTransferredBytes();
+				if (bytes != lastBytes) {
+					lastBytes = bytes;
+					lastActivity = now;
+				} else if (now - lastActivity >= TimeUnit.SECONDS.toNanos(streamIdleTimeout)) {
+					if (log.isLoggable(Level.FINER)) {
+						log.log(Level.FINER, "closing idle Socks5 connection {0}", serv);
+					}
+					serv.forceStop();
+					return;
+				}
+			}
+
+			getTimerWheel().reschedule(this, nextDelay(now));
+		}
+
+		private void activated() {
+			long now = System.nanoTime();
+			lastActivity = now;
+			lastBytes = getTransferredBytes();
+			activated = now;
+			getTimerWheel().schedule(this, nextDelay(now));
+		}
+
+		private void expiredBeforeActivation() {
 			try {
 				if (serv.getState() != Socks5IOService.State.Active) {
 					if (log.isLoggable(Level.FINER)) {
@@ -213,6 +836,28 @@ public abstract class Socks5ConnectionManager
 						" timed out before activation", ex);
 			}
 		}
+
+		private long getTransferredBytes() {
+			return serv.getBytesReceived() + serv.getBytesSent();
+		}
+
+		/**
+		 * Returns delay in milliseconds to the nearest of idle and lifetime deadlines
+		 *
+		 * @param now
+		 *
+		 * @return
+		 */
+		private long nextDelay(long now) {
+			long deadline = Long.MAX_VALUE;
+			if (streamIdleTimeout > 0) {
+				deadline = lastActivity + TimeUnit.SECONDS.toNanos(streamIdleTimeout);
+			}
+			if (streamMaxLifetime > 0) {
+				deadline = Math.min(deadline, activated + TimeUnit.SECONDS.toNanos(streamMaxLifetime));
+			}
+			return TimeUnit.NANOSECONDS.toMillis(Math.max(deadline - now, 0));
+		}
 	}
 }
 
@@ -22,10 +22,12 @@ import tigase.net.SocketThread;
 import tigase.xmpp.jid.JID;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.ProtocolException;
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.locks.ReentrantLock;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -47,16 +49,35 @@ public class Socks5IOService<RefObject>
 		Active,
 		Closed
 	}
-	protected final ReentrantLock transferInProgress = new ReentrantLock();
-
 	;
-	private ByteBuffer buf = null;
-	private int bytesReceived = 0;
-	private int bytesSent = 0;
+
+	// socket receive buffer used until stream is activated, only handshake is read from socket before that
+	private static final int HANDSHAKE_BUFFER_SIZE = 512;
+
+	// guards data received before activation
+	private final Object earlyDataLock = new Object();
+	// address counted by admission control of connection manager
+	private volatile InetAddress admittedAddress = null;
+	private final TrafficCounter bytesReceived = new TrafficCounter();
+	private final TrafficCounter bytesSent = new TrafficCounter();
 	private Socks5ConnectionType connectionType;
+	// borrowed from buffer pool of connection manager
+	private ByteBuffer earlyData = null;
+	// counted down by socket thread after it stopped registering connection relayed by blocking relay
+	private final CountDownLatch released = new CountDownLatch(1);
+	private boolean earlyDataEndOfStream = false;
+	private Limits limits = null;
 	private Socks5ConnectionManager manager;
+	// socket receive buffer restored when stream is activated
+	private int receiveBufferSize = 0;
+	// resumes reading after pause caused by transfer rate limit, reused by every pause
+	private TimerWheel.Timeout resumeTimeout = null;
+	// deadline of connection, kept by timer wheel of connection manager
+	private TimerWheel.Timeout timeout = null;
 	private State state = State.Welcome;
 	private Stream stream;
+	// entry used to queue connection for verification of its transfer
+	private VerificationPipeline.Task verificationTask = null;
 
 	/**
 	 * Activate service
@@ -64,10 +85,40 @@ public class Socks5IOService<RefObject>
 	 * @return
 	 */
 	public boolean activate() {
-		this.state = State.Active;
+		synchronized (earlyDataLock) {
+			this.state = State.Active;
+		}
+		if (receiveBufferSize > 0) {
+			try {
+				getSocketChannel().socket().setReceiveBufferSize(receiveBufferSize);
+			} catch (IOException ex) {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "{0} could not restore socket receive buffer: {1}",
+							new Object[]{this, ex.getMessage()});
+				}
+			}
+		}
 		return true;
 	}
 
+	/**
+	 * Input buffer of service is sized by socket receive buffer, so socket receive buffer is reduced to size of
+	 * handshake before service is accepted and it is restored on activation
+	 *
+	 * @param socketChannel
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void accept(SocketChannel socketChannel) throws IOException {
+		int size = socketChannel.socket().getReceiveBufferSize();
+		if (size > HANDSHAKE_BUFFER_SIZE) {
+			socketChannel.socket().setReceiveBufferSize(HANDSHAKE_BUFFER_SIZE);
+			receiveBufferSize = size;
+		}
+		super.accept(socketChannel);
+	}
+
 	/**
 	 * Set ConnectionManager
 	 *
@@ -86,6 +137,15 @@ public class Socks5IOService<RefObject>
 		this.stream = stream;
 	}
 
+	/**
+	 * Returns stream assigned with this service
+	 *
+	 * @return
+	 */
+	public Stream getStream() {
+		return stream;
+	}
+
 	/**
 	 * Returns jid of client connected by this service
 	 *
@@ -99,6 +159,96 @@ public class Socks5IOService<RefObject>
 		return this.connectionType == Socks5ConnectionType.Requester ? stream.getRequester() : stream.getTarget();
 	}
 
+	/**
+	 * Returns limits of user connected by this service
+	 *
+	 * @return limits or null if limits were not checked
+	 */
+	public Limits getLimits() {
+		return limits;
+	}
+
+	/**
+	 * Set limits of user connected by this service
+	 *
+	 * @param limits
+	 */
+	public void setLimits(Limits limits) {
+		this.limits = limits;
+	}
+
+	/**
+	 * Returns address for which connection was counted by admission control
+	 *
+	 * @return address or null if connection was not counted
+	 */
+	public InetAddress getAdmittedAddress() {
+		return admittedAddress;
+	}
+
+	/**
+	 * Set address for which connection was counted by admission control
+	 *
+	 * @param admittedAddress
+	 */
+	public void setAdmittedAddress(InetAddress admittedAddress) {
+		this.admittedAddress = admittedAddress;
+	}
+
+	/**
+	 * Returns timeout used to resume reading from this connection after it was paused by transfer rate limit
+	 *
+	 * @return
+	 */
+	public TimerWheel.Timeout getResumeTimeout() {
+		return resumeTimeout;
+	}
+
+	/**
+	 * Set timeout used to resume reading from this connection after it was paused by transfer rate limit
+	 *
+	 * @param resumeTimeout
+	 */
+	public void setResumeTimeout(TimerWheel.Timeout resumeTimeout) {
+		this.resumeTimeout = resumeTimeout;
+	}
+
+	/**
+	 * Returns timeout used to close this connection after its deadline
+	 *
+	 * @return
+	 */
+	public TimerWheel.Timeout getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Set timeout used to close this connection after its deadline
+	 *
+	 * @param timeout
+	 */
+	public void setTimeout(TimerWheel.Timeout timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Returns entry used to queue connection for verification of its transfer
+	 *
+	 * @return
+	 */
+	public VerificationPipeline.Task getVerificationTask() {
+		return verificationTask;
+	}
+
+	/**
+	 * Set entry used to queue connection for verification of its transfer
+	 *
+	 * @param verificationTask
+	 */
+	public void setVerificationTask(VerificationPipeline.Task verificationTask) {
+		this.verificationTask = verificationTask;
+	}
+
 	/**
 	 * Returns current state of service
 	 *
@@ -131,8 +281,8 @@ public class Socks5IOService<RefObject>
 	 *
 	 * @return
 	 */
-	public int getBytesReceived() {
-		return bytesReceived;
+	public long getBytesReceived() {
+		return bytesReceived.get();
 	}
 
 	/**
@@ -140,8 +290,26 @@ public class Socks5IOService<RefObject>
 	 *
 	 * @return
 	 */
-	public int getBytesSent() {
-		return bytesSent;
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * Get estimated rate of data received by this service
+	 *
+	 * @return bytes per second
+	 */
+	public long getReceiveRate() {
+		return bytesReceived.getRate();
+	}
+
+	/**
+	 * Get estimated rate of data sent by this service
+	 *
+	 * @return bytes per second
+	 */
+	public long getSendRate() {
+		return bytesSent.getRate();
 	}
 
 	@Override
@@ -151,18 +319,59 @@ public class Socks5IOService<RefObject>
 
 	@Override
 	public boolean waitingToRead() {
+		StreamRelay relay = getRelay();
+		if (relay != null) {
+			// we need to read data from socket only if data waiting to be
+			// sent to second connection is below watermark
+			return relay.canRead(this);
+		}
+		if (state == State.Active) {
+			// stream is relayed by threads or relay is not published yet
+			if (stream != null && stream.isBlockingRelay() && isSocketOutputEmpty()) {
+				// socket thread checks it after selector dropped its previous registration, and it will not register
+				// connection again, so relay threads may take it over
+				released.countDown();
+			}
+			return false;
+		}
+		if (state == State.Ready) {
+			// we read data before activation only if there is space for it,
+			// stream activation will add this service back for reading,
+			// relay threads need connection to be released by socket thread
+			return !earlyDataEndOfStream && manager.getEarlyDataLimit() > 0 && !manager.isBlockingRelay() &&
+					canBufferEarlyData(manager.getEarlyDataLimit());
+		}
 		// we need to read data from socket only if buffer is empty
 		// to prevent OutOfMemory if we read data faster than we can
 		// send it
 		return super.isInputBufferEmpty();
 	}
 
+	@Override
+	public boolean waitingToSend() {
+		if (super.waitingToSend()) {
+			return true;
+		}
+		StreamRelay relay = getRelay();
+		return relay != null && relay.hasPendingOutput(this);
+	}
+
 	@Override
 	public IOService<?> call() throws IOException {
 		IOService<?> serv = super.call();
 
-		if (!this.waitingToSend() && stream != null) {
+		RelayLoop relayLoop = stream == null ? null : stream.getRelayLoop();
+		if (relayLoop != null) {
+			// data written during handshake was sent, so relay loop may write data now
+			if (!this.waitingToSend()) {
+				relayLoop.update(this);
+			}
+			return serv;
+		}
+
+		if (stream != null && !stream.isBlockingRelay() && (!this.waitingToSend() || isReadingResumed())) {
 			// we need to add other service if we sent all data from buffer
+			// or enough data to resume reading from other service
 			Socks5IOService secondServ = stream.getSecondConnection(this);
 			if (secondServ != null) {
 //                                        secondServ.clearBuffer();
@@ -176,15 +385,13 @@ public class Socks5IOService<RefObject>
 	@Override
 	public void writeBytes(ByteBuffer buf) {
 		if (buf != null) {
-			bytesSent += buf.remaining();
+			bytesSent.add(buf.remaining());
 		}
 
-		transferInProgress.lock();
 //                int remaining = waitingToSendSize() + buf.remaining();
 		super.writeBytes(buf);
 		//buf.compact();
 //                log.log(Level.FINEST, "{0} written data: {1}, remaining: {2}", new Object[] { this, remaining - waitingToSendSize(), waitingToSendSize() });
-		transferInProgress.unlock();
 	}
 
 	@Override
@@ -197,6 +404,15 @@ public class Socks5IOService<RefObject>
 				stream.close();
 			}
 		}
+		synchronized (earlyDataLock) {
+			// data was not taken by activated stream
+			if (earlyData != null) {
+				manager.getBufferPool().release(earlyData);
+				earlyData = null;
+			}
+		}
+		// relay threads waiting for connection are woken up to find it closed
+		released.countDown();
 
 //                try {
 //                        log.log(Level.FINEST, "stopping connection " + this + " waiting data: " + waitingToSendSize());
@@ -227,13 +443,70 @@ public class Socks5IOService<RefObject>
 //                }
 //        }
 
+	/**
+	 * Returns data received after Socks5 handshake but before stream was activated and removes it from this service.
+	 * Service needs to be activated first, so no more data is read before activation.
+	 *
+	 * @return
+	 */
+	protected ByteBuffer takeEarlyData() {
+		synchronized (earlyDataLock) {
+			ByteBuffer data = earlyData;
+			earlyData = null;
+			if (data != null) {
+				data.flip();
+			}
+			return data;
+		}
+	}
+
+	/**
+	 * Wait until activated connection relayed by blocking relay is released by socket thread, that is when all data
+	 * written during handshake was sent and socket thread decided not to register connection again
+	 *
+	 * @param timeout in milliseconds
+	 *
+	 * @return true if connection was released or closed, false if timeout passed
+	 *
+	 * @throws InterruptedException
+	 */
+	protected boolean awaitReleased(long timeout) throws InterruptedException {
+		return released.await(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Check if all data written using <code>IOService</code> methods was sent
+	 *
+	 * @return
+	 */
+	protected boolean isSocketOutputEmpty() {
+		return !super.waitingToSend();
+	}
+
+	/**
+	 * Increase number of bytes received by this service
+	 *
+	 * @param bytes
+	 */
+	protected void addBytesReceived(int bytes) {
+		bytesReceived.add(bytes);
+	}
+
+	/**
+	 * Increase number of bytes sent by this service
+	 *
+	 * @param bytes
+	 */
+	protected void addBytesSent(int bytes) {
+		bytesSent.add(bytes);
+	}
+
 	@Override
 	protected ByteBuffer readBytes() throws IOException {
 		ByteBuffer buf = super.readBytes();
 
 		if (buf != null) {
-			this.buf = buf;
-			bytesReceived += buf.remaining();
+			bytesReceived.add(buf.remaining());
 		}
 
 		return buf;
@@ -241,18 +514,28 @@ public class Socks5IOService<RefObject>
 
 	@Override
 	protected void writeData(String data) {
-		transferInProgress.lock();
-//                int remaining = waitingToSendSize();
-		Socks5IOService secondServ = (stream != null) ? stream.getSecondConnection(this) : null;
-		if (secondServ != null && secondServ.buf.remaining() != secondServ.buf.limit()) {
-			secondServ.buf.flip();
-			super.writeData(data);
-			secondServ.buf.compact();
-		} else {
-			super.writeData(data);
+		super.writeData(data);
+
+		// flush data waiting in relay buffer
+		StreamRelay relay = getRelay();
+		if (relay != null && data == null) {
+			try {
+				relay.flush(this);
+			} catch (IOException ex) {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "stopping service after exception " + ex.getMessage(), ex);
+				}
+				forceStop();
+				return;
+			}
+			if (relay.isFinished()) {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "stopping service {0} after reaching end of stream in both directions",
+							toString());
+				}
+				forceStop();
+			}
 		}
-//                log.log(Level.FINEST, "{0} written data: {1}, remaining: {2}", new Object[] { this, remaining - waitingToSendSize(), waitingToSendSize() });
-		transferInProgress.unlock();
 	}
 
 	/**
@@ -262,9 +545,11 @@ public class Socks5IOService<RefObject>
 	 */
 	@Override
 	protected void processSocketData() throws IOException {
-		// Ignore data on socket until it is in Active state - fixes
-		// problems with discovering proxy by Gajim.
+		// Do not forward data until stream is in Active state - fixes
+		// problems with discovering proxy by Gajim. Data is kept and
+		// sent when stream is activated.
 		if (state == State.Ready) {
+			readEarlyData();
 			return;
 		}
 
@@ -276,200 +561,280 @@ public class Socks5IOService<RefObject>
 			return;
 		}
 
-		Socks5IOService secondServ = stream != null ? stream.getSecondConnection(this) : null;
-		if (secondServ != null) {
-			secondServ.transferInProgress.lock();
+		// we are connected so relay data directly to recipient connection
+		if (state == State.Active) {
+			StreamRelay relay = getRelay();
+			if (relay != null) {
+				relaySocketData(relay);
+			}
+			return;
 		}
 
 		ByteBuffer buffer = readBytes();
-		if (buffer != null) {
-			buffer = buf;
-		}
 
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "{0} read data: {1}",
 					new Object[]{this, ((buffer == null) ? "NULL" : buffer.remaining())});
 		}
 
+		// we are not in Active state so we need to handle
+		// using Socks5 protocol
 		if (buffer != null && buffer.hasRemaining()) {
-			// if we are not in Active state we need to handle
-			// using Socks5 protocol
-			if (state != State.Active) {
-				ByteBuffer buf = ByteBuffer.allocate(buffer.remaining());
-				buf.put(buffer);
-				buf.flip();
-
-				try {
-					switch (state) {
-						case Welcome:
-							handleWelcome(buf);
-							break;
-						case Auth:
-							handleCommand(buf);
-							break;
-
-						default:
-							break;
-					}
-
-					buffer.clear();
-				} catch (BufferUnderflowException ex) {
-					buffer.compact();
-				}
-				return;
+			try {
+				handleHandshake(buffer);
+			} finally {
+				// keep data of incomplete message for next read
+				buffer.compact();
 			}
+		}
+	}
 
-			// we are connected so write data to recipient connection
-			if (stream != null) {
-				try {
-					// we do not need to copy data to another buffer
-					// as it will not be used by reading thread
-//                                        ByteBuffer buf = ByteBuffer.allocate(buffer.remaining());
-//                                        buf.put(buffer);
-//                                        buf.flip();
-					stream.proxy(buffer, this);
-//                                        buffer.clear();
-//                                        if (!buffer.hasRemaining()) {
-//                                                buffer.clear();
-//                                        }
-				} catch (IOException ex) {
-					if (log.isLoggable(Level.FINEST)) {
-						log.log(Level.FINEST, "stopping service after exception " + ex.getMessage(), ex);
-					}
-					forceStop();
-				}
+	@Override
+	protected int receivedPackets() {
+		// return 0 as we do not receive packet to process
+		return 0;
+	}
+
+	/**
+	 * Relay data read from socket to second connection of activated stream
+	 *
+	 * @param relay
+	 */
+	private void relaySocketData(StreamRelay relay) {
+		Socks5IOService secondServ = stream.getSecondConnection(this);
+		try {
+			relay.relay(this);
+		} catch (IOException ex) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "stopping service after exception " + ex.getMessage(), ex);
 			}
+			forceStop();
+			return;
+		}
 
+		if (relay.isFinished()) {
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "stopping service {0} after reaching end of stream in both directions",
+						toString());
+			}
+			forceStop();
+			return;
 		}
 
-		if (secondServ != null) {
-			secondServ.transferInProgress.unlock();
+		if (relay.hasPendingOutput(secondServ)) {
+			// recipient is not able to receive all data, so we need to wait until it is writable,
+			// after end of stream this is also needed to shut down output of recipient
+			SocketThread.addSocketService(secondServ);
 		}
 
 		manager.socketDataProcessed(this);
-//                else if (bytesRead == -1) {
-//                        if (stream != null) {
-//                                stream.close();
-//                        }
-//                        else {
-//                                forceStop();
-//                        }
-//                }
+	}
 
-		//buffer.compact();
-//                buffer.clear();
-
-		// Should not be needed until it is possible to write all data to output buffer
-//                if (stream != null && bytesRead != -1) {
-//                        Socks5IOService con = stream.getSecondConnection(this);
-//                        if (con != null) {
-//                                ByteBuffer obuf = con.getBuffer();
-//                                obuf.flip();
-//                                if (obuf.hasRemaining()) {
-//                                        writeBytes(obuf);                                                
-//                                }
-//                                obuf.compact();
-//                        }
-//                        else {
-//                                if (stream != null) {
-//                                        stream.close();
-//                                }
-//                                else {
-//                                        forceStop();
-//                                }
-//                        }
-//                }
+	/**
+	 * Check if relay resumed reading data for this service from second connection of a stream
+	 *
+	 * @return
+	 */
+	private boolean isReadingResumed() {
+		StreamRelay relay = getRelay();
+		return relay != null && relay.isReadingResumed(this);
 	}
 
-	@Override
-	protected int receivedPackets() {
-		// return 0 as we do not receive packet to process
-		return 0;
+	/**
+	 * Returns relay of activated stream if data is relayed by socket threads
+	 *
+	 * @return
+	 */
+	private StreamRelay getRelay() {
+		Stream stream = this.stream;
+		return (stream != null && state == State.Active && stream.getRelayLoop() == null) ? stream.getRelay() : null;
 	}
 
 	/**
-	 * Handle Socks5 protocol WELCOME
+	 * Handle all complete Socks5 protocol messages from buffer. If client sent WELCOME and CONNECT messages at once,
+	 * both are processed and replies are sent together. Any data following CONNECT message is kept to be sent after
+	 * stream is activated.
 	 *
 	 * @param buf
 	 *
 	 * @throws IOException
 	 */
-	private void handleWelcome(ByteBuffer buf) throws IOException {
-		byte ver = buf.get();
-		if (ver != 0x05) {
-			if (log.isLoggable(Level.FINE)) {
-				log.log(Level.FINE, "stopping service {0} after detecting unsupported protocol", toString());
+	private void handleHandshake(ByteBuffer buf) throws IOException {
+		boolean welcomeReplyPending = false;
+		if (state == State.Welcome) {
+			if (!handleWelcome(buf)) {
+				return;
 			}
-			forceStop();
-			return;
+			welcomeReplyPending = true;
 		}
 
-		int count = (int) buf.get();
-		boolean ok = false;
-		for (int i = 0; i < count; i++) {
-			if (buf.get() == 0x00) {
-				ok = true;
-				break;
+		if (state == State.Auth) {
+			if (!handleCommand(buf, welcomeReplyPending) && welcomeReplyPending && state == State.Auth) {
+				// CONNECT message was not sent together with WELCOME
+				writeBytes(HandshakeParser.getWelcomeReply());
 			}
 		}
 
-		buf.clear();
-		state = State.Auth;
-
-		if (ok) {
-			writeBytes(ByteBuffer.wrap(new byte[]{ver, 0x00}));
-		} else {
+		if (state == State.Ready && buf.hasRemaining()) {
 			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, "stopping service {0} after failure during WELCOME step", toString());
+				log.log(Level.FINEST, "{0} received {1} bytes of data before activation",
+						new Object[]{this, buf.remaining()});
+			}
+			BufferPool bufferPool = manager.getBufferPool();
+			if (buf.remaining() > bufferPool.getMaxBufferSize()) {
+				throw new ProtocolException("Received " + buf.remaining() + " bytes of data before activation");
+			}
+			synchronized (earlyDataLock) {
+				growEarlyData(buf.remaining(), manager.getEarlyDataLimit());
+				earlyData.put(buf);
 			}
-			forceStop();
 		}
 	}
 
 	/**
-	 * Handle Socks5 protocol command
+	 * Check if there is space for data received before activation or if its buffer may be replaced with bigger one
 	 *
-	 * @param buf
+	 * @param limit maximal number of bytes buffered before activation
+	 *
+	 * @return
+	 */
+	private boolean canBufferEarlyData(int limit) {
+		ByteBuffer data = earlyData;
+		return data == null || data.hasRemaining() ||
+				(data.position() < limit && data.capacity() < manager.getBufferPool().getMaxBufferSize());
+	}
+
+	/**
+	 * Replaces buffer of data received before activation with bigger one borrowed from buffer pool
+	 *
+	 * @param size minimal size of new buffer
+	 * @param limit maximal number of bytes buffered before activation
+	 */
+	private void growEarlyData(int size, int limit) {
+		BufferPool bufferPool = manager.getBufferPool();
+		ByteBuffer buffer = bufferPool.borrow(size);
+		buffer.limit(Math.min(buffer.capacity(), Math.max(size, limit)));
+		if (earlyData != null) {
+			earlyData.flip();
+			buffer.put(earlyData);
+			bufferPool.release(earlyData);
+		}
+		earlyData = buffer;
+	}
+
+	/**
+	 * Read data sent by client after Socks5 handshake but before stream is activated
 	 *
 	 * @throws IOException
 	 */
-	private void handleCommand(ByteBuffer in) throws IOException {
-		byte ver = in.get();
-		if (ver != 0x05) {
-			throw new ProtocolException("Bad protocol version");
-		}
-
-		byte cmd = in.get();
-		in.get();
-		byte atype = in.get();
-		if (ver == 0x05 && cmd == 0x01 && atype == 0x03) {
-			byte len = in.get();
-			byte[] data = new byte[len];
-			in.get(data);
-			in.clear();
-			ByteBuffer tmp = ByteBuffer.allocate(len + 7);
-			tmp.put(ver);
-			tmp.put((byte) 0x00);
-			tmp.put((byte) 0x00);
-			tmp.put(atype);
-			tmp.put(len);
-			tmp.put(data);
-			tmp.put((byte) 0x00);
-			tmp.put((byte) 0x00);
-			tmp.flip();
-
-			manager.registerStream(new String(data), this);
-			state = State.Ready;
-
-			writeBytes(tmp);
-		} else {
+	private void readEarlyData() throws IOException {
+		int limit = manager.getEarlyDataLimit();
+		if (limit <= 0) {
+			return;
+		}
+
+		synchronized (earlyDataLock) {
+			// stream could be activated in the meantime, then data will be read by relay
+			if (state != State.Ready || earlyDataEndOfStream) {
+				return;
+			}
+			if (!canBufferEarlyData(limit)) {
+				return;
+			}
+			if (earlyData == null) {
+				growEarlyData(Math.min(limit, manager.getBufferPool().getMinBufferSize()), limit);
+			} else if (!earlyData.hasRemaining()) {
+				growEarlyData(Math.min(limit, manager.getBufferPool().getNextSize(earlyData.capacity())), limit);
+			}
+
+			int read = getSocketChannel().read(earlyData);
+			if (read > 0) {
+				bytesReceived.add(read);
+			} else if (read == -1) {
+				// connection will be closed after activation, when all data is sent
+				earlyDataEndOfStream = true;
+			}
+
 			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST,
-						"stopping service {0} after failure during AUTHENTICATION step, version = {1}, cmd = {2}, atype = {3}",
-						new Object[]{toString(), ver, cmd, atype});
+				log.log(Level.FINEST, "{0} read data before activation: {1}, buffered: {2}",
+						new Object[]{this, read, earlyData.position()});
 			}
-			forceStop();
 		}
+	}
 
+	/**
+	 * Handle Socks5 protocol WELCOME
+	 *
+	 * @param buf
+	 *
+	 * @return true - if WELCOME was accepted and reply needs to be sent
+	 *
+	 * @throws IOException
+	 */
+	private boolean handleWelcome(ByteBuffer buf) throws IOException {
+		switch (HandshakeParser.parseWelcome(buf)) {
+			case Incomplete:
+				break;
+			case Accepted:
+				state = State.Auth;
+				return true;
+			case Rejected:
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "stopping service {0} after failure during WELCOME step", toString());
+				}
+				forceStop();
+				break;
+			case Invalid:
+				if (log.isLoggable(Level.FINE)) {
+					log.log(Level.FINE, "stopping service {0} after detecting unsupported protocol", toString());
+				}
+				forceStop();
+				break;
+		}
+		return false;
+	}
+
+	/**
+	 * Handle Socks5 protocol command
+	 *
+	 * @param in
+	 * @param withWelcomeReply if reply for WELCOME needs to be sent before reply for command
+	 *
+	 * @return true - if command was accepted and reply was sent
+	 *
+	 * @throws IOException
+	 */
+	private boolean handleCommand(ByteBuffer in, boolean withWelcomeReply) throws IOException {
+		int start = in.position();
+		switch (HandshakeParser.parseConnect(in)) {
+			case Incomplete:
+				break;
+			case Accepted:
+				if (!manager.registerStream(in, HandshakeParser.getDestinationAddressOffset(start),
+											HandshakeParser.getDestinationAddressLength(in, start), this)) {
+					if (log.isLoggable(Level.FINE)) {
+						log.log(Level.FINE, "stopping service {0} after CONNECT to invalid stream id {1}",
+								new Object[]{toString(), HandshakeParser.getDestinationAddress(in, start)});
+					}
+					forceStop();
+					return false;
+				}
+				ByteBuffer reply = HandshakeParser.getConnectReply(in, start, withWelcomeReply);
+				state = State.Ready;
+
+				writeBytes(reply);
+				return true;
+			case Rejected:
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST,
+							"stopping service {0} after failure during AUTHENTICATION step, version = {1}, cmd = {2}, atype = {3}",
+							new Object[]{toString(), in.get(start), in.get(start + 1), in.get(start + 3)});
+				}
+				forceStop();
+				break;
+			case Invalid:
+				throw new ProtocolException("Bad protocol version");
+		}
+		return false;
 	}
 }
@@ -36,7 +36,7 @@ import tigase.server.Message;
 import tigase.server.Packet;
 import tigase.server.Priority;
 import tigase.socks5.repository.Socks5Repository;
-import tigase.util.Algorithms;
+import tigase.stats.StatisticsList;
 import tigase.util.dns.DNSEntry;
 import tigase.util.dns.DNSResolverFactory;
 import tigase.util.stringprep.TigaseStringprepException;
@@ -47,9 +47,9 @@ import tigase.xmpp.StanzaType;
 import tigase.xmpp.jid.JID;
 
 import java.net.UnknownHostException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -69,18 +69,30 @@ public class Socks5ProxyComponent
 	private static final Logger log = Logger.getLogger(Socks5ProxyComponent.class.getCanonicalName());
 	private static final String PACKET_FORWARD_CMD = "socks5-packet-forward";
 	private static final String[] QUERY_ACTIVATE_PATH = {"query", "activate"};
+	private static final int RETENTION_MONTHS_VAL = 0;
+	private static final int VERIFIER_QUEUE_SIZE_VAL = 16 * 1024;
+	private static final int VERIFIER_THREADS_VAL = 2;
 	private static final String XMLNS_BYTESTREAMS = "http://jabber.org/protocol/bytestreams";
 
 	//~--- fields ---------------------------------------------------------------
 	private final List<JID> cluster_nodes = new LinkedList<JID>();
 	private ClusterControllerIfc clusterController = null;
+	private final LongAdder compactedConnections = new LongAdder();
+	private final AtomicBoolean compacting = new AtomicBoolean(false);
 	private PacketForward packetForwardCmd = new PacketForward();
 	@ConfigField(desc = "Remote IP addresses", alias = "remote-addresses")
 	private String[] remoteAddresses = null;
+	@ConfigField(desc = "Number of past months for which connections are kept in repository (0 - keep forever)", alias = "retention-months")
+	private int retentionMonths = RETENTION_MONTHS_VAL;
 	@Inject
 	private Socks5Repository socks5_repo = null;
 	@Inject
 	private VerifierIfc verifier = null;
+	private volatile VerificationPipeline verificationPipeline = null;
+	@ConfigField(desc = "Maximal number of connections waiting for verification of transfer", alias = "verifier-queue-size")
+	private int verifierQueueSize = VERIFIER_QUEUE_SIZE_VAL;
+	@ConfigField(desc = "Number of threads verifying transfers", alias = "verifier-threads")
+	private int verifierThreads = VERIFIER_THREADS_VAL;
 
 	public Socks5ProxyComponent() {
 	}
@@ -88,6 +100,9 @@ public class Socks5ProxyComponent
 	@Override
 	public synchronized void everyHour() {
 		super.everyHour();
+		if (retentionMonths > 0) {
+			compactTransferUsed();
+		}
 	}
 
 	/**
@@ -99,6 +114,7 @@ public class Socks5ProxyComponent
 	public void nodeConnected(String node) {
 		try {
 			cluster_nodes.add(JID.jidInstance(getName() + "@" + node));
+			getBandwidthShaper().setClusterNodes(getClusterNodesCount());
 		} catch (TigaseStringprepException e) {
 			log.log(Level.WARNING, "TigaseStringprepException occured processing {0}", node);
 		}
@@ -113,6 +129,7 @@ public class Socks5ProxyComponent
 	public void nodeDisconnected(String node) {
 		try {
 			cluster_nodes.remove(JID.jidInstance(getName() + "@" + node));
+			getBandwidthShaper().setClusterNodes(getClusterNodesCount());
 		} catch (TigaseStringprepException e) {
 			log.log(Level.WARNING, "TigaseStringprepException occured processing {0}", node);
 		}
@@ -194,11 +211,13 @@ public class Socks5ProxyComponent
 					if (sid != null) {
 
 						// Generate stream unique id
-						String cid = createConnId(sid, packet.getStanzaFrom().toString(),
-												  query.getCDataStaticStr(QUERY_ACTIVATE_PATH));
+						StreamId cid = createConnId(sid, packet.getStanzaFrom().toString(),
+													query.getCDataStaticStr(QUERY_ACTIVATE_PATH));
 
 						if (cid == null) {
 							addOutPacket(packet.errorResult("cancel", null, "internal-server-error", null, false));
+
+							return;
 						}
 
 						Stream stream = getStream(cid);
@@ -239,16 +258,19 @@ public class Socks5ProxyComponent
 		}
 	}
 
+	@Override
+	public void serviceStarted(Socks5IOService<?> serv) {
+		super.serviceStarted(serv);
+		serv.setVerificationTask(getVerificationPipeline().createTask(serv));
+	}
+
 	@Override
 	public boolean serviceStopped(Socks5IOService<?> serv) {
-		try {
-			verifier.updateTransfer(serv, true);
-		} catch (TigaseDBException ex) {
-			log.log(Level.WARNING, "problem during accessing database ", ex);
-		} catch (QuotaException ex) {
-			if (log.isLoggable(Level.FINEST)) {
-				log.log(Level.FINEST, ex.getMessage(), ex);
-			}
+		VerificationPipeline.Task task = serv.getVerificationTask();
+		if (task != null) {
+			getVerificationPipeline().stopped(task);
+		} else {
+			verifyTransfer(serv, true);
 		}
 
 		return super.serviceStopped(serv);
@@ -256,10 +278,39 @@ public class Socks5ProxyComponent
 
 	@Override
 	public void socketDataProcessed(Socks5IOService service) {
+		VerificationPipeline.Task task = service.getVerificationTask();
+		if (task != null) {
+			getVerificationPipeline().publish(task);
+		}
+		super.socketDataProcessed(service);
+	}
+
+	@Override
+	public void stop() {
+		super.stop();
+		VerificationPipeline verificationPipeline = this.verificationPipeline;
+		if (verificationPipeline != null) {
+			verificationPipeline.stop();
+		}
+	}
+
+	/**
+	 * Update transfer of connection in verifier and stop connection if it exceeded its quota, called by threads of
+	 * verification pipeline
+	 *
+	 * @param service
+	 * @param stopped true if connection was already stopped
+	 */
+	protected void verifyTransfer(Socks5IOService<?> service, boolean stopped) {
 		try {
-			verifier.updateTransfer(service, false);
-			super.socketDataProcessed(service);
+			verifier.updateTransfer(service, stopped);
 		} catch (Socks5Exception ex) {
+			if (stopped) {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, ex.getMessage(), ex);
+				}
+				return;
+			}
 			if (log.isLoggable(Level.FINEST)) {
 				log.log(Level.FINEST, "stopping service after exception from verifier: " + ex.getMessage());
 			}
@@ -271,7 +322,7 @@ public class Socks5ProxyComponent
 			this.addOutPacket(message);
 			service.forceStop();
 		} catch (TigaseDBException ex) {
-			Logger.getLogger(Socks5ProxyComponent.class.getName()).log(Level.SEVERE, null, ex);
+			log.log(Level.WARNING, "problem during accessing database ", ex);
 		}
 	}
 
@@ -306,6 +357,40 @@ public class Socks5ProxyComponent
 		return "Socks5 Bytestreams Service";
 	}
 
+	@Override
+	public void getStatistics(StatisticsList list) {
+		super.getStatistics(list);
+		VerificationPipeline verificationPipeline = this.verificationPipeline;
+		if (verificationPipeline != null) {
+			verificationPipeline.getStatistics(getName(), list);
+		}
+		if (verifier != null) {
+			verifier.getStatistics(getName(), list);
+		}
+		list.add(getName(), "Connections removed by retention", compactedConnections.sum(), Level.FINE);
+	}
+
+	/**
+	 * Returns pipeline verifying transfers of connections
+	 *
+	 * @return
+	 */
+	public VerificationPipeline getVerificationPipeline() {
+		VerificationPipeline verificationPipeline = this.verificationPipeline;
+		if (verificationPipeline == null) {
+			synchronized (this) {
+				verificationPipeline = this.verificationPipeline;
+				if (verificationPipeline == null) {
+					verificationPipeline = new VerificationPipeline(getName() + "-verifier", this::verifyTransfer,
+																	verifierThreads, verifierQueueSize);
+					verificationPipeline.start();
+					this.verificationPipeline = verificationPipeline;
+				}
+			}
+		}
+		return verificationPipeline;
+	}
+
 	/**
 	 * Return Socks5 repository
 	 *
@@ -334,6 +419,34 @@ public class Socks5ProxyComponent
 
 	//~--- methods --------------------------------------------------------------
 
+	/**
+	 * Compact connections older than retained months in repository by separate thread, unless previous compaction is
+	 * still running. Each cluster node may run it, as folds of months are serialized by a database lock and months which
+	 * already have summaries are not folded again.
+	 */
+	protected void compactTransferUsed() {
+		if (!compacting.compareAndSet(false, true)) {
+			return;
+		}
+
+		Thread thread = new Thread(() -> {
+			try {
+				long removed = socks5_repo.compactTransferUsed(retentionMonths);
+				compactedConnections.add(removed);
+				if (log.isLoggable(Level.FINE)) {
+					log.log(Level.FINE, "removed {0} connections older than {1} months",
+							new Object[]{removed, retentionMonths});
+				}
+			} catch (TigaseDBException ex) {
+				log.log(Level.WARNING, "could not compact connections older than " + retentionMonths + " months", ex);
+			} finally {
+				compacting.set(false);
+			}
+		}, getName() + "-compaction");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
 	/**
 	 * Send to next node if there is any available
 	 *
@@ -397,6 +510,11 @@ public class Socks5ProxyComponent
 
 	//~--- get methods ----------------------------------------------------------
 
+	@Override
+	protected int getClusterNodesCount() {
+		return cluster_nodes.size() + 1;
+	}
+
 	/**
 	 * Returns array of default ports
 	 *
@@ -442,17 +560,13 @@ public class Socks5ProxyComponent
 	 *
 	 * @return
 	 */
-	private String createConnId(String sid, String from, String to) {
-		try {
-			String id = sid + from + to;
-			MessageDigest md = MessageDigest.getInstance("SHA-1");
-
-			return Algorithms.hexDigest("", id, "SHA-1");
-		} catch (NoSuchAlgorithmException e) {
-			log.warning(e.getMessage());
-
-			return null;
+	private StreamId createConnId(String sid, String from, String to) {
+		StreamId id = StreamId.create(sid, from, to);
+		if (id == null) {
+			log.warning("SHA-1 digest is not available");
 		}
+
+		return id;
 	}
 
 	//~--- inner classes --------------------------------------------------------
@@ -477,9 +591,9 @@ public class Socks5ProxyComponent
 					packet.setPacketFrom(fromNode);
 					packet.setPacketTo(getComponentId());
 
-					String cid = createConnId(el_packet.getAttributeStaticStr(Iq.IQ_QUERY_PATH, "sid"),
-											  el_packet.getAttributeStaticStr(Packet.FROM_ATT),
-											  el_packet.getCDataStaticStr(IQ_QUERY_ACTIVATE_PATH));
+					StreamId cid = createConnId(el_packet.getAttributeStaticStr(Iq.IQ_QUERY_PATH, "sid"),
+												el_packet.getAttributeStaticStr(Packet.FROM_ATT),
+												el_packet.getCDataStaticStr(IQ_QUERY_ACTIVATE_PATH));
 
 					if (cid == null) {
 						addOutPacket(Authorization.INTERNAL_SERVER_ERROR.getResponseMessage(packet,
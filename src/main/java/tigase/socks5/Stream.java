@@ -17,12 +17,14 @@
  */
 package tigase.socks5;
 
+import tigase.net.SocketThread;
 import tigase.xmpp.jid.JID;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,26 +32,65 @@ public class Stream {
 
 	private static final Logger log = Logger.getLogger(Stream.class.getCanonicalName());
 
+	private final AtomicBoolean closed = new AtomicBoolean(false);
 	private final Socks5IOService[] conns = new Socks5IOService[2];
+	// time (from System.nanoTime()) when stream was created and activated (0 - not activated)
+	private final long created = System.nanoTime();
 	private final Map<String, Object> data;
+	// stream id (SHA-1 digest) split into two longs and an int
+	private final long id0;
+	private final long id1;
+	private final int id2;
 	private final Socks5ConnectionManager manager;
-	private final String sid;
+	private volatile long activated = 0;
+	private volatile boolean blockingRelay = false;
+	private volatile StreamRelay relay = null;
+	private volatile RelayLoop relayLoop = null;
 	private JID requester = null;
 	private JID target = null;
 
-	public Stream(String sid, Socks5ConnectionManager manager) {
-		this.sid = sid;
+	public Stream(long id0, long id1, int id2, Socks5ConnectionManager manager) {
+		this.id0 = id0;
+		this.id1 = id1;
+		this.id2 = id2;
 		this.manager = manager;
 		this.data = new HashMap<String, Object>();
 	}
 
 	/**
-	 * Returns stream id
+	 * Returns stream id in hexadecimal form
 	 *
 	 * @return
 	 */
 	public String getSID() {
-		return sid;
+		return StreamRegistry.toHex(id0, id1, id2);
+	}
+
+	/**
+	 * Returns first 8 bytes of stream id
+	 *
+	 * @return
+	 */
+	public long getId0() {
+		return id0;
+	}
+
+	/**
+	 * Returns next 8 bytes of stream id
+	 *
+	 * @return
+	 */
+	public long getId1() {
+		return id1;
+	}
+
+	/**
+	 * Returns last 4 bytes of stream id
+	 *
+	 * @return
+	 */
+	public int getId2() {
+		return id2;
 	}
 
 	/**
@@ -132,42 +173,113 @@ public class Stream {
 	}
 
 	/**
-	 * Forward data to another service
-	 *
-	 * @param buf
-	 * @param con
+	 * Tries to activate stream and each of service
 	 *
-	 * @throws IOException
+	 * @return
 	 */
-	public void proxy(ByteBuffer buf, Socks5IOService con) throws IOException {
-		if (conns[0] == con) {
-			con = conns[1];
-		} else {
-			con = conns[0];
+	public boolean activate() {
+		if (conns[0] == null || conns[1] == null) {
+			return false;
+		}
+
+		activated = System.nanoTime();
+		manager.getTransferStatistics().activated(activated - created);
+		for (Socks5IOService con : conns) {
+			manager.connectionActivated(con);
+		}
+
+		if (manager.isBlockingRelay()) {
+			return activateBlocking();
 		}
 
-//                if (log.isLoggable(Level.FINEST)) {
-//                        log.log(Level.FINEST, "writing data to connection = {0}", con);
-//                }
-		if (!con.waitingToSend()) {
-			con.writeBytes(buf);
-//        } else {
+		// relay needs to be ready before it is published to services
+		StreamRelay relay = new StreamRelay(conns[0], conns[1], manager);
+		for (Socks5IOService con : conns) {
+			con.activate();
+			ByteBuffer earlyData = con.takeEarlyData();
+			if (earlyData != null) {
+				relay.addEarlyData(con, earlyData);
+			}
+		}
+
+		RelayLoop relayLoop = manager.getRelayLoop(this);
+		if (relayLoop != null) {
+			// loop needs to be set first, so socket threads will not use relay
+			this.relayLoop = relayLoop;
+			this.relay = relay;
+			relayLoop.register(this, relay);
+			return true;
+		}
+		this.relay = relay;
+
+		// data received before activation is sent immediately, without waiting for socket threads
+		for (Socks5IOService con : conns) {
+			boolean sent = true;
+			try {
+				sent = relay.flush(con);
+			} catch (IOException ex) {
+				if (log.isLoggable(Level.FINEST)) {
+					log.log(Level.FINEST, "could not send data received before activation to " + con, ex);
+				}
+			}
+
+			if (log.isLoggable(Level.FINEST) && !sent) {
+				log.log(Level.FINEST, "data received before activation not fully sent to {0}", con);
+			}
+			// service needs to be added back to read data and write remaining data
+			SocketThread.addSocketService(con);
 		}
-		buf.compact();
+		return true;
 	}
 
 	/**
-	 * Tries to activate stream and each of service
+	 * Returns loop relaying data of activated stream or null if data is relayed by socket threads
 	 *
 	 * @return
 	 */
-	public boolean activate() {
-		if (conns[0] == null || conns[1] == null) {
-			return false;
-		}
+	public RelayLoop getRelayLoop() {
+		return relayLoop;
+	}
 
-		conns[0].activate();
-		conns[1].activate();
+	/**
+	 * Check if activated stream is relayed by threads using blocking operations instead of socket threads
+	 *
+	 * @return
+	 */
+	public boolean isBlockingRelay() {
+		return blockingRelay;
+	}
+
+	/**
+	 * Returns relay used to forward data between connections of activated stream
+	 *
+	 * @return
+	 */
+	public StreamRelay getRelay() {
+		return relay;
+	}
+
+	/**
+	 * Activate stream relayed by thread per direction
+	 *
+	 * @return
+	 */
+	private boolean activateBlocking() {
+		BlockingStreamRelay relay = new BlockingStreamRelay(conns[0], conns[1], manager);
+		this.blockingRelay = true;
+		for (Socks5IOService con : conns) {
+			con.activate();
+			ByteBuffer earlyData = con.takeEarlyData();
+			if (earlyData != null) {
+				relay.addEarlyData(con, earlyData);
+			}
+		}
+		relay.start(manager.getRelayExecutor());
+		// socket threads release connections which are not processed by them at the moment, others are released after
+		// their processing ends
+		for (Socks5IOService con : conns) {
+			SocketThread.addSocketService(con);
+		}
 		return true;
 	}
 
@@ -175,13 +287,24 @@ public class Stream {
 	 * Close stream
 	 */
 	public void close() {
-		int bytesRead = 0;
+		long bytesRead = 0;
 
 		manager.unregisterStream(this);
 
+		StreamRelay relay = this.relay;
 		for (int i = 0; i < conns.length; i++) {
 			if (conns[i] != null) {
 				bytesRead += conns[i].getBytesReceived();
+				if (relay != null) {
+					// data waiting in relay is not visible to socket threads, so it is sent before buffers are released
+					try {
+						relay.flush(conns[i]);
+					} catch (IOException ex) {
+						if (log.isLoggable(Level.FINEST)) {
+							log.log(Level.FINEST, "could not send remaining data to " + conns[i], ex);
+						}
+					}
+				}
 				if (!conns[i].waitingToSend()) {
 					if (log.isLoggable(Level.FINEST)) {
 						log.log(Level.FINEST, "stopping connection {0}, bytes read: {1}, written: {2}",
@@ -199,6 +322,18 @@ public class Stream {
 			}
 			//conns[i] = null;			
 		}
+
+		// return relay buffers to the pool
+		if (relay != null) {
+			for (Socks5IOService con : conns) {
+				relay.close(con);
+			}
+		}
+		// stream is closed by each of its connections, but transfer is recorded only once
+		long activated = this.activated;
+		if (activated != 0 && closed.compareAndSet(false, true)) {
+			manager.getTransferStatistics().transferCompleted(bytesRead, System.nanoTime() - activated);
+		}
 		if (log.isLoggable(Level.FINE)) {
 			log.log(Level.FINE, "stream sid = {0} transferred {1} bytes", new Object[]{toString(), bytesRead});
 		}
@@ -210,7 +345,8 @@ public class Stream {
 	 * @return
 	 */
 	public int hashCodeForStream() {
-		return sid.hashCode();
+		// id is a digest, so its bits are already evenly distributed
+		return (int) (id0 ^ (id0 >>> 32));
 	}
 
 	/**
@@ -233,8 +369,8 @@ public class Stream {
 	 *
 	 * @return
 	 */
-	public int getTransferredBytes() {
-		int bytesTransferred = 0;
+	public long getTransferredBytes() {
+		long bytesTransferred = 0;
 
 		for (Socks5IOService con : conns) {
 			if (con != null) {
@@ -245,8 +381,20 @@ public class Stream {
 		return bytesTransferred;
 	}
 
+	/**
+	 * Returns estimated rate of data sent from connection of passed type to the other connection
+	 *
+	 * @param type
+	 *
+	 * @return bytes per second
+	 */
+	public long getTransferRate(Socks5ConnectionType type) {
+		Socks5IOService con = getConnection(type);
+		return con == null ? 0 : con.getReceiveRate();
+	}
+
 	@Override
 	public String toString() {
-		return sid;
+		return getSID();
 	}
 }
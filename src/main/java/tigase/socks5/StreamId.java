@@ -0,0 +1,190 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Binary stream id, which is SHA-1 digest of stream sid, requester JID and target JID.
+ * <br>
+ * Digest is calculated by digester reused by each thread, which encodes passed strings to UTF-8 in its own buffer,
+ * so no intermediate strings or arrays are created.
+ *
+ * @author andrzej
+ */
+public final class StreamId {
+
+	private static final int DIGEST_LENGTH = 20;
+	private static final ThreadLocal<Digester> DIGESTER = ThreadLocal.withInitial(Digester::new);
+
+	private final long id0;
+	private final long id1;
+	private final int id2;
+
+	/**
+	 * Creates stream id for stream sid, requester and target JIDs
+	 *
+	 * @param sid
+	 * @param requester
+	 * @param target
+	 *
+	 * @return stream id or null if SHA-1 is not available
+	 */
+	public static StreamId create(String sid, String requester, String target) {
+		return DIGESTER.get().digest(sid, requester, target);
+	}
+
+	public StreamId(long id0, long id1, int id2) {
+		this.id0 = id0;
+		this.id1 = id1;
+		this.id2 = id2;
+	}
+
+	/**
+	 * Returns first 8 bytes of id
+	 *
+	 * @return
+	 */
+	public long getId0() {
+		return id0;
+	}
+
+	/**
+	 * Returns next 8 bytes of id
+	 *
+	 * @return
+	 */
+	public long getId1() {
+		return id1;
+	}
+
+	/**
+	 * Returns last 4 bytes of id
+	 *
+	 * @return
+	 */
+	public int getId2() {
+		return id2;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof StreamId)) {
+			return false;
+		}
+		StreamId other = (StreamId) obj;
+		return id0 == other.id0 && id1 == other.id1 && id2 == other.id2;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (id0 ^ (id0 >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		return StreamRegistry.toHex(id0, id1, id2);
+	}
+
+	/**
+	 * Calculates digests of stream ids, should be used only by a single thread
+	 */
+	private static final class Digester {
+
+		private final byte[] digest = new byte[DIGEST_LENGTH];
+		private final MessageDigest md;
+		private byte[] buffer = new byte[256];
+		private int length = 0;
+
+		private Digester() {
+			MessageDigest md = null;
+			try {
+				md = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException ex) {
+				// reported when digest is requested
+			}
+			this.md = md;
+		}
+
+		private StreamId digest(String sid, String requester, String target) {
+			if (md == null) {
+				return null;
+			}
+
+			// null parts are hashed as "null" as they were when parts were concatenated
+			length = 0;
+			encode(String.valueOf(sid));
+			encode(String.valueOf(requester));
+			encode(String.valueOf(target));
+			md.update(buffer, 0, length);
+			try {
+				md.digest(digest, 0, DIGEST_LENGTH);
+			} catch (DigestException ex) {
+				md.reset();
+				return null;
+			}
+
+			return new StreamId(getLong(0), getLong(8), (int) (getLong(12) & 0xFFFFFFFFL));
+		}
+
+		private void encode(String str) {
+			int len = str.length();
+			// single char is encoded in up to 3 bytes, surrogate pair in 4 bytes
+			if (buffer.length < length + len * 3) {
+				byte[] resized = new byte[Math.max(buffer.length * 2, length + len * 3)];
+				System.arraycopy(buffer, 0, resized, 0, length);
+				buffer = resized;
+			}
+
+			for (int i = 0; i < len; i++) {
+				char c = str.charAt(i);
+				if (c < 0x80) {
+					buffer[length++] = (byte) c;
+				} else if (c < 0x800) {
+					buffer[length++] = (byte) (0xC0 | (c >> 6));
+					buffer[length++] = (byte) (0x80 | (c & 0x3F));
+				} else if (Character.isSurrogate(c)) {
+					if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+						int cp = Character.toCodePoint(c, str.charAt(++i));
+						buffer[length++] = (byte) (0xF0 | (cp >> 18));
+						buffer[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+						buffer[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+						buffer[length++] = (byte) (0x80 | (cp & 0x3F));
+					} else {
+						// malformed surrogate is replaced in the same way as by String.getBytes()
+						buffer[length++] = (byte) '?';
+					}
+				} else {
+					buffer[length++] = (byte) (0xE0 | (c >> 12));
+					buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+					buffer[length++] = (byte) (0x80 | (c & 0x3F));
+				}
+			}
+		}
+
+		private long getLong(int offset) {
+			long value = 0;
+			for (int i = offset; i < offset + 8; i++) {
+				value = (value << 8) | (digest[i] & 0xFF);
+			}
+			return value;
+		}
+	}
+}
@@ -0,0 +1,459 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+
+/**
+ * Registry of streams keyed by stream id, which is SHA-1 digest of stream sid, requester and target JIDs.
+ * <br>
+ * Ids are kept in binary form (two longs and an int) in open addressing tables, so registered streams do not need
+ * strings or map nodes for keys and lookups do not allocate. Ids are stored in segments, each with its own lock, to
+ * limit contention. Lookups use optimistic reads and lock the segment only if it was modified at the same time.
+ * <br>
+ * Ids are received from clients, so hashes of ids are seeded with random value to prevent clients from filling single
+ * segment with colliding ids.
+ *
+ * @author andrzej
+ */
+public class StreamRegistry {
+
+	/**
+	 * Length of stream id in hexadecimal form
+	 */
+	public static final int ID_LENGTH = 40;
+
+	private static final int DEFAULT_SEGMENTS = 16;
+	private static final int INITIAL_CAPACITY = 16;
+
+	private final long seed = ThreadLocalRandom.current().nextLong();
+	private final int segmentShift;
+	private final Segment[] segments;
+
+	public StreamRegistry() {
+		this(DEFAULT_SEGMENTS);
+	}
+
+	/**
+	 * Creates registry
+	 *
+	 * @param concurrency expected number of threads modifying registry at once
+	 */
+	public StreamRegistry(int concurrency) {
+		int bits = 32 - Integer.numberOfLeadingZeros(Math.max(concurrency, 2) - 1);
+		this.segmentShift = 32 - bits;
+		this.segments = new Segment[1 << bits];
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = new Segment();
+		}
+	}
+
+	/**
+	 * Check if data contains valid stream id in hexadecimal form
+	 *
+	 * @param in
+	 * @param offset
+	 * @param length
+	 *
+	 * @return
+	 */
+	public static boolean isId(ByteBuffer in, int offset, int length) {
+		if (length != ID_LENGTH) {
+			return false;
+		}
+		for (int i = offset; i < offset + length; i++) {
+			if (digit(in.get(i)) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check if string is valid stream id in hexadecimal form
+	 *
+	 * @param id
+	 *
+	 * @return
+	 */
+	public static boolean isId(CharSequence id) {
+		if (id == null || id.length() != ID_LENGTH) {
+			return false;
+		}
+		for (int i = 0; i < ID_LENGTH; i++) {
+			if (digit(id.charAt(i)) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parse part of stream id validated by {@link #isId(ByteBuffer, int, int)}
+	 *
+	 * @param in
+	 * @param offset position of first hexadecimal digit
+	 * @param digits number of digits to parse (up to 16)
+	 *
+	 * @return
+	 */
+	public static long parseHex(ByteBuffer in, int offset, int digits) {
+		long value = 0;
+		for (int i = offset; i < offset + digits; i++) {
+			value = (value << 4) | digit(in.get(i));
+		}
+		return value;
+	}
+
+	/**
+	 * Parse part of stream id validated by {@link #isId(CharSequence)}
+	 *
+	 * @param id
+	 * @param offset position of first hexadecimal digit
+	 * @param digits number of digits to parse (up to 16)
+	 *
+	 * @return
+	 */
+	public static long parseHex(CharSequence id, int offset, int digits) {
+		long value = 0;
+		for (int i = offset; i < offset + digits; i++) {
+			value = (value << 4) | digit(id.charAt(i));
+		}
+		return value;
+	}
+
+	/**
+	 * Returns stream id in hexadecimal form
+	 *
+	 * @param id0 first 8 bytes of id
+	 * @param id1 next 8 bytes of id
+	 * @param id2 last 4 bytes of id
+	 *
+	 * @return
+	 */
+	public static String toHex(long id0, long id1, int id2) {
+		char[] chars = new char[ID_LENGTH];
+		toHex(chars, 0, id0, 16);
+		toHex(chars, 16, id1, 16);
+		toHex(chars, 32, id2 & 0xFFFFFFFFL, 8);
+		return new String(chars);
+	}
+
+	/**
+	 * Returns stream registered with id in hexadecimal form
+	 *
+	 * @param id
+	 *
+	 * @return stream or null if there is no such stream or id is not valid
+	 */
+	public Stream get(CharSequence id) {
+		if (!isId(id)) {
+			return null;
+		}
+		return get(parseHex(id, 0, 16), parseHex(id, 16, 16), (int) parseHex(id, 32, 8));
+	}
+
+	/**
+	 * Returns stream registered with id
+	 *
+	 * @param id
+	 *
+	 * @return stream or null if there is no such stream
+	 */
+	public Stream get(StreamId id) {
+		return get(id.getId0(), id.getId1(), id.getId2());
+	}
+
+	/**
+	 * Returns stream registered with id
+	 *
+	 * @param id0 first 8 bytes of id
+	 * @param id1 next 8 bytes of id
+	 * @param id2 last 4 bytes of id
+	 *
+	 * @return stream or null if there is no such stream
+	 */
+	public Stream get(long id0, long id1, int id2) {
+		int hash = hash(id0, id1, id2);
+		return segmentFor(hash).get(hash, id0, id1, id2);
+	}
+
+	/**
+	 * Register stream if there is no stream registered with the same id
+	 *
+	 * @param stream
+	 *
+	 * @return stream registered with the same id before or null if passed stream was registered
+	 */
+	public Stream putIfAbsent(Stream stream) {
+		int hash = hash(stream.getId0(), stream.getId1(), stream.getId2());
+		return segmentFor(hash).putIfAbsent(hash, stream);
+	}
+
+	/**
+	 * Remove stream from registry
+	 *
+	 * @param stream
+	 *
+	 * @return true if stream was registered
+	 */
+	public boolean remove(Stream stream) {
+		int hash = hash(stream.getId0(), stream.getId1(), stream.getId2());
+		return segmentFor(hash).remove(hash, stream);
+	}
+
+	/**
+	 * Returns number of registered streams
+	 *
+	 * @return
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size;
+		}
+		return size;
+	}
+
+	/**
+	 * Returns number of slots allocated for streams
+	 *
+	 * @return
+	 */
+	public int getCapacity() {
+		int capacity = 0;
+		for (Segment segment : segments) {
+			capacity += segment.table.streams.length;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Pass each registered stream to consumer. Segment of registry is locked while its streams are processed, so
+	 * consumer should not modify registry.
+	 *
+	 * @param consumer
+	 */
+	public void forEach(Consumer<Stream> consumer) {
+		for (Segment segment : segments) {
+			segment.forEach(consumer);
+		}
+	}
+
+	private static int digit(int c) {
+		if (c >= '0' && c <= '9') {
+			return c - '0';
+		}
+		c |= 0x20;
+		if (c >= 'a' && c <= 'f') {
+			return c - 'a' + 10;
+		}
+		return -1;
+	}
+
+	private static void toHex(char[] chars, int offset, long value, int digits) {
+		for (int i = offset + digits - 1; i >= offset; i--) {
+			chars[i] = Character.forDigit((int) (value & 0xF), 16);
+			value >>>= 4;
+		}
+	}
+
+	private int hash(long id0, long id1, int id2) {
+		long h = (id0 ^ seed) * 0x9E3779B97F4A7C15L + id1;
+		h = (h ^ (h >>> 32)) * 0x9E3779B97F4A7C15L + id2;
+		h ^= h >>> 29;
+		h *= 0xBF58476D1CE4E5B9L;
+		h ^= h >>> 32;
+		return (int) h;
+	}
+
+	private Segment segmentFor(int hash) {
+		return segments[hash >>> segmentShift];
+	}
+
+	/**
+	 * Open addressing table with linear probing
+	 */
+	private static final class Table {
+
+		// first and second part of id of stream in slot
+		private final long[] ids;
+		// last part of id of stream in slot
+		private final int[] tails;
+		// stream in slot, null if slot is empty
+		private final Stream[] streams;
+		private final int mask;
+
+		private Table(int capacity) {
+			this.ids = new long[capacity * 2];
+			this.tails = new int[capacity];
+			this.streams = new Stream[capacity];
+			this.mask = capacity - 1;
+		}
+
+		/**
+		 * Returns slot of stream with passed id or -1 if there is no such stream
+		 */
+		private int find(int hash, long id0, long id1, int id2) {
+			int idx = hash & mask;
+			// table is never full, limit is needed only if table is modified during optimistic read
+			for (int i = 0; i <= mask; i++) {
+				Stream stream = streams[idx];
+				if (stream == null) {
+					return -1;
+				}
+				if (ids[idx * 2] == id0 && ids[idx * 2 + 1] == id1 && tails[idx] == id2) {
+					return idx;
+				}
+				idx = (idx + 1) & mask;
+			}
+			return -1;
+		}
+
+		private void insert(int hash, Stream stream) {
+			int idx = hash & mask;
+			while (streams[idx] != null) {
+				idx = (idx + 1) & mask;
+			}
+			set(idx, stream.getId0(), stream.getId1(), stream.getId2(), stream);
+		}
+
+		private void set(int idx, long id0, long id1, int id2, Stream stream) {
+			ids[idx * 2] = id0;
+			ids[idx * 2 + 1] = id1;
+			tails[idx] = id2;
+			streams[idx] = stream;
+		}
+	}
+
+	private final class Segment {
+
+		private final StampedLock lock = new StampedLock();
+		// fields below are modified only while holding write lock
+		private volatile int size = 0;
+		private volatile Table table = new Table(INITIAL_CAPACITY);
+
+		private Stream get(int hash, long id0, long id1, int id2) {
+			long stamp = lock.tryOptimisticRead();
+			Stream stream = find(hash, id0, id1, id2);
+			if (!lock.validate(stamp)) {
+				stamp = lock.readLock();
+				try {
+					stream = find(hash, id0, id1, id2);
+				} finally {
+					lock.unlockRead(stamp);
+				}
+			}
+			return stream;
+		}
+
+		private Stream find(int hash, long id0, long id1, int id2) {
+			Table table = this.table;
+			int idx = table.find(hash, id0, id1, id2);
+			return idx < 0 ? null : table.streams[idx];
+		}
+
+		private Stream putIfAbsent(int hash, Stream stream) {
+			long stamp = lock.writeLock();
+			try {
+				Stream existing = find(hash, stream.getId0(), stream.getId1(), stream.getId2());
+				if (existing != null) {
+					return existing;
+				}
+				// load factor is kept below 3/4 to keep probe sequences short
+				if ((size + 1) * 4 > table.streams.length * 3) {
+					resize(table.streams.length * 2);
+				}
+				table.insert(hash, stream);
+				size++;
+				return null;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		private boolean remove(int hash, Stream stream) {
+			long stamp = lock.writeLock();
+			try {
+				Table table = this.table;
+				int idx = table.find(hash, stream.getId0(), stream.getId1(), stream.getId2());
+				if (idx < 0 || table.streams[idx] != stream) {
+					return false;
+				}
+				delete(table, idx);
+				size--;
+				if (table.streams.length > INITIAL_CAPACITY && size * 8 < table.streams.length) {
+					resize(table.streams.length / 2);
+				}
+				return true;
+			} finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		private void forEach(Consumer<Stream> consumer) {
+			long stamp = lock.readLock();
+			try {
+				for (Stream stream : table.streams) {
+					if (stream != null) {
+						consumer.accept(stream);
+					}
+				}
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		/**
+		 * Remove stream from slot, moving back streams from following slots so no probe sequence is broken
+		 */
+		private void delete(Table table, int idx) {
+			int mask = table.mask;
+			int free = idx;
+			int next = idx;
+			while (true) {
+				next = (next + 1) & mask;
+				Stream stream = table.streams[next];
+				if (stream == null) {
+					break;
+				}
+				int home = hash(stream.getId0(), stream.getId1(), stream.getId2()) & mask;
+				// stream may be moved to free slot only if free slot is not before its home slot
+				boolean movable = free <= next ? (home <= free || home > next) : (home <= free && home > next);
+				if (movable) {
+					table.set(free, table.ids[next * 2], table.ids[next * 2 + 1], table.tails[next], stream);
+					free = next;
+				}
+			}
+			table.set(free, 0, 0, 0, null);
+		}
+
+		private void resize(int capacity) {
+			Table resized = new Table(capacity);
+			for (Stream stream : table.streams) {
+				if (stream != null) {
+					resized.insert(hash(stream.getId0(), stream.getId1(), stream.getId2()), stream);
+				}
+			}
+			table = resized;
+		}
+	}
+}
@@ -0,0 +1,579 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Relay used to forward data between both connections of an activated stream. Data is read directly from
+ * <code>SocketChannel</code> of one connection into buffers borrowed from <code>BufferPool</code> and written directly
+ * to <code>SocketChannel</code> of the other connection, bypassing <code>IOService</code> input and output buffers.
+ * Relay is finished when both directions reached end of stream.
+ *
+ * @author andrzej
+ */
+public class StreamRelay {
+
+	private static final Logger log = Logger.getLogger(StreamRelay.class.getCanonicalName());
+
+	private final Direction[] directions = new Direction[2];
+
+	public StreamRelay(Socks5IOService first, Socks5IOService second, Socks5ConnectionManager manager) {
+		long streamRate = getStreamRateLimit(first, second);
+		TokenBucket stream = streamRate > 0 ? new TokenBucket(streamRate) : null;
+		directions[0] = new Direction(first, second, manager, stream);
+		directions[1] = new Direction(second, first, manager, stream);
+	}
+
+	/**
+	 * Returns lowest transfer rate limit per file of both connections
+	 *
+	 * @param first
+	 * @param second
+	 *
+	 * @return
+	 */
+	static long getStreamRateLimit(Socks5IOService first, Socks5IOService second) {
+		long rate = 0;
+		for (Socks5IOService con : new Socks5IOService[]{first, second}) {
+			Limits limits = con.getLimits();
+			if (limits != null && limits.getTransferRateLimitPerFile() > 0) {
+				rate = rate == 0
+					   ? limits.getTransferRateLimitPerFile()
+					   : Math.min(rate, limits.getTransferRateLimitPerFile());
+			}
+		}
+		return rate;
+	}
+
+	/**
+	 * Closes direction of a relay writing data to connection and returns its buffers to the pool
+	 *
+	 * @param destination
+	 */
+	public void close(Socks5IOService destination) {
+		Direction direction = getDirectionTo(destination);
+		if (direction != null) {
+			direction.close();
+		}
+	}
+
+	/**
+	 * Adds data received from connection before relay was started. This data will be sent before any other data read
+	 * from this connection and returned to the pool after that. Needs to be called before relay is published to
+	 * connections.
+	 *
+	 * @param source
+	 * @param data buffer borrowed from pool
+	 */
+	public void addEarlyData(Socks5IOService source, ByteBuffer data) {
+		Direction direction = getDirectionFrom(source);
+		if (direction != null) {
+			if (data.hasRemaining()) {
+				direction.earlyData = data;
+			} else {
+				direction.bufferPool.release(data);
+			}
+		}
+	}
+
+	/**
+	 * Check if data should be read from connection, that is if amount of data read from it and waiting to be written
+	 * is below watermark
+	 *
+	 * @param source
+	 *
+	 * @return
+	 */
+	public boolean canRead(Socks5IOService source) {
+		Direction direction = getDirectionFrom(source);
+		return direction != null && direction.hasSpace();
+	}
+
+	/**
+	 * Check if there is data waiting to be written to connection
+	 *
+	 * @param destination
+	 *
+	 * @return
+	 */
+	public boolean hasPendingOutput(Socks5IOService destination) {
+		Direction direction = getDirectionTo(destination);
+		return direction != null && (direction.hasPending() || direction.isShutdownPending());
+	}
+
+	/**
+	 * Check if end of stream was reached in both directions and output of both connections was shut down
+	 *
+	 * @return
+	 */
+	public boolean isFinished() {
+		for (Direction direction : directions) {
+			if (!direction.finished) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Check if reading from connection was resumed after data waiting to be written to connection dropped to low
+	 * watermark. Resumption is reported only once.
+	 *
+	 * @param destination
+	 *
+	 * @return
+	 */
+	public boolean isReadingResumed(Socks5IOService destination) {
+		Direction direction = getDirectionTo(destination);
+		if (direction == null || !direction.resumed) {
+			return false;
+		}
+		direction.resumed = false;
+		return true;
+	}
+
+	/**
+	 * Reads data once from connection and writes it once to the second connection of a stream. Nothing is done if
+	 * direction is currently owned by other thread.
+	 *
+	 * @param source
+	 *
+	 * @return number of bytes read or -1 if end of stream was reached
+	 *
+	 * @throws IOException
+	 */
+	public int relay(Socks5IOService source) throws IOException {
+		Direction direction = getDirectionFrom(source);
+		if (direction == null || !direction.tryAcquire()) {
+			return 0;
+		}
+
+		long start = System.nanoTime();
+		try {
+			int read = direction.hasSpace() ? direction.read() : 0;
+			if (direction.hasPending()) {
+				direction.write();
+			}
+			direction.shutdownIfDrained();
+			return read;
+		} finally {
+			direction.release(start);
+		}
+	}
+
+	/**
+	 * Writes data waiting to be sent to connection. Nothing is done if direction is currently owned by other thread,
+	 * as this thread will write data.
+	 *
+	 * @param destination
+	 *
+	 * @return true - if all data was written
+	 *
+	 * @throws IOException
+	 */
+	public boolean flush(Socks5IOService destination) throws IOException {
+		Direction direction = getDirectionTo(destination);
+		if (direction == null) {
+			return true;
+		}
+		if (!direction.hasPending() && !direction.isShutdownPending()) {
+			return true;
+		}
+		if (!direction.tryAcquire()) {
+			return false;
+		}
+
+		long start = System.nanoTime();
+		try {
+			direction.write();
+			direction.shutdownIfDrained();
+			return !direction.hasPending();
+		} finally {
+			direction.release(start);
+		}
+	}
+
+	private Direction getDirectionFrom(Socks5IOService source) {
+		for (Direction direction : directions) {
+			if (direction.source == source) {
+				return direction;
+			}
+		}
+		return null;
+	}
+
+	private Direction getDirectionTo(Socks5IOService destination) {
+		for (Direction direction : directions) {
+			if (direction.destination == destination) {
+				return direction;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Single direction of a relay
+	 */
+	private static class Direction {
+
+		// timer resolution is in milliseconds
+		private static final long MIN_THROTTLE_DELAY = TimeUnit.MILLISECONDS.toNanos(1);
+
+		private final BandwidthShaper bandwidthShaper;
+		private final BufferPool bufferPool;
+		// buffers with data read from source, first buffer is written to destination,
+		// data is read into last buffer, each buffer is kept with position set after read data
+		private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<ByteBuffer>();
+		private final Socks5IOService destination;
+		private final int highWatermark;
+		private final int lowWatermark;
+		private final Socks5ConnectionManager manager;
+		// set while thread is reading or writing data of this direction, threads never wait for each other - if
+		// direction is already owned, its owner is going to write data anyway and connection which did not get
+		// ownership is added back to its socket thread, so the operation is retried after the next readiness event
+		private final AtomicBoolean owned = new AtomicBoolean(false);
+		private final Socks5IOService source;
+		private final RelayStatistics statistics;
+		// fields below are modified only by owner of the direction, volatile
+		// fields are also checked by other threads to decide if there is work to do
+		// buckets limiting transfer rate, null if not limited
+		private TokenBucket[] buckets;
+		private volatile boolean closed = false;
+		// set when end of stream was read from source
+		private volatile boolean endOfStream = false;
+		// set when output of destination was shut down after end of stream
+		private volatile boolean finished = false;
+		// data received before relay was started
+		private volatile ByteBuffer earlyData = null;
+		// reading from source is paused after reaching high watermark, until pending data drops to low watermark
+		private volatile boolean paused = false;
+		// number of bytes read from source and not yet written to destination
+		private volatile int pending = 0;
+		// size of next buffer borrowed from pool
+		private int bufferSize;
+		// pending buffers passed to gathering write and positions up to which they were filled
+		private int[] filled = new int[4];
+		private ByteBuffer[] gather = new ByteBuffer[4];
+		// position of first byte of first buffer not yet written to destination
+		private int readIndex = 0;
+		// set when reading was resumed after reaching low watermark
+		private volatile boolean resumed = false;
+		// time (from System.nanoTime()) until which reading is paused due to transfer rate limit
+		private volatile long throttledUntil = 0;
+
+		private Direction(Socks5IOService source, Socks5IOService destination, Socks5ConnectionManager manager,
+						  TokenBucket stream) {
+			this.source = source;
+			this.destination = destination;
+			this.manager = manager;
+			this.bufferPool = manager.getBufferPool();
+			this.bufferSize = bufferPool.getMinBufferSize();
+			this.bandwidthShaper = manager.getBandwidthShaper();
+			this.statistics = manager.getRelayStatistics();
+			this.highWatermark = Math.max(manager.getRelayHighWatermark(), 1);
+			this.lowWatermark = Math.min(manager.getRelayLowWatermark(), highWatermark - 1);
+			this.buckets = bandwidthShaper.acquire(source, stream);
+		}
+
+		private void close() {
+			closed = true;
+			// if direction is owned, owner will release buffers after it finishes
+			if (owned.compareAndSet(false, true)) {
+				releaseClosed();
+			}
+		}
+
+		private boolean tryAcquire() {
+			if (owned.compareAndSet(false, true)) {
+				return true;
+			}
+			statistics.handoffContended();
+			return false;
+		}
+
+		private void release(long start) {
+			statistics.handoff(System.nanoTime() - start);
+			owned.set(false);
+			// direction could be closed while we owned it, then its close() was not able to release buffers
+			if (closed && owned.compareAndSet(false, true)) {
+				releaseClosed();
+			}
+		}
+
+		private void releaseClosed() {
+			if (earlyData != null) {
+				bufferPool.release(earlyData);
+				earlyData = null;
+			}
+			ByteBuffer buffer;
+			while ((buffer = buffers.pollFirst()) != null) {
+				bufferPool.release(buffer);
+			}
+			readIndex = 0;
+			pending = 0;
+			if (buckets != null) {
+				bandwidthShaper.release(source);
+				buckets = null;
+			}
+			owned.set(false);
+		}
+
+		private boolean hasPending() {
+			return earlyData != null || pending > 0;
+		}
+
+		private boolean hasSpace() {
+			return !closed && !endOfStream && !paused && (throttledUntil == 0 || throttledUntil - System.nanoTime() <= 0);
+		}
+
+		private int read() throws IOException {
+			long allowed = Long.MAX_VALUE;
+			TokenBucket[] buckets = this.buckets;
+			if (buckets != null) {
+				// reading is paused until tokens are refilled in every bucket of stream, user, domain, instance and
+				// installation
+				allowed = getAllowed(buckets);
+				if (allowed <= 0) {
+					throttle(buckets);
+					return 0;
+				}
+				throttledUntil = 0;
+			}
+
+			// buffers are never compacted, data is appended to the last buffer and written from the first one, and they
+			// are borrowed only when data is read, so idle streams do not hold any buffers
+			ByteBuffer buffer = buffers.peekLast();
+			boolean borrowed = false;
+			if (buffer == null || !buffer.hasRemaining()) {
+				buffer = bufferPool.borrow(bufferSize);
+				buffers.addLast(buffer);
+				borrowed = true;
+			}
+
+			int space = buffer.remaining();
+			int read;
+			if (allowed < space) {
+				buffer.limit(buffer.position() + (int) allowed);
+				try {
+					read = source.getSocketChannel().read(buffer);
+				} finally {
+					buffer.limit(buffer.capacity());
+				}
+			} else {
+				read = source.getSocketChannel().read(buffer);
+			}
+			statistics.readCall();
+			if (read > 0) {
+				if (buckets != null) {
+					for (TokenBucket bucket : buckets) {
+						bucket.consume(read);
+					}
+				}
+				source.addBytesReceived(read);
+				pending += read;
+				if (pending >= highWatermark) {
+					paused = true;
+				}
+				adjustBufferSize(read, space);
+			} else {
+				if (borrowed) {
+					buffers.pollLast();
+					bufferPool.release(buffer);
+				}
+				if (read == -1) {
+					endOfStream = true;
+				}
+			}
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "{0} read data: {1}, pending: {2}", new Object[]{source, read, pending});
+			}
+
+			return read;
+		}
+
+		/**
+		 * Adjust size of next borrowed buffer to amount of data read at once - it doubles while reads fill whole buffer
+		 * and destination keeps up, and it is halved when much less data is read, so idle and slow streams return to
+		 * small buffers
+		 *
+		 * @param read number of bytes read
+		 * @param space number of bytes which could be read
+		 */
+		private void adjustBufferSize(int read, int space) {
+			if (read == space && space >= bufferSize / 2 && pending < highWatermark / 2) {
+				// there is probably more data waiting and destination is able to receive it
+				bufferSize = bufferPool.getNextSize(bufferSize);
+			} else if (read < bufferSize / 8) {
+				bufferSize = bufferPool.getPreviousSize(bufferSize);
+			}
+		}
+
+		private boolean isShutdownPending() {
+			return endOfStream && !finished && !closed;
+		}
+
+		/**
+		 * Shut down output of destination if end of stream was read from source and all data was written, while the
+		 * opposite direction keeps relaying data
+		 *
+		 * @throws IOException
+		 */
+		private void shutdownIfDrained() throws IOException {
+			if (!isShutdownPending() || hasPending() || !destination.isSocketOutputEmpty()) {
+				return;
+			}
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "{0} reached end of stream, shutting down output of {1}",
+						new Object[]{source, destination});
+			}
+			destination.getSocketChannel().shutdownOutput();
+			finished = true;
+		}
+
+		private long getAllowed(TokenBucket[] buckets) {
+			long allowed = Long.MAX_VALUE;
+			for (TokenBucket bucket : buckets) {
+				allowed = Math.min(allowed, bucket.available());
+			}
+			return allowed;
+		}
+
+		private void throttle(TokenBucket[] buckets) {
+			long delay = 0;
+			for (TokenBucket bucket : buckets) {
+				delay = Math.max(delay, bucket.getDelay());
+			}
+			delay = Math.max(delay, MIN_THROTTLE_DELAY);
+			throttledUntil = System.nanoTime() + delay;
+			statistics.throttled();
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "{0} reading paused for {1}ns due to transfer rate limit",
+						new Object[]{source, delay});
+			}
+
+			// reading will be resumed by timer instead of polling socket
+			manager.resumeServiceAfter(source, TimeUnit.NANOSECONDS.toMillis(delay + MIN_THROTTLE_DELAY - 1));
+		}
+
+		private int write() throws IOException {
+			if (closed) {
+				return 0;
+			}
+			// data written before activation needs to be sent first
+			if (!destination.isSocketOutputEmpty()) {
+				return 0;
+			}
+
+			if (earlyData != null) {
+				int written = destination.getSocketChannel().write(earlyData);
+				if (written > 0) {
+					destination.addBytesSent(written);
+				}
+				if (earlyData.hasRemaining()) {
+					return written;
+				}
+				bufferPool.release(earlyData);
+				earlyData = null;
+			}
+
+			int count = buffers.size();
+			if (count == 0) {
+				return 0;
+			}
+			if (gather.length < count) {
+				gather = new ByteBuffer[Math.max(count, gather.length * 2)];
+				filled = new int[gather.length];
+			}
+
+			// expose data of all pending buffers, so it is sent with a single gathering write
+			int idx = 0;
+			for (ByteBuffer buffer : buffers) {
+				filled[idx] = buffer.position();
+				buffer.limit(filled[idx]);
+				buffer.position(idx == 0 ? readIndex : 0);
+				gather[idx++] = buffer;
+			}
+
+			long written;
+			try {
+				written = count == 1
+						  ? destination.getSocketChannel().write(gather[0])
+						  : destination.getSocketChannel().write(gather, 0, count);
+			} catch (IOException ex) {
+				restore(count, 0);
+				throw ex;
+			}
+			statistics.writeCall(written);
+
+			// buffers are not needed any more once written, even if they were not filled completely
+			idx = 0;
+			while (idx < count && gather[idx].position() == filled[idx]) {
+				ByteBuffer buffer = buffers.pollFirst();
+				gather[idx++] = null;
+				bufferPool.release(buffer);
+				readIndex = 0;
+			}
+			if (idx < count) {
+				// socket is not able to accept more data
+				readIndex = gather[idx].position();
+				restore(count, idx);
+			}
+
+			int total = (int) written;
+			if (total > 0) {
+				destination.addBytesSent(total);
+				pending -= total;
+				if (paused && pending <= lowWatermark) {
+					paused = false;
+					resumed = true;
+				}
+			}
+
+			if (log.isLoggable(Level.FINEST)) {
+				log.log(Level.FINEST, "{0} written data: {1}, remaining: {2}", new Object[]{destination, total, pending});
+			}
+
+			return total;
+		}
+
+		/**
+		 * Restore buffers which are still pending after gathering write, so data could still be appended to them
+		 *
+		 * @param count number of buffers used in gathering write
+		 * @param from index of first buffer still pending
+		 */
+		private void restore(int count, int from) {
+			for (int i = from; i < count; i++) {
+				ByteBuffer buffer = gather[i];
+				buffer.limit(buffer.capacity());
+				buffer.position(filled[i]);
+				gather[i] = null;
+			}
+		}
+	}
+}
@@ -0,0 +1,323 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import tigase.stats.StatisticsList;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timing wheel used to expire timeouts of connections.
+ * <br>
+ * Each timeout is linked into slot of the wheel matching tick of its deadline, so scheduling and cancelling a timeout
+ * takes constant time and locks only a single slot. Wheel thread processes a slot on each tick and expires timeouts
+ * with deadlines which passed, timeouts with deadlines in later rotations of the wheel stay in the slot.
+ * <br>
+ * Timeout objects may be scheduled again after they expired or were cancelled, so each connection needs only a single
+ * timeout object during its whole life. Timeout expiring on wheel thread should reschedule itself using
+ * <code>reschedule()</code>, so it will not be scheduled again if it was cancelled concurrently.
+ *
+ * @author andrzej
+ */
+public class TimerWheel
+		implements Runnable {
+
+	private static final Logger log = Logger.getLogger(TimerWheel.class.getCanonicalName());
+
+	private final LongAdder expired = new LongAdder();
+	private final LongAdder lag = new LongAdder();
+	private final AtomicLong maxLag = new AtomicLong(0);
+	private final int mask;
+	private final String name;
+	private final AtomicInteger scheduled = new AtomicInteger(0);
+	private final Slot[] slots;
+	private final long start = System.nanoTime();
+	private final long tickNanos;
+	// last tick processed by wheel thread, updated while holding lock of slot of this tick
+	private volatile long processedTick = 0;
+	private volatile boolean stopped = false;
+	private Thread thread = null;
+
+	/**
+	 * Creates timer wheel
+	 *
+	 * @param name name of wheel thread
+	 * @param tick duration of a tick in milliseconds
+	 * @param slots number of slots, rounded up to power of two
+	 */
+	public TimerWheel(String name, long tick, int slots) {
+		this.name = name;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(tick, 1));
+		int size = Integer.highestOneBit(Math.max(slots, 2) - 1) << 1;
+		this.slots = new Slot[size];
+		for (int i = 0; i < size; i++) {
+			this.slots[i] = new Slot();
+		}
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Starts thread of the wheel
+	 */
+	public void start() {
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops the wheel, scheduled timeouts will not expire
+	 */
+	public void stop() {
+		stopped = true;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	/**
+	 * Schedule timeout, replacing its previous deadline if it was already scheduled
+	 *
+	 * @param timeout
+	 * @param delay in milliseconds
+	 */
+	public void schedule(Timeout timeout, long delay) {
+		synchronized (timeout) {
+			timeout.cancelled = false;
+			link(timeout, delay);
+		}
+	}
+
+	/**
+	 * Schedule timeout again from its <code>expired()</code> method, unless it was cancelled while it was expiring
+	 *
+	 * @param timeout
+	 * @param delay in milliseconds
+	 *
+	 * @return true if timeout was scheduled
+	 */
+	public boolean reschedule(Timeout timeout, long delay) {
+		synchronized (timeout) {
+			if (timeout.cancelled) {
+				return false;
+			}
+			link(timeout, delay);
+			return true;
+		}
+	}
+
+	/**
+	 * Cancel timeout, it will not be scheduled again by <code>reschedule()</code> until it is scheduled using
+	 * <code>schedule()</code>
+	 *
+	 * @param timeout
+	 *
+	 * @return true if timeout was scheduled
+	 */
+	public boolean cancel(Timeout timeout) {
+		synchronized (timeout) {
+			timeout.cancelled = true;
+			return unlink(timeout);
+		}
+	}
+
+	@Override
+	public void run() {
+		long tick = processedTick;
+		while (!stopped) {
+			try {
+				long now = System.nanoTime();
+				long currentTick = (now - start) / tickNanos;
+				while (tick < currentTick) {
+					tick++;
+					process(tick, now);
+				}
+				long sleep = start + (tick + 1) * tickNanos - System.nanoTime();
+				if (sleep > 0) {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				}
+			} catch (InterruptedException ex) {
+				// wheel is stopped
+			} catch (Exception ex) {
+				log.log(Level.WARNING, "exception in timer wheel " + name, ex);
+			}
+		}
+	}
+
+	/**
+	 * Fill statistics list with statistics of timer wheel
+	 *
+	 * @param compName
+	 * @param list
+	 */
+	public void getStatistics(String compName, StatisticsList list) {
+		long count = expired.sum();
+		list.add(compName, "Timer wheel slots", slots.length, Level.FINE);
+		list.add(compName, "Timer wheel timeouts", scheduled.get(), Level.FINE);
+		list.add(compName, "Timer wheel expired", count, Level.FINE);
+		list.add(compName, "Timer wheel average lag [ms]",
+				 count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(lag.sum() / count), Level.FINE);
+		list.add(compName, "Timer wheel max lag [ms]", TimeUnit.NANOSECONDS.toMillis(maxLag.get()), Level.FINE);
+	}
+
+	private void process(long tick, long now) {
+		Timeout expiredHead = null;
+		Slot slot = slots[(int) (tick & mask)];
+		synchronized (slot) {
+			processedTick = tick;
+			Timeout timeout = slot.head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.deadline - now <= 0) {
+					recordLag(now - timeout.deadline);
+					slot.unlink(timeout);
+					scheduled.decrementAndGet();
+					timeout.nextExpired = expiredHead;
+					expiredHead = timeout;
+				}
+				timeout = next;
+			}
+		}
+
+		// timeouts are expired without holding lock, so they are free to reschedule themselves
+		while (expiredHead != null) {
+			Timeout timeout = expiredHead;
+			expiredHead = timeout.nextExpired;
+			timeout.nextExpired = null;
+			// timeout could be cancelled or scheduled again after it was removed from the slot
+			synchronized (timeout) {
+				if (timeout.cancelled || timeout.slot != null) {
+					continue;
+				}
+			}
+			try {
+				timeout.expired();
+			} catch (Exception ex) {
+				log.log(Level.WARNING, "exception while expiring timeout " + timeout, ex);
+			}
+		}
+	}
+
+	private void recordLag(long delay) {
+		expired.increment();
+		lag.add(delay);
+		long max;
+		while (delay > (max = maxLag.get())) {
+			if (maxLag.compareAndSet(max, delay)) {
+				break;
+			}
+		}
+	}
+
+	// needs to be called while holding lock of timeout
+	private void link(Timeout timeout, long delay) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0));
+		// deadline is rounded up to the next tick
+		long deadlineTick = (deadline - start + tickNanos - 1) / tickNanos;
+		unlink(timeout);
+		timeout.deadline = deadline;
+		while (true) {
+			long tick = Math.max(deadlineTick, processedTick + 1);
+			Slot slot = slots[(int) (tick & mask)];
+			synchronized (slot) {
+				// slot could be processed in the meantime, then timeout needs to go to the next one
+				if (tick > processedTick) {
+					slot.link(timeout);
+					scheduled.incrementAndGet();
+					return;
+				}
+			}
+		}
+	}
+
+	private boolean unlink(Timeout timeout) {
+		while (true) {
+			Slot slot = timeout.slot;
+			if (slot == null) {
+				return false;
+			}
+			synchronized (slot) {
+				// timeout could be expired by wheel thread in the meantime
+				if (timeout.slot == slot) {
+					slot.unlink(timeout);
+					scheduled.decrementAndGet();
+					return true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Timeout which may be scheduled in the wheel
+	 */
+	public static abstract class Timeout {
+
+		// set by cancel() and cleared by schedule(), guarded by lock of timeout
+		private volatile boolean cancelled = false;
+		private long deadline;
+		private Timeout next;
+		// used only by wheel thread to collect expired timeouts
+		private Timeout nextExpired;
+		private Timeout prev;
+		// slot in which timeout is scheduled, null if timeout is not scheduled
+		private volatile Slot slot;
+
+		/**
+		 * Called by wheel thread after deadline of timeout passed
+		 */
+		protected abstract void expired();
+
+	}
+
+	/**
+	 * Doubly linked list of timeouts, guarded by its own lock
+	 */
+	private static final class Slot {
+
+		private Timeout head;
+
+		private void link(Timeout timeout) {
+			timeout.prev = null;
+			timeout.next = head;
+			if (head != null) {
+				head.prev = timeout;
+			}
+			head = timeout;
+			timeout.slot = this;
+		}
+
+		private void unlink(Timeout timeout) {
+			if (timeout.prev != null) {
+				timeout.prev.next = timeout.next;
+			} else {
+				head = timeout.next;
+			}
+			if (timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			}
+			timeout.prev = null;
+			timeout.next = null;
+			timeout.slot = null;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket limiting number of bytes transferred per second.
+ * <br>
+ * Bucket holds at most one second worth of tokens. Tokens are added lazily, when bucket is checked, and consumed after
+ * data is transferred, so concurrent consumers may push bucket below zero - debt is repaid by following refills
+ * before any data is allowed again.
+ *
+ * @author andrzej
+ */
+public class TokenBucket {
+
+	private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private final AtomicLong lastRefill;
+	private final AtomicInteger references = new AtomicInteger(0);
+	private final AtomicLong tokens;
+	private volatile long rate;
+
+	/**
+	 * Creates full bucket
+	 *
+	 * @param rate number of bytes allowed per second
+	 */
+	public TokenBucket(long rate) {
+		this.rate = rate;
+		this.tokens = new AtomicLong(rate);
+		this.lastRefill = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * Returns number of bytes which may be transferred now
+	 *
+	 * @return
+	 */
+	public long available() {
+		refill();
+		return tokens.get();
+	}
+
+	/**
+	 * Remove tokens for transferred bytes from bucket
+	 *
+	 * @param bytes
+	 */
+	public void consume(long bytes) {
+		tokens.addAndGet(-bytes);
+	}
+
+	/**
+	 * Returns time after which data may be transferred again
+	 *
+	 * @return delay in nanoseconds
+	 */
+	public long getDelay() {
+		long missing = 1 - tokens.get();
+		if (missing <= 0) {
+			return 0;
+		}
+		return missing * NANOS_PER_SECOND / rate;
+	}
+
+	public long getRate() {
+		return rate;
+	}
+
+	public void setRate(long rate) {
+		this.rate = rate;
+	}
+
+	/**
+	 * Increase number of streams using this bucket
+	 *
+	 * @return this bucket
+	 */
+	protected TokenBucket retain() {
+		references.incrementAndGet();
+		return this;
+	}
+
+	/**
+	 * Decrease number of streams using this bucket
+	 *
+	 * @return true - if bucket is not used any more
+	 */
+	protected boolean release() {
+		return references.decrementAndGet() <= 0;
+	}
+
+	private void refill() {
+		long rate = this.rate;
+		long last = lastRefill.get();
+		long now = System.nanoTime();
+		long elapsed = now - last;
+		if (elapsed <= 0) {
+			return;
+		}
+
+		long added;
+		long refilled;
+		if (elapsed >= NANOS_PER_SECOND) {
+			// bucket is full after a second, so there is no need to keep remainder
+			added = rate;
+			refilled = now;
+		} else {
+			added = elapsed * rate / NANOS_PER_SECOND;
+			if (added <= 0) {
+				return;
+			}
+			// keep time not converted into tokens for next refill
+			refilled = last + added * NANOS_PER_SECOND / rate;
+		}
+
+		// only thread which moved time of last refill adds tokens
+		if (lastRefill.compareAndSet(last, refilled)) {
+			tokens.accumulateAndGet(added, (current, add) -> Math.min(current + add, rate));
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counter of bytes transferred in single direction of a connection with estimation of current transfer rate.
+ * <br>
+ * Relaying threads only add to 64-bit counter, which may be safely read by any thread. Transfer rate is an
+ * exponentially weighted moving average of bytes per second, which is updated by threads reading the rate (ie.
+ * statistics or verifiers) from samples of the counter taken not more often than once per sampling interval.
+ *
+ * @author andrzej
+ */
+public class TrafficCounter {
+
+	private static final long SAMPLE_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+	// time after which weight of old samples drops to 1/e
+	private static final double TIME_CONSTANT = TimeUnit.SECONDS.toNanos(5);
+
+	private final AtomicLong bytes = new AtomicLong(0);
+	// fields below are guarded by this
+	private double rate = 0;
+	private long sampleBytes = 0;
+	private long sampleTime = System.nanoTime();
+
+	/**
+	 * Increase number of transferred bytes
+	 *
+	 * @param bytes
+	 */
+	public void add(long bytes) {
+		this.bytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Returns number of transferred bytes
+	 *
+	 * @return
+	 */
+	public long get() {
+		return bytes.get();
+	}
+
+	/**
+	 * Returns estimated transfer rate
+	 *
+	 * @return bytes per second
+	 */
+	public synchronized long getRate() {
+		long now = System.nanoTime();
+		long elapsed = now - sampleTime;
+		if (elapsed >= SAMPLE_INTERVAL) {
+			long current = bytes.get();
+			double sample = (current - sampleBytes) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+			double alpha = 1 - Math.exp(-elapsed / TIME_CONSTANT);
+			rate += alpha * (sample - rate);
+			sampleBytes = current;
+			sampleTime = now;
+		}
+		return (long) rate;
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import tigase.stats.StatisticsList;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distributions of sizes, durations and rates of transfers handled by a connection manager.
+ *
+ * @author andrzej
+ */
+public class TransferStatistics {
+
+	private final Histogram activationLatency = new Histogram("Activation latency", "ms");
+	private final Histogram connectionSize = new Histogram("Connection transfer size", "B");
+	private final Histogram transferDuration = new Histogram("Transfer duration", "ms");
+	private final Histogram transferRate = new Histogram("Transfer rate", "B/s");
+	private final Histogram transferSize = new Histogram("Transfer size", "B");
+
+	/**
+	 * Record time between registration of first connection of a stream and its activation
+	 *
+	 * @param nanos
+	 */
+	public void activated(long nanos) {
+		activationLatency.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+	}
+
+	/**
+	 * Record bytes received and sent by a stopped connection
+	 *
+	 * @param bytes
+	 */
+	public void connectionStopped(long bytes) {
+		connectionSize.record(bytes);
+	}
+
+	/**
+	 * Record transfer of closed activated stream
+	 *
+	 * @param bytes number of bytes relayed by stream
+	 * @param nanos time between activation and closing of stream
+	 */
+	public void transferCompleted(long bytes, long nanos) {
+		transferSize.record(bytes);
+		transferDuration.record(TimeUnit.NANOSECONDS.toMillis(nanos));
+		if (nanos > 0) {
+			transferRate.record((long) (bytes * (double) TimeUnit.SECONDS.toNanos(1) / nanos));
+		}
+	}
+
+	/**
+	 * Fill statistics list with percentiles of transfers
+	 *
+	 * @param compName
+	 * @param list
+	 */
+	public void getStatistics(String compName, StatisticsList list) {
+		transferSize.getStatistics(compName, list);
+		transferDuration.getStatistics(compName, list);
+		transferRate.getStatistics(compName, list);
+		activationLatency.getStatistics(compName, list);
+		connectionSize.getStatistics(compName, list);
+	}
+}
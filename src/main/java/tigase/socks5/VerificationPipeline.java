@@ -0,0 +1,240 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import tigase.stats.StatisticsList;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Verifies transfers of connections by dedicated threads, so socket threads do not wait for verifier.
+ * <br>
+ * Socket threads only publish connections which received data to a bounded queue. Each connection is queued at most
+ * once, data received while connection is queued or verified is included by the next verification, so the queue holds
+ * at most one entry per connection. If the queue is full, event is dropped and connection is verified after it receives
+ * more data. Stopped connections are always verified, by the thread stopping them if the queue is full.
+ *
+ * @author andrzej
+ */
+public class VerificationPipeline {
+
+	private static final int IDLE = 0;
+	private static final int QUEUED = 1;
+	private static final int RUNNING = 2;
+	// running and received more data, so it needs to be queued again
+	private static final int RUNNING_DIRTY = 3;
+	private static final Logger log = Logger.getLogger(VerificationPipeline.class.getCanonicalName());
+
+	private final LongAdder decisions = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+	private final Histogram latency = new Histogram("Verification latency", "us");
+	private final String name;
+	private final ArrayBlockingQueue<Task> queue;
+	private final int threads;
+	private final Verifier verifier;
+	private final Thread[] workers;
+	private volatile boolean stopped = false;
+
+	/**
+	 * Creates pipeline
+	 *
+	 * @param name prefix of names of worker threads
+	 * @param verifier verifier called for queued connections
+	 * @param threads number of worker threads
+	 * @param queueSize maximal number of queued connections
+	 */
+	public VerificationPipeline(String name, Verifier verifier, int threads, int queueSize) {
+		this.name = name;
+		this.verifier = verifier;
+		this.threads = Math.max(threads, 1);
+		this.queue = new ArrayBlockingQueue<Task>(Math.max(queueSize, 1));
+		this.workers = new Thread[this.threads];
+	}
+
+	/**
+	 * Start worker threads
+	 */
+	public void start() {
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(this::run, name + "-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Stop worker threads, queued connections are not verified
+	 */
+	public void stop() {
+		stopped = true;
+		for (Thread worker : workers) {
+			if (worker != null) {
+				worker.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Creates task used to queue connection
+	 *
+	 * @param service
+	 *
+	 * @return
+	 */
+	public Task createTask(Socks5IOService<?> service) {
+		return new Task(service);
+	}
+
+	/**
+	 * Queue connection for verification after it received data
+	 *
+	 * @param task
+	 *
+	 * @return false if event was dropped as queue was full
+	 */
+	public boolean publish(Task task) {
+		if (task.completed) {
+			return true;
+		}
+		while (true) {
+			int state = task.state.get();
+			switch (state) {
+				case IDLE:
+					if (task.state.compareAndSet(IDLE, QUEUED)) {
+						task.queued = System.nanoTime();
+						if (!queue.offer(task)) {
+							task.state.set(IDLE);
+							dropped.increment();
+							return false;
+						}
+						return true;
+					}
+					break;
+				case RUNNING:
+					if (task.state.compareAndSet(RUNNING, RUNNING_DIRTY)) {
+						return true;
+					}
+					break;
+				default:
+					return true;
+			}
+		}
+	}
+
+	/**
+	 * Queue connection for final verification after it was stopped
+	 *
+	 * @param task
+	 */
+	public void stopped(Task task) {
+		task.stopped = true;
+		// if queue is full, connection is verified by calling thread unless it was queued in the meantime
+		if (!publish(task) && task.state.compareAndSet(IDLE, RUNNING)) {
+			process(task);
+		}
+	}
+
+	/**
+	 * Fill statistics list with statistics of pipeline
+	 *
+	 * @param compName
+	 * @param list
+	 */
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Verification queue size", queue.size(), Level.FINE);
+		list.add(compName, "Verification decisions", decisions.sum(), Level.FINE);
+		list.add(compName, "Verification events dropped", dropped.sum(), Level.FINE);
+		latency.getStatistics(compName, list);
+	}
+
+	private void run() {
+		while (!stopped) {
+			Task task;
+			try {
+				task = queue.take();
+			} catch (InterruptedException ex) {
+				// pipeline is stopped
+				continue;
+			}
+			task.state.set(RUNNING);
+			process(task);
+		}
+	}
+
+	private void process(Task task) {
+		boolean stopped = task.stopped;
+		try {
+			verifier.verify(task.service, stopped);
+		} catch (Exception ex) {
+			log.log(Level.WARNING, "exception while verifying connection " + task.service, ex);
+		}
+		decisions.increment();
+		latency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - task.queued));
+
+		if (stopped) {
+			task.completed = true;
+			task.state.set(IDLE);
+			return;
+		}
+		if (!task.state.compareAndSet(RUNNING, IDLE)) {
+			// data was received or connection was stopped while it was verified
+			task.state.set(IDLE);
+			if (task.stopped) {
+				stopped(task);
+			} else {
+				publish(task);
+			}
+		}
+	}
+
+	/**
+	 * Verification of connection
+	 */
+	public interface Verifier {
+
+		/**
+		 * Verify transfer of connection, called by worker thread
+		 *
+		 * @param service
+		 * @param stopped true if connection was stopped and this is its final verification
+		 */
+		void verify(Socks5IOService<?> service, boolean stopped);
+
+	}
+
+	/**
+	 * Queue entry of a single connection
+	 */
+	public static final class Task {
+
+		private final Socks5IOService<?> service;
+		private final AtomicInteger state = new AtomicInteger(IDLE);
+		private volatile boolean completed = false;
+		private volatile long queued;
+		private volatile boolean stopped = false;
+
+		private Task(Socks5IOService<?> service) {
+			this.service = service;
+		}
+	}
+}
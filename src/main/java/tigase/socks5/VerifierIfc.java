@@ -22,6 +22,7 @@
 package tigase.socks5;
 
 import tigase.db.TigaseDBException;
+import tigase.stats.StatisticsList;
 
 /**
  * @author andrzej
@@ -32,4 +33,13 @@ public interface VerifierIfc {
 
 	void updateTransfer(Socks5IOService service, boolean force) throws TigaseDBException, QuotaException;
 
+	/**
+	 * Fill statistics list with statistics of verifier
+	 *
+	 * @param compName
+	 * @param list
+	 */
+	default void getStatistics(String compName, StatisticsList list) {
+	}
+
 }
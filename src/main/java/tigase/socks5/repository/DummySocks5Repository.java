@@ -81,4 +81,15 @@ public class DummySocks5Repository
 			throws TigaseDBException {
 	}
 
+	@Override
+	public void updateTransferUsedByConnections(BareJID instance, BareJID[] user_ids, long[] stream_ids,
+												long[] transferred_bytes, long[] deltas, int count)
+			throws TigaseDBException {
+	}
+
+	@Override
+	public long compactTransferUsed(int months) throws TigaseDBException {
+		return 0;
+	}
+
 }
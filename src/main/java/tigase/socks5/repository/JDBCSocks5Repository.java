@@ -38,7 +38,9 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.Collections;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -52,10 +54,18 @@ import java.util.logging.Logger;
 public class JDBCSocks5Repository
 		implements Socks5Repository<DataRepository>, RepositoryVersionAware {
 
+	private static final int COMPACTION_BATCH_SIZE_VAL = 1000;
+	private static final String DEF_ADD_TRANSFER_USED_DOMAIN_QUERY = "{ call TigSocks5AddTransferUsedDomain(?, ?) }";
+	private static final String DEF_ADD_TRANSFER_USED_GENERAL_QUERY = "{ call TigSocks5AddTransferUsedGeneral(?) }";
+	private static final String DEF_ADD_TRANSFER_USED_INSTANCE_QUERY = "{ call TigSocks5AddTransferUsedInstance(?, ?) }";
+	private static final String DEF_ADD_TRANSFER_USED_USER_QUERY = "{ call TigSocks5AddTransferUsedUser(?, ?) }";
 	private static final String DEF_CREATE_TRANSFER_USED_BY_CONNECTION_QUERY = "{ call TigSocks5CreateTransferUsed(?, ?, ?) }";
 	private static final String DEF_CREATE_UID_QUERY = "{ call TigSocks5CreateUid(?, ?) }";
+	private static final String DEF_FOLD_TRANSFER_USED_QUERY = "{ call TigSocks5FoldTransferUsed(?) }";
 	private static final String DEF_GET_UID_QUERY = "{ call TigSocks5GetUid(?) }";
 	private static final String DEF_GLOBAL_SETTINGS = "socks5-global";
+	private static final String DEF_REMOVE_TRANSFER_USED_QUERY = "{ call TigSocks5RemoveTransferUsed(?, ?) }";
+	private static final String DEF_SET_TRANSFER_USED_BY_CONNECTION_QUERY = "{ call TigSocks5SetTransferUsed(?, ?) }";
 	private static final String DEF_TRANSFER_LIMITS_DOMAIN_QUERY = "{ call TigSocks5GetTransferLimits(?) }";
 	private static final String DEF_TRANSFER_LIMITS_GENERAL_QUERY = "{ call TigSocks5GetTransferLimits(?) }";
 	private static final String DEF_TRANSFER_LIMITS_USER_QUERY = "{ call TigSocks5GetTransferLimits(?) }";
@@ -64,17 +74,36 @@ public class JDBCSocks5Repository
 	private static final String DEF_TRANSFER_USED_INSTANCE_QUERY = "{ call TigSocks5TransferUsedInstance(?) }";
 	private static final String DEF_TRANSFER_USED_USER_QUERY = "{ call TigSocks5TransferUsedUser(?) }";
 	private static final String DEF_UPDATE_TRANSFER_USED_BY_CONNECTION_QUERY = "{ call TigSocks5UpdateTransferUsed(?, ?) }";
+	private static final int UPDATE_BATCH_SIZE_VAL = 100;
 	private static final Logger log = Logger.getLogger(Socks5Repository.class.getCanonicalName());
 
 	//~--- fields ---------------------------------------------------------------
 
 	protected DataRepository data_repo;
+	@ConfigField(desc = "Query to add transfer used by users of a domain to its monthly summary", alias = "add-transfer-used-domain")
+	private String addTransferUsedDomain_query = DEF_ADD_TRANSFER_USED_DOMAIN_QUERY;
+	@ConfigField(desc = "Query to add transfer used to monthly summary", alias = "add-transfer-used-general")
+	private String addTransferUsedGeneral_query = DEF_ADD_TRANSFER_USED_GENERAL_QUERY;
+	@ConfigField(desc = "Query to add transfer used by cluster node to its monthly summary", alias = "add-transfer-used-instance")
+	private String addTransferUsedInstance_query = DEF_ADD_TRANSFER_USED_INSTANCE_QUERY;
+	@ConfigField(desc = "Query to add transfer used by particular user to its monthly summary", alias = "add-transfer-used-user")
+	private String addTransferUsedUser_query = DEF_ADD_TRANSFER_USED_USER_QUERY;
+	// serializes batches, as they share statements
+	private final Object batchLock = new Object();
+	@ConfigField(desc = "Maximal number of connections removed by a single query during compaction", alias = "compaction-batch-size")
+	private int compactionBatchSize = COMPACTION_BATCH_SIZE_VAL;
 	@ConfigField(desc = "Query to create an entry for data transferred over connection", alias = "create-transfer-used-by-connection")
 	private String createTransferUsedByConnection_query = DEF_CREATE_TRANSFER_USED_BY_CONNECTION_QUERY;
 	@ConfigField(desc = "Query to create UID", alias = "create-uid")
 	private String createUid_query = DEF_CREATE_UID_QUERY;
+	@ConfigField(desc = "Query to fold transfers of old connections into monthly summaries", alias = "fold-transfer-used")
+	private String foldTransferUsed_query = DEF_FOLD_TRANSFER_USED_QUERY;
 	@ConfigField(desc = "Query to retrieve UID", alias = "get-uid")
 	private String getUid_query = DEF_GET_UID_QUERY;
+	@ConfigField(desc = "Query to remove old connections", alias = "remove-transfer-used")
+	private String removeTransferUsed_query = DEF_REMOVE_TRANSFER_USED_QUERY;
+	@ConfigField(desc = "Query to set transfer used by a connection without updating monthly summaries", alias = "set-transfer-used-by-connection")
+	private String setTransferUsedByConnection_query = DEF_SET_TRANSFER_USED_BY_CONNECTION_QUERY;
 	@ConfigField(desc = "Query to get file transfer limit for domain", alias = "file-size-limit-domain")
 	private String transferLimitsDomain_query = DEF_TRANSFER_LIMITS_DOMAIN_QUERY;
 	@ConfigField(desc = "Query to get file transfer limit", alias = "file-size-limit-general")
@@ -91,6 +120,8 @@ public class JDBCSocks5Repository
 	private String transferUsedUser_query = DEF_TRANSFER_USED_USER_QUERY;
 	@ConfigField(desc = "Query to update transfer used by a single connection", alias = "update-transfer-used-by-connection")
 	private String updateTransferUsedByConnection_query = DEF_UPDATE_TRANSFER_USED_BY_CONNECTION_QUERY;
+	@ConfigField(desc = "Maximal number of connection updates sent to database in a single batch", alias = "update-batch-size")
+	private int updateBatchSize = UPDATE_BATCH_SIZE_VAL;
 
 	@Override
 	public long createTransferUsedByConnection(BareJID user, Socks5ConnectionType type, BareJID instance)
@@ -134,8 +165,49 @@ public class JDBCSocks5Repository
 		return connectionId;
 	}
 
+	@Override
+	public long compactTransferUsed(int months) throws TigaseDBException {
+		long removed = 0;
+
+		try {
+			PreparedStatement foldTransferUsed = data_repo.getPreparedStatement(null, foldTransferUsed_query);
+
+			synchronized (foldTransferUsed) {
+				foldTransferUsed.setInt(1, months);
+				foldTransferUsed.execute();
+			}
+
+			// connections are removed in batches, so each query holds locks only for a short time
+			PreparedStatement removeTransferUsed = data_repo.getPreparedStatement(null, removeTransferUsed_query);
+			long count;
+
+			do {
+				count = 0;
+				synchronized (removeTransferUsed) {
+					ResultSet rs = null;
+					try {
+						removeTransferUsed.setInt(1, months);
+						removeTransferUsed.setInt(2, compactionBatchSize);
+						rs = removeTransferUsed.executeQuery();
+						if (rs.next()) {
+							count = rs.getLong(1);
+						}
+					} finally {
+						data_repo.release(null, rs);
+					}
+				}
+				removed += count;
+			} while (count >= compactionBatchSize);
+		} catch (SQLException e) {
+			throw new TigaseDBException("Problem accessing repository.", e);
+		}
+
+		return removed;
+	}
+
 	@Override
 	public void setDataSource(DataRepository data_repo) {
+		this.data_repo = data_repo;
 		try {
 			data_repo.initPreparedStatement(createUid_query, createUid_query);
 			data_repo.initPreparedStatement(getUid_query, getUid_query);
@@ -148,6 +220,13 @@ public class JDBCSocks5Repository
 			data_repo.initPreparedStatement(transferUsedUser_query, transferUsedUser_query);
 			data_repo.initPreparedStatement(createTransferUsedByConnection_query, createTransferUsedByConnection_query);
 			data_repo.initPreparedStatement(updateTransferUsedByConnection_query, updateTransferUsedByConnection_query);
+			data_repo.initPreparedStatement(setTransferUsedByConnection_query, setTransferUsedByConnection_query);
+			data_repo.initPreparedStatement(addTransferUsedUser_query, addTransferUsedUser_query);
+			data_repo.initPreparedStatement(addTransferUsedDomain_query, addTransferUsedDomain_query);
+			data_repo.initPreparedStatement(addTransferUsedInstance_query, addTransferUsedInstance_query);
+			data_repo.initPreparedStatement(addTransferUsedGeneral_query, addTransferUsedGeneral_query);
+			data_repo.initPreparedStatement(foldTransferUsed_query, foldTransferUsed_query);
+			data_repo.initPreparedStatement(removeTransferUsed_query, removeTransferUsed_query);
 		} catch (Exception ex) {
 			throw new RuntimeException(ex.getMessage(), ex);
 		}
@@ -172,6 +251,80 @@ public class JDBCSocks5Repository
 		}
 	}
 
+	@Override
+	public void updateTransferUsedByConnections(BareJID instance, BareJID[] user_ids, long[] stream_ids,
+												long[] transferred_bytes, long[] deltas, int count)
+			throws TigaseDBException {
+		if (count == 0) {
+			return;
+		}
+
+		// increases are summed, so each row of monthly summaries is updated once per batch
+		Map<String, Long> users = new TreeMap<>();
+		Map<String, Long> domains = new TreeMap<>();
+		long total = 0;
+		for (int i = 0; i < count; i++) {
+			if (deltas[i] != 0) {
+				users.merge(user_ids[i].toString(), deltas[i], Long::sum);
+				domains.merge(user_ids[i].getDomain(), deltas[i], Long::sum);
+				total += deltas[i];
+			}
+		}
+
+		synchronized (batchLock) {
+			try {
+				// all updates are executed in a single transaction on connection of a repository handle, sent to
+				// database in batches
+				DataRepository repo = data_repo.takeRepositoryHandle(null);
+				repo.startTransaction();
+				try {
+					PreparedStatement setTransferUsedByConnection = repo.getPreparedStatement(null,
+																							  setTransferUsedByConnection_query);
+					// updates left by failed batch are dropped
+					setTransferUsedByConnection.clearBatch();
+					int batched = 0;
+					for (int i = 0; i < count; i++) {
+						setTransferUsedByConnection.setLong(1, stream_ids[i]);
+						setTransferUsedByConnection.setLong(2, transferred_bytes[i]);
+						setTransferUsedByConnection.addBatch();
+						if (++batched >= updateBatchSize) {
+							setTransferUsedByConnection.executeBatch();
+							batched = 0;
+						}
+					}
+					if (batched > 0) {
+						setTransferUsedByConnection.executeBatch();
+					}
+
+					// summaries are updated at the end of transaction, locking their rows in the same order on all
+					// nodes: users and domains sorted by name, then instance and general summary
+					if (!users.isEmpty()) {
+						addTransferUsed(repo.getPreparedStatement(null, addTransferUsedUser_query), users);
+						addTransferUsed(repo.getPreparedStatement(null, addTransferUsedDomain_query), domains);
+						addTransferUsed(repo.getPreparedStatement(null, addTransferUsedInstance_query),
+										Collections.singletonMap(instance.toString(), total));
+						PreparedStatement addTransferUsedGeneral = repo.getPreparedStatement(null,
+																							 addTransferUsedGeneral_query);
+						addTransferUsedGeneral.setLong(1, total);
+						addTransferUsedGeneral.execute();
+					}
+					repo.commit();
+				} catch (SQLException ex) {
+					try {
+						repo.rollback();
+					} catch (SQLException rex) {
+						log.log(Level.FINEST, "could not rollback batch update", rex);
+					}
+					throw ex;
+				} finally {
+					repo.endTransaction();
+				}
+			} catch (SQLException e) {
+				throw new TigaseDBException("Problem accessing repository.", e);
+			}
+		}
+	}
+
 	@Override
 	public Limits getTransferLimits() throws TigaseDBException {
 		Limits limits = new Limits();
@@ -379,6 +532,26 @@ public class JDBCSocks5Repository
 
 	//~--- methods --------------------------------------------------------------
 
+	/**
+	 * Add transfer used to monthly summaries of keys, in order of keys in map
+	 */
+	private void addTransferUsed(PreparedStatement addTransferUsed, Map<String, Long> deltas) throws SQLException {
+		addTransferUsed.clearBatch();
+		int batched = 0;
+		for (Map.Entry<String, Long> e : deltas.entrySet()) {
+			addTransferUsed.setString(1, e.getKey());
+			addTransferUsed.setLong(2, e.getValue());
+			addTransferUsed.addBatch();
+			if (++batched >= updateBatchSize) {
+				addTransferUsed.executeBatch();
+				batched = 0;
+			}
+		}
+		if (batched > 0) {
+			addTransferUsed.executeBatch();
+		}
+	}
+
 	private long createUID(BareJID user) throws TigaseDBException {
 		if (createUid_query == null) {
 			return 0;
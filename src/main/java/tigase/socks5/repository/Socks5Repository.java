@@ -49,4 +49,33 @@ public interface Socks5Repository<DS extends DataSource>
 
 	void updateTransferUsedByConnection(BareJID user_id, long stream_id, long transferred_bytes)
 			throws TigaseDBException;
+
+	/**
+	 * Update transferred bytes of many connections of this instance at once. Increases of all connections are summed
+	 * and added to monthly summaries once per batch.
+	 *
+	 * @param instance instance which created connections
+	 * @param user_ids owners of connections
+	 * @param stream_ids ids of connections
+	 * @param transferred_bytes total number of bytes transferred by each connection
+	 * @param deltas number of bytes transferred by each connection since its previous update
+	 * @param count number of connections to update
+	 *
+	 * @throws TigaseDBException
+	 */
+	void updateTransferUsedByConnections(BareJID instance, BareJID[] user_ids, long[] stream_ids,
+										 long[] transferred_bytes, long[] deltas, int count) throws TigaseDBException;
+
+	/**
+	 * Fold transfers of connections older than retained months into monthly summaries and remove them. Months which
+	 * already have summaries are not folded again and folds are serialized by a database lock, so it is safe to call it
+	 * repeatedly and concurrently from many cluster nodes.
+	 *
+	 * @param months number of past months for which connections are kept, current month is always kept
+	 *
+	 * @return number of removed connections
+	 *
+	 * @throws TigaseDBException
+	 */
+	long compactTransferUsed(int months) throws TigaseDBException;
 }
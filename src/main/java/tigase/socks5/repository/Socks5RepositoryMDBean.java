@@ -30,6 +30,10 @@ import tigase.socks5.Socks5ConnectionType;
 import tigase.socks5.Socks5ProxyComponent;
 import tigase.xmpp.jid.BareJID;
 
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -109,6 +113,51 @@ public class Socks5RepositoryMDBean
 		getRepository(user_id.getDomain()).updateTransferUsedByConnection(user_id, stream_id, transferred_bytes);
 	}
 
+	@Override
+	public void updateTransferUsedByConnections(BareJID instance, BareJID[] user_ids, long[] stream_ids,
+												long[] transferred_bytes, long[] deltas, int count)
+			throws TigaseDBException {
+		// updates are split into batches of connections stored in the same repository
+		Map<Socks5Repository, List<Integer>> batches = new IdentityHashMap<>();
+		for (int i = 0; i < count; i++) {
+			batches.computeIfAbsent(getRepository(user_ids[i].getDomain()), repo -> new ArrayList<>()).add(i);
+		}
+		for (Map.Entry<Socks5Repository, List<Integer>> e : batches.entrySet()) {
+			List<Integer> indexes = e.getValue();
+			if (indexes.size() == count) {
+				e.getKey()
+						.updateTransferUsedByConnections(instance, user_ids, stream_ids, transferred_bytes, deltas,
+														 count);
+				continue;
+			}
+			BareJID[] batchUserIds = new BareJID[indexes.size()];
+			long[] batchStreamIds = new long[indexes.size()];
+			long[] batchTransferredBytes = new long[indexes.size()];
+			long[] batchDeltas = new long[indexes.size()];
+			for (int i = 0; i < indexes.size(); i++) {
+				int idx = indexes.get(i);
+				batchUserIds[i] = user_ids[idx];
+				batchStreamIds[i] = stream_ids[idx];
+				batchTransferredBytes[i] = transferred_bytes[idx];
+				batchDeltas[i] = deltas[idx];
+			}
+			e.getKey().updateTransferUsedByConnections(instance, batchUserIds, batchStreamIds, batchTransferredBytes,
+														batchDeltas, indexes.size());
+		}
+	}
+
+	@Override
+	public long compactTransferUsed(int months) throws TigaseDBException {
+		return repositoriesStream().mapToLong(repo -> {
+			try {
+				return repo.compactTransferUsed(months);
+			} catch (TigaseDBException ex) {
+				log.log(Level.WARNING, "Could not compact transfer used", ex);
+				return 0;
+			}
+		}).sum();
+	}
+
 	@Override
 	public void setDataSource(DataSource dataSource) {
 		// nothing to do here...
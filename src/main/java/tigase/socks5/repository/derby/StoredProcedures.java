@@ -22,12 +22,123 @@
 package tigase.socks5.repository.derby;
 
 import java.sql.*;
+import java.time.LocalDate;
 
 /**
  * @author andrzej
  */
 public class StoredProcedures {
 
+	public static void tigSocks5AddTransferUsedDomain(String domain, long delta) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			addTransferUsed(conn, "tig_socks5_used_domain", "\"domain\"", domain, getCurrentMonth(), delta);
+		} catch (SQLException e) {
+
+			// e.printStackTrace();
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void tigSocks5AddTransferUsedGeneral(long delta) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			addTransferUsed(conn, "tig_socks5_used_general", null, null, getCurrentMonth(), delta);
+		} catch (SQLException e) {
+
+			// e.printStackTrace();
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void tigSocks5AddTransferUsedInstance(String instance, long delta) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			addTransferUsed(conn, "tig_socks5_used_instance", "instance", instance, getCurrentMonth(), delta);
+		} catch (SQLException e) {
+
+			// e.printStackTrace();
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void tigSocks5AddTransferUsedUser(String userId, long delta) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement("select uid from tig_socks5_users where user_id=?");
+
+			ps.setString(1, userId);
+
+			ResultSet rs = ps.executeQuery();
+
+			if (!rs.next()) {
+				return;
+			}
+
+			long uid = rs.getLong(1);
+
+			rs.close();
+
+			addTransferUsed(conn, "tig_socks5_used_user", "uid", uid, getCurrentMonth(), delta);
+		} catch (SQLException e) {
+
+			// e.printStackTrace();
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void tigSocks5CreateTransferTimestampIndex() throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		try {
+			// index is created only if it does not exist, so upgrade may be run again
+			ResultSet rs = conn.getMetaData().getIndexInfo(null, null, "TIG_SOCKS5_CONNECTIONS", false, false);
+
+			while (rs.next()) {
+				if ("TIG_SOCKS5_CONNECTIONS_TRANSFER_TIMESTAMP".equalsIgnoreCase(rs.getString("INDEX_NAME"))) {
+					rs.close();
+					return;
+				}
+			}
+			rs.close();
+
+			conn.createStatement()
+					.execute("create index tig_socks5_connections_transfer_timestamp on tig_socks5_connections " +
+									 "( transfer_timestamp )");
+		} catch (SQLException e) {
+
+			// e.printStackTrace();
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigSocks5CreateTransferUsed(long uid, int direction, String instance, ResultSet[] data)
 			throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
@@ -54,6 +165,35 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void tigSocks5CreateTransferUsedTables() throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		try {
+			// tables are created only if they do not exist, so upgrade may be run again
+			createTableIfMissing(conn, "TIG_SOCKS5_USED_USER",
+								 "create table tig_socks5_used_user (\"month\" int NOT NULL, uid bigint NOT NULL, " +
+										 "transferred_bytes bigint NOT NULL default 0, primary key (\"month\", uid))");
+			createTableIfMissing(conn, "TIG_SOCKS5_USED_DOMAIN",
+								 "create table tig_socks5_used_domain (\"month\" int NOT NULL, " +
+										 "\"domain\" varchar(2049) NOT NULL, transferred_bytes bigint NOT NULL default 0, " +
+										 "primary key (\"month\", \"domain\"))");
+			createTableIfMissing(conn, "TIG_SOCKS5_USED_INSTANCE",
+								 "create table tig_socks5_used_instance (\"month\" int NOT NULL, " +
+										 "instance varchar(128) NOT NULL, transferred_bytes bigint NOT NULL default 0, " +
+										 "primary key (\"month\", instance))");
+			createTableIfMissing(conn, "TIG_SOCKS5_USED_GENERAL",
+								 "create table tig_socks5_used_general (\"month\" int NOT NULL, " +
+										 "transferred_bytes bigint NOT NULL default 0, primary key (\"month\"))");
+		} catch (SQLException e) {
+
+			// e.printStackTrace();
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigSocks5CreateUid(String userId, String domain, ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
@@ -80,6 +220,33 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void tigSocks5FoldTransferUsed(int months) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			Timestamp cutoff = getRetentionCutoff(months);
+
+			// folds are serialized until end of transaction, so the same month is not folded concurrently
+			conn.createStatement().execute("lock table tig_socks5_used_general in exclusive mode");
+
+			// month is folded only if it has no rollups, general rollup is created last so interrupted fold is resumed
+			foldTransferUsed(conn, "tig_socks5_used_user", "uid", "c.uid", "", cutoff);
+			foldTransferUsed(conn, "tig_socks5_used_domain", "\"domain\"", "u.\"domain\"",
+							 " inner join tig_socks5_users u on u.uid = c.uid", cutoff);
+			foldTransferUsed(conn, "tig_socks5_used_instance", "instance", "c.instance", "", cutoff);
+			foldTransferUsed(conn, "tig_socks5_used_general", null, null, "", cutoff);
+		} catch (SQLException e) {
+
+			// e.printStackTrace();
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigSocks5GetTransferLimits(String userId, ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
@@ -122,19 +289,80 @@ public class StoredProcedures {
 		}
 	}
 
+	public static void tigSocks5RemoveTransferUsed(int months, int limit, ResultSet[] data) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement(
+					"select conn_id from tig_socks5_connections where transfer_timestamp < ?");
+
+			ps.setTimestamp(1, getRetentionCutoff(months));
+			ps.setMaxRows(limit);
+
+			ResultSet rs = ps.executeQuery();
+			PreparedStatement delete = conn.prepareStatement("delete from tig_socks5_connections where conn_id=?");
+			int removed = 0;
+
+			while (rs.next()) {
+				delete.setLong(1, rs.getLong(1));
+				delete.addBatch();
+				removed++;
+			}
+			rs.close();
+			if (removed > 0) {
+				delete.executeBatch();
+			}
+
+			ps = conn.prepareStatement("values cast(? as int)");
+			ps.setInt(1, removed);
+
+			data[0] = ps.executeQuery();
+		} catch (SQLException e) {
+
+			// e.printStackTrace();
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
+	public static void tigSocks5SetTransferUsed(long cid, long transferredBytes) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:default:connection");
+
+		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+
+		try {
+			PreparedStatement ps = conn.prepareStatement("update tig_socks5_connections set transferred_bytes=?, " +
+																 "transfer_timestamp=CURRENT_TIMESTAMP where conn_id=?");
+
+			ps.setLong(1, transferredBytes);
+			ps.setLong(2, cid);
+
+			ps.executeUpdate();
+		} catch (SQLException e) {
+
+			// e.printStackTrace();
+			// log.log(Level.SEVERE, "SP error", e);
+			throw e;
+		} finally {
+			conn.close();
+		}
+	}
+
 	public static void tigSocks5TransferUsedDomain(String domain, ResultSet[] data) throws SQLException {
 		Connection conn = DriverManager.getConnection("jdbc:default:connection");
 
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
-			PreparedStatement ps = conn.prepareStatement("select sum(transferred_bytes) from tig_socks5_connections " +
-																 "where MONTH(transfer_timestamp) = MONTH(CURRENT_DATE) " +
-																 "and YEAR(transfer_timestamp) = YEAR(CURRENT_DATE) and uid IN (" +
-																 "select uid from tig_socks5_users where \"domain\"=?" +
-																 ")");
+			PreparedStatement ps = conn.prepareStatement(
+					"select transferred_bytes from tig_socks5_used_domain where \"month\"=? and \"domain\"=?");
 
-			ps.setString(1, domain);
+			ps.setInt(1, getCurrentMonth());
+			ps.setString(2, domain);
 
 			data[0] = ps.executeQuery();
 		} catch (SQLException e) {
@@ -153,9 +381,10 @@ public class StoredProcedures {
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
-			PreparedStatement ps = conn.prepareStatement("select sum(transferred_bytes) from tig_socks5_connections " +
-																 "where MONTH(transfer_timestamp) = MONTH(CURRENT_DATE) " +
-																 "and YEAR(transfer_timestamp) = YEAR(CURRENT_DATE)");
+			PreparedStatement ps = conn.prepareStatement(
+					"select transferred_bytes from tig_socks5_used_general where \"month\"=?");
+
+			ps.setInt(1, getCurrentMonth());
 
 			data[0] = ps.executeQuery();
 		} catch (SQLException e) {
@@ -174,11 +403,11 @@ public class StoredProcedures {
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
-			PreparedStatement ps = conn.prepareStatement("select sum(transferred_bytes) from tig_socks5_connections " +
-																 "where MONTH(transfer_timestamp) = MONTH(CURRENT_DATE) " +
-																 "and YEAR(transfer_timestamp) = YEAR(CURRENT_DATE) and instance=?");
+			PreparedStatement ps = conn.prepareStatement(
+					"select transferred_bytes from tig_socks5_used_instance where \"month\"=? and instance=?");
 
-			ps.setString(1, instance);
+			ps.setInt(1, getCurrentMonth());
+			ps.setString(2, instance);
 
 			data[0] = ps.executeQuery();
 		} catch (SQLException e) {
@@ -197,11 +426,11 @@ public class StoredProcedures {
 		conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
 
 		try {
-			PreparedStatement ps = conn.prepareStatement("select sum(transferred_bytes) from tig_socks5_connections " +
-																 "where MONTH(transfer_timestamp) = MONTH(CURRENT_DATE) " +
-																 "and YEAR(transfer_timestamp) = YEAR(CURRENT_DATE) and uid=?");
+			PreparedStatement ps = conn.prepareStatement(
+					"select transferred_bytes from tig_socks5_used_user where \"month\"=? and uid=?");
 
-			ps.setLong(1, uid);
+			ps.setInt(1, getCurrentMonth());
+			ps.setLong(2, uid);
 
 			data[0] = ps.executeQuery();
 		} catch (SQLException e) {
@@ -221,12 +450,41 @@ public class StoredProcedures {
 
 		try {
 			PreparedStatement ps = conn.prepareStatement(
-					"update tig_socks5_connections set transferred_bytes=? " + "where conn_id=?");
+					"select c.transferred_bytes, c.uid, c.instance, u.\"domain\" from tig_socks5_connections c " +
+							"inner join tig_socks5_users u on u.uid = c.uid where c.conn_id=?");
+
+			ps.setLong(1, cid);
+
+			ResultSet rs = ps.executeQuery();
+
+			if (!rs.next()) {
+				return;
+			}
+
+			long delta = transferredBytes - rs.getLong(1);
+			long uid = rs.getLong(2);
+			String instance = rs.getString(3);
+			String domain = rs.getString(4);
+
+			rs.close();
+
+			// timestamp of last transfer decides month of connection, as on MySQL where it is updated automatically
+			ps = conn.prepareStatement("update tig_socks5_connections set transferred_bytes=?, " +
+											   "transfer_timestamp=CURRENT_TIMESTAMP where conn_id=?");
 
 			ps.setLong(1, transferredBytes);
 			ps.setLong(2, cid);
 
 			ps.executeUpdate();
+
+			if (delta != 0) {
+				int month = getCurrentMonth();
+
+				addTransferUsed(conn, "tig_socks5_used_user", "uid", uid, month, delta);
+				addTransferUsed(conn, "tig_socks5_used_domain", "\"domain\"", domain, month, delta);
+				addTransferUsed(conn, "tig_socks5_used_instance", "instance", instance, month, delta);
+				addTransferUsed(conn, "tig_socks5_used_general", null, null, month, delta);
+			}
 		} catch (SQLException e) {
 
 			// e.printStackTrace();
@@ -237,4 +495,92 @@ public class StoredProcedures {
 		}
 	}
 
+	/**
+	 * Add transferred bytes to monthly rollup, creating its row if needed
+	 */
+	private static void addTransferUsed(Connection conn, String table, String keyColumn, Object key, int month,
+										long delta) throws SQLException {
+		String where = keyColumn == null ? "" : (" and " + keyColumn + "=?");
+		PreparedStatement update = conn.prepareStatement(
+				"update " + table + " set transferred_bytes = transferred_bytes + ? where \"month\"=?" + where);
+
+		update.setLong(1, delta);
+		update.setInt(2, month);
+		if (keyColumn != null) {
+			update.setObject(3, key);
+		}
+
+		if (update.executeUpdate() > 0) {
+			return;
+		}
+
+		PreparedStatement insert = conn.prepareStatement(
+				"insert into " + table + " (transferred_bytes, \"month\"" + (keyColumn == null ? "" : (", " + keyColumn)) +
+						") values (?, ?" + (keyColumn == null ? "" : ", ?") + ")");
+
+		insert.setLong(1, delta);
+		insert.setInt(2, month);
+		if (keyColumn != null) {
+			insert.setObject(3, key);
+		}
+
+		try {
+			insert.executeUpdate();
+		} catch (SQLIntegrityConstraintViolationException e) {
+			// row was created concurrently
+			update.executeUpdate();
+		}
+	}
+
+	/**
+	 * Create table unless table with the same name already exists
+	 */
+	private static void createTableIfMissing(Connection conn, String table, String create) throws SQLException {
+		ResultSet rs = conn.getMetaData().getTables(null, null, table, null);
+		boolean exists = rs.next();
+
+		rs.close();
+		if (!exists) {
+			conn.createStatement().execute(create);
+		}
+	}
+
+	/**
+	 * Create monthly rollups from connections older than cutoff, for months which do not have rollups yet
+	 */
+	private static void foldTransferUsed(Connection conn, String table, String keyColumn, String keySource,
+										 String join, Timestamp cutoff) throws SQLException {
+		String key = keyColumn == null ? "" : ", t.k";
+		PreparedStatement ps = conn.prepareStatement(
+				"insert into " + table + " (\"month\"" + (keyColumn == null ? "" : (", " + keyColumn)) +
+						", transferred_bytes) select t.m" + key + ", sum(t.b) from (" +
+						"select YEAR(c.transfer_timestamp) * 100 + MONTH(c.transfer_timestamp) as m" +
+						(keySource == null ? "" : (", " + keySource + " as k")) + ", c.transferred_bytes as b " +
+						"from tig_socks5_connections c" + join + " where c.transfer_timestamp < ?) t " +
+						"where not exists (select 1 from tig_socks5_used_general g where g.\"month\" = t.m)" +
+						(keyColumn == null
+						 ? ""
+						 : (" and not exists (select 1 from " + table + " r where r.\"month\" = t.m and r." +
+								 keyColumn + " = t.k)")) + " group by t.m" + key);
+
+		ps.setTimestamp(1, cutoff);
+		ps.executeUpdate();
+	}
+
+	/**
+	 * Returns current month as yyyymm, used as key of monthly rollups
+	 */
+	private static int getCurrentMonth() {
+		LocalDate now = LocalDate.now();
+
+		return now.getYear() * 100 + now.getMonthValue();
+	}
+
+	/**
+	 * Returns start of the oldest retained month, connections before it are folded and removed
+	 */
+	private static Timestamp getRetentionCutoff(int months) {
+		return Timestamp.valueOf(LocalDate.now().withDayOfMonth(1).minusMonths(months).atStartOfDay());
+	}
+
 }
@@ -23,12 +23,15 @@ package tigase.socks5.verifiers;
 
 import tigase.db.TigaseDBException;
 import tigase.kernel.beans.Inject;
+import tigase.kernel.beans.UnregisterAware;
 import tigase.kernel.beans.config.ConfigField;
 import tigase.socks5.*;
 import tigase.socks5.repository.Socks5Repository;
+import tigase.stats.StatisticsList;
 import tigase.xmpp.jid.BareJID;
 import tigase.xmpp.jid.JID;
 
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,12 +39,12 @@ import java.util.logging.Logger;
  * @author andrzej
  */
 public class LimitsVerifier
-		implements VerifierIfc {
+		implements VerifierIfc, UnregisterAware {
 
 	private static final Logger log = Logger.getLogger(LimitsVerifier.class.getCanonicalName());
 
-	private static final String CONN_ID_KEY = "conn-id-key";
 	private static final String LAST_TRANSFERRED_BYTES_KEY = "last-transferred-bytes";
+	private static final String LEDGER_CONNECTION_KEY = "ledger-connection";
 
 	private static final int MB = 1024 * 1024;
 
@@ -52,15 +55,34 @@ public class LimitsVerifier
 	private static final long DEFAULT_TRANSFER_LIMIT_PER_DOMAIN_VAL = 0 * MB;
 	private static final long TRANSFER_GLOBAL_LIMIT_VAL = 0 * MB;
 	private static final long TRANSFER_INSTANCE_LIMIT_VAL = 0 * MB;
+	private static final long DEFAULT_TRANSFER_RATE_LIMIT_PER_FILE_VAL = 0;
+	private static final long DEFAULT_TRANSFER_RATE_LIMIT_PER_USER_VAL = 0;
+	private static final long DEFAULT_TRANSFER_RATE_LIMIT_PER_DOMAIN_VAL = 0;
+	private static final int QUOTA_FLUSH_BATCH_SIZE_VAL = 100;
+	private static final long QUOTA_FLUSH_INTERVAL_VAL = 1000;
+	private static final long QUOTA_REFRESH_INTERVAL_VAL = 60;
 	@ConfigField(desc = "Transfer limit per domain", alias = "default-domain-limit")
 	private long defaultTransferLimitPerDomain = DEFAULT_TRANSFER_LIMIT_PER_DOMAIN_VAL;
 	@ConfigField(desc = "Transfer limit per file", alias = "default-file-limit")
 	private long defaultTransferLimitPerFile = DEFAULT_TRANSFER_LIMIT_PER_FILE_VAL;
 	@ConfigField(desc = "Transfer limit per user", alias = "default-user-limit")
 	private long defaultTransferLimitPerUser = DEFAULT_TRANSFER_LIMIT_PER_USER_VAL;
+	@ConfigField(desc = "Transfer rate limit per domain in bytes per second", alias = "default-domain-rate-limit")
+	private long defaultTransferRateLimitPerDomain = DEFAULT_TRANSFER_RATE_LIMIT_PER_DOMAIN_VAL;
+	@ConfigField(desc = "Transfer rate limit per file in bytes per second", alias = "default-file-rate-limit")
+	private long defaultTransferRateLimitPerFile = DEFAULT_TRANSFER_RATE_LIMIT_PER_FILE_VAL;
+	@ConfigField(desc = "Transfer rate limit per user in bytes per second", alias = "default-user-rate-limit")
+	private long defaultTransferRateLimitPerUser = DEFAULT_TRANSFER_RATE_LIMIT_PER_USER_VAL;
 	// local variables
 	@Inject
 	private Socks5ProxyComponent proxyComponent;
+	@ConfigField(desc = "Number of connections with transferred bytes waiting to be written to database after which they are written at once", alias = "quota-flush-batch-size")
+	private int quotaFlushBatchSize = QUOTA_FLUSH_BATCH_SIZE_VAL;
+	@ConfigField(desc = "Time in milliseconds between writes of transferred bytes to database", alias = "quota-flush-interval")
+	private long quotaFlushInterval = QUOTA_FLUSH_INTERVAL_VAL;
+	private volatile QuotaLedger quotaLedger = null;
+	@ConfigField(desc = "Time in seconds between reloads of used transfer from database", alias = "quota-refresh-interval")
+	private long quotaRefreshInterval = QUOTA_REFRESH_INTERVAL_VAL;
 	@ConfigField(desc = "Global transfer limit", alias = "global-limit")
 	private long transferGlobalLimit = TRANSFER_GLOBAL_LIMIT_VAL;
 	@ConfigField(desc = "Instance transfer limit", alias = "instance-limit")
@@ -105,6 +127,8 @@ public class LimitsVerifier
 		if (limits == null) {
 			limits = getLimits(jid);
 			service.getSessionData().put(key, limits);
+			// rate limits are applied by relay of activated stream
+			service.setLimits(limits);
 			//stream.setData(key, jid);
 		}
 
@@ -119,24 +143,26 @@ public class LimitsVerifier
 		long transferred = service.getBytesReceived() + service.getBytesSent();
 		if (log.isLoggable(Level.FINEST)) {
 			log.log(Level.FINEST, "updating service " + service.getUniqueId() + " transfer data received = " +
-					service.getBytesReceived() + " sent = " + service.getBytesSent() + " transferred = " + transferred);
+					service.getBytesReceived() + " sent = " + service.getBytesSent() + " transferred = " + transferred +
+					" rate = " + (service.getReceiveRate() + service.getSendRate()) + " B/s");
 		}
-		Socks5Repository repo = proxyComponent.getSock5Repository();
+		QuotaLedger ledger = getQuotaLedger();
 
-		if (limits.getTransferLimitPerFile() != 0 && limits.getTransferLimitPerFile() < transferred) {
+		boolean changed = updateTransferUsedByConnection(ledger, service, transferred, force);
 
-			updateTransferUsedByConnection(repo, service, transferred, force);
+		// limit of a single file is checked even if bytes transferred by connection did not change since last update
+		if (limits.getTransferLimitPerFile() != 0 && limits.getTransferLimitPerFile() < transferred) {
 			if (!force) {
 				throw new QuotaException("Stream closed due to exceeded quota for single file transfer");
 			}
 		}
 
-		if (!updateTransferUsedByConnection(repo, service, transferred, force)) {
+		if (!changed) {
 			return;
 		}
 
 		if (limits.getTransferLimitPerUser() != 0 &&
-				limits.getTransferLimitPerUser() < repo.getTransferUsedByUser(jid)) {
+				limits.getTransferLimitPerUser() < ledger.getTransferUsedByUser(jid)) {
 
 			if (!force) {
 				throw new QuotaException("Stream closed due to exceeded transfer quota for user " + jid.toString());
@@ -144,15 +170,14 @@ public class LimitsVerifier
 		}
 
 		if (limits.getTransferLimitPerDomain() != 0 &&
-				limits.getTransferLimitPerDomain() < repo.getTransferUsedByDomain(jid.getDomain())) {
+				limits.getTransferLimitPerDomain() < ledger.getTransferUsedByDomain(jid.getDomain())) {
 
 			if (!force) {
 				throw new QuotaException("Stream closed due to exceeded transfer quota for domain " + jid.getDomain());
 			}
 		}
 
-		if (transferInstanceLimit != 0 &&
-				transferInstanceLimit < repo.getTransferUsedByInstance(proxyComponent.getDefHostName().toString())) {
+		if (transferInstanceLimit != 0 && transferInstanceLimit < ledger.getTransferUsedByInstance()) {
 
 			if (!force) {
 				throw new QuotaException(
@@ -160,63 +185,111 @@ public class LimitsVerifier
 			}
 		}
 
-		if (transferGlobalLimit != 0 && transferGlobalLimit < repo.getTransferUsed()) {
+		if (transferGlobalLimit != 0 && transferGlobalLimit < ledger.getTransferUsed()) {
 			if (!force) {
 				throw new QuotaException("Stream closed due to exceeded global transfer quota");
 			}
 		}
 	}
 
+	@Override
+	public void beforeUnregister() {
+		QuotaLedger quotaLedger = this.quotaLedger;
+		if (quotaLedger != null) {
+			quotaLedger.stop();
+		}
+	}
+
+	@Override
+	public void getStatistics(String compName, StatisticsList list) {
+		QuotaLedger quotaLedger = this.quotaLedger;
+		if (quotaLedger != null) {
+			quotaLedger.getStatistics(compName, list);
+		}
+	}
+
+	/**
+	 * Returns ledger of used transfer, loading it from database on first use
+	 *
+	 * @return
+	 *
+	 * @throws TigaseDBException
+	 */
+	protected QuotaLedger getQuotaLedger() throws TigaseDBException {
+		QuotaLedger quotaLedger = this.quotaLedger;
+		if (quotaLedger == null) {
+			synchronized (this) {
+				quotaLedger = this.quotaLedger;
+				if (quotaLedger == null) {
+					quotaLedger = new QuotaLedger(proxyComponent.getSock5Repository(), proxyComponent.getDefHostName(),
+												  quotaFlushInterval, quotaFlushBatchSize,
+												  TimeUnit.SECONDS.toMillis(quotaRefreshInterval));
+					quotaLedger.start();
+					this.quotaLedger = quotaLedger;
+				}
+			}
+		}
+		return quotaLedger;
+	}
+
 	private void updateTransfer(Stream stream) throws TigaseDBException, QuotaException {
 		updateTransfer(stream.getConnection(Socks5ConnectionType.Requester), false);
 		updateTransfer(stream.getConnection(Socks5ConnectionType.Target), false);
 	}
 
 	/**
-	 * Update transferred bytes by connection
+	 * Update transferred bytes by connection in ledger
 	 *
-	 * @param repo
+	 * @param ledger
 	 * @param service
 	 * @param transferred
 	 * @param force
 	 *
-	 * @return true - if update was done
+	 * @return true - if transferred bytes changed or connection was closed
 	 *
 	 * @throws TigaseDBException
 	 */
-	private boolean updateTransferUsedByConnection(Socks5Repository repo, Socks5IOService service, long transferred,
+	private boolean updateTransferUsedByConnection(QuotaLedger ledger, Socks5IOService service, long transferred,
 												   boolean force) throws TigaseDBException {
 
-		Long lastTransferred = (Long) service.getSessionData().get(LAST_TRANSFERRED_BYTES_KEY);
-
-		if (lastTransferred == null) {
-			lastTransferred = 0L;
-			force = true;
-		}
+		QuotaLedger.Connection connection = (QuotaLedger.Connection) service.getSessionData()
+				.get(LEDGER_CONNECTION_KEY);
 
-		if (!force && (lastTransferred / transferUpdateQuantization == transferred / transferUpdateQuantization)) {
-			return false;
-		}
-
-		Long conn_id = (Long) service.getSessionData().get(CONN_ID_KEY);
 		boolean isNew = false;
 
-		if (conn_id == null) {
-			conn_id = repo.createTransferUsedByConnection(service.getJID().getBareJID(),
-														  service.getSocks5ConnectionType(),
-														  proxyComponent.getDefHostName());
+		if (connection == null) {
+			// connection may be verified by thread activating stream and by verification pipeline at once
+			synchronized (service) {
+				connection = (QuotaLedger.Connection) service.getSessionData().get(LEDGER_CONNECTION_KEY);
+				if (connection == null) {
+					connection = ledger.openConnection(service.getJID().getBareJID(),
+													   service.getSocks5ConnectionType());
+					service.getSessionData().put(LEDGER_CONNECTION_KEY, connection);
+					isNew = true;
+				}
+			}
+		}
 
-			service.getSessionData().put(CONN_ID_KEY, conn_id);
-			isNew = true;
+		Long lastTransferred = (Long) service.getSessionData().get(LAST_TRANSFERRED_BYTES_KEY);
+		if (lastTransferred == null) {
+			lastTransferred = 0L;
 		}
 
-		if (!isNew || force) {
-			repo.updateTransferUsedByConnection(service.getJID().getBareJID(), conn_id, transferred);
+		// usage is always counted in memory, while transferred bytes are written to database only after
+		// quantization boundary was crossed
+		boolean write = isNew || force ||
+				(lastTransferred / transferUpdateQuantization != transferred / transferUpdateQuantization);
+		long delta = ledger.update(connection, transferred, write);
+		if (write) {
+			service.getSessionData().put(LAST_TRANSFERRED_BYTES_KEY, transferred);
 		}
 
-		service.getSessionData().put(LAST_TRANSFERRED_BYTES_KEY, transferred);
+		// transfer is forced only after connection is stopped
+		if (force) {
+			ledger.close(connection);
+		}
 
-		return true;
+		return delta != 0 || isNew || force;
 	}
 
 	private Limits getLimits(BareJID jid) throws TigaseDBException {
@@ -257,6 +330,19 @@ public class LimitsVerifier
 			limits.setTransferLimitPerDomain(defaultTransferLimitPerDomain);
 		}
 
+		// rate limits are not kept in repository, so only defaults are used
+		if (limits.getTransferRateLimitPerFile() == 0) {
+			limits.setTransferRateLimitPerFile(defaultTransferRateLimitPerFile);
+		}
+
+		if (limits.getTransferRateLimitPerUser() == 0) {
+			limits.setTransferRateLimitPerUser(defaultTransferRateLimitPerUser);
+		}
+
+		if (limits.getTransferRateLimitPerDomain() == 0) {
+			limits.setTransferRateLimitPerDomain(defaultTransferRateLimitPerDomain);
+		}
+
 		return limits;
 	}
 }
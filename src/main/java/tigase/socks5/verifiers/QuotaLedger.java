@@ -0,0 +1,562 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5.verifiers;
+
+import tigase.db.TigaseDBException;
+import tigase.socks5.Socks5ConnectionType;
+import tigase.socks5.repository.Socks5Repository;
+import tigase.stats.StatisticsList;
+import tigase.xmpp.jid.BareJID;
+
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory ledger of data transferred in current month by users, domains, this instance and all instances.
+ * <br>
+ * Usage of each scope is loaded from repository on first use and then increased in memory as data is relayed, so
+ * checking quotas does not need to query repository. Transferred bytes of connections are written to repository by
+ * ledger thread in batches. Usage of all scopes is reloaded from repository periodically to include data transferred
+ * by other cluster nodes and scopes which were not used since previous reload are dropped, unless they are pinned by
+ * open connections or their transferred bytes which are not written yet. Between reloads usage may be slightly
+ * overestimated, but it is never lower than usage stored in repository.
+ *
+ * @author andrzej
+ */
+public class QuotaLedger
+		implements Runnable {
+
+	private static final Logger log = Logger.getLogger(QuotaLedger.class.getCanonicalName());
+
+	private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+	private final LongAdder domainLoads = new LongAdder();
+	private final Map<String, Usage> domains = new ConcurrentHashMap<String, Usage>();
+	private final int flushBatchSize;
+	private final long flushInterval;
+	private final Usage global = new Usage();
+	private final BareJID instance;
+	private final Usage instanceUsage = new Usage();
+	private final ConcurrentLinkedQueue<Connection> pending = new ConcurrentLinkedQueue<Connection>();
+	private final AtomicInteger pendingCount = new AtomicInteger(0);
+	private final long refreshInterval;
+	private final Socks5Repository repo;
+	private final LongAdder userLoads = new LongAdder();
+	private final Map<BareJID, Usage> users = new ConcurrentHashMap<BareJID, Usage>();
+	private final LongAdder writeBatches = new LongAdder();
+	private final LongAdder writeErrors = new LongAdder();
+	private final LongAdder writes = new LongAdder();
+	private int month;
+	private long refreshed;
+	private volatile boolean stopped = false;
+	private Thread thread = null;
+
+	/**
+	 * Creates ledger
+	 *
+	 * @param repo repository storing transferred bytes
+	 * @param instance name of this instance
+	 * @param flushInterval time in milliseconds between writes of transferred bytes to repository
+	 * @param flushBatchSize number of queued connections after which they are written before flush interval passes
+	 * @param refreshInterval time in milliseconds between reloads of usage from repository
+	 */
+	public QuotaLedger(Socks5Repository repo, BareJID instance, long flushInterval, int flushBatchSize,
+					   long refreshInterval) {
+		this.repo = repo;
+		this.instance = instance;
+		this.flushInterval = Math.max(flushInterval, 1);
+		this.flushBatchSize = Math.max(flushBatchSize, 1);
+		this.refreshInterval = TimeUnit.MILLISECONDS.toNanos(Math.max(refreshInterval, this.flushInterval));
+	}
+
+	/**
+	 * Load usage of this instance and all instances and start ledger thread
+	 *
+	 * @throws TigaseDBException
+	 */
+	public void start() throws TigaseDBException {
+		month = LocalDate.now().getMonthValue();
+		refreshed = System.nanoTime();
+		instanceUsage.base = repo.getTransferUsedByInstance(instance.toString());
+		global.base = repo.getTransferUsed();
+		thread = new Thread(this, "socks5-quota-ledger");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop ledger thread, transferred bytes not written yet are written before thread ends
+	 */
+	public void stop() {
+		stopped = true;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * Register new connection of user, usage of its user and domain is pinned until connection is closed and all its
+	 * transferred bytes are written
+	 *
+	 * @param jid
+	 * @param type
+	 *
+	 * @return connection record used to update its transferred bytes
+	 *
+	 * @throws TigaseDBException if usage of scope could not be loaded
+	 */
+	public Connection openConnection(BareJID jid, Socks5ConnectionType type) throws TigaseDBException {
+		Usage user = pinUserUsage(jid);
+		Usage domain;
+		try {
+			domain = pinDomainUsage(jid.getDomain());
+		} catch (TigaseDBException ex) {
+			user.unpin();
+			throw ex;
+		}
+		Connection connection = new Connection(jid, type, user, domain);
+		connections.add(connection);
+		return connection;
+	}
+
+	/**
+	 * Update number of bytes transferred by connection and add increase to usage of all its scopes
+	 *
+	 * @param connection
+	 * @param transferred total number of bytes transferred by connection
+	 * @param write true if value should be written to repository by next batch
+	 *
+	 * @return number of bytes added since previous update
+	 */
+	public long update(Connection connection, long transferred, boolean write) {
+		long delta = transferred - connection.transferred.getAndSet(transferred);
+		if (delta != 0) {
+			// usage of user and domain is pinned by connection, so it is not dropped before bytes are written
+			connection.user.local.addAndGet(delta);
+			connection.domain.local.addAndGet(delta);
+			instanceUsage.local.addAndGet(delta);
+			global.local.addAndGet(delta);
+		}
+		if (write) {
+			enqueue(connection);
+		}
+		return delta;
+	}
+
+	/**
+	 * Mark connection as closed, its final number of transferred bytes will be written by next batch
+	 *
+	 * @param connection
+	 */
+	public void close(Connection connection) {
+		connection.closed = true;
+		enqueue(connection);
+	}
+
+	/**
+	 * Returns number of bytes transferred in current month by user
+	 *
+	 * @param jid
+	 *
+	 * @return
+	 *
+	 * @throws TigaseDBException
+	 */
+	public long getTransferUsedByUser(BareJID jid) throws TigaseDBException {
+		return getUserUsage(jid).get();
+	}
+
+	/**
+	 * Returns number of bytes transferred in current month by users of domain
+	 *
+	 * @param domain
+	 *
+	 * @return
+	 *
+	 * @throws TigaseDBException
+	 */
+	public long getTransferUsedByDomain(String domain) throws TigaseDBException {
+		return getDomainUsage(domain).get();
+	}
+
+	/**
+	 * Returns number of bytes transferred in current month by this instance
+	 *
+	 * @return
+	 */
+	public long getTransferUsedByInstance() {
+		return instanceUsage.get();
+	}
+
+	/**
+	 * Returns number of bytes transferred in current month by all instances
+	 *
+	 * @return
+	 */
+	public long getTransferUsed() {
+		return global.get();
+	}
+
+	/**
+	 * Fill statistics list with statistics of ledger
+	 *
+	 * @param compName
+	 * @param list
+	 */
+	public void getStatistics(String compName, StatisticsList list) {
+		list.add(compName, "Quota ledger users", users.size(), Level.FINE);
+		list.add(compName, "Quota ledger domains", domains.size(), Level.FINE);
+		list.add(compName, "Quota ledger user loads", userLoads.sum(), Level.FINE);
+		list.add(compName, "Quota ledger domain loads", domainLoads.sum(), Level.FINE);
+		list.add(compName, "Quota ledger open connections", connections.size(), Level.FINE);
+		list.add(compName, "Quota ledger pending writes", pendingCount.get(), Level.FINE);
+		list.add(compName, "Quota ledger writes", writes.sum(), Level.FINE);
+		list.add(compName, "Quota ledger write batches", writeBatches.sum(), Level.FINE);
+		list.add(compName, "Quota ledger write errors", writeErrors.sum(), Level.FINE);
+	}
+
+	@Override
+	public void run() {
+		long flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushInterval);
+		while (!stopped) {
+			// woken up earlier if enough connections are queued
+			long deadline = System.nanoTime() + flushIntervalNanos;
+			long remaining;
+			while (!stopped && pendingCount.get() < flushBatchSize &&
+					(remaining = deadline - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(this, remaining);
+			}
+			if (stopped) {
+				break;
+			}
+			try {
+				long now = System.nanoTime();
+				int currentMonth = LocalDate.now().getMonthValue();
+				if (now - refreshed >= refreshInterval || currentMonth != month) {
+					refresh();
+					month = currentMonth;
+					refreshed = now;
+				} else {
+					flush();
+				}
+			} catch (Exception ex) {
+				log.log(Level.WARNING, "exception in quota ledger", ex);
+			}
+		}
+
+		for (Connection connection : connections) {
+			enqueue(connection);
+		}
+		flush();
+	}
+
+	private void enqueue(Connection connection) {
+		if (connection.queued.compareAndSet(false, true)) {
+			pending.offer(connection);
+			if (pendingCount.incrementAndGet() == flushBatchSize && thread != null) {
+				LockSupport.unpark(thread);
+			}
+		}
+	}
+
+	/**
+	 * Write transferred bytes of queued connections to repository, in batches of updates executed at once
+	 *
+	 * @return true if all connections were written
+	 */
+	private boolean flush() {
+		Connection[] batch = new Connection[flushBatchSize];
+		BareJID[] jids = new BareJID[flushBatchSize];
+		long[] ids = new long[flushBatchSize];
+		long[] transferred = new long[flushBatchSize];
+		long[] deltas = new long[flushBatchSize];
+		while (true) {
+			int count = 0;
+			Connection connection;
+			while (count < flushBatchSize && (connection = pending.poll()) != null) {
+				pendingCount.decrementAndGet();
+				connection.queued.set(false);
+				batch[count++] = connection;
+			}
+			if (count == 0) {
+				return true;
+			}
+
+			int updates = 0;
+			try {
+				for (int i = 0; i < count; i++) {
+					connection = batch[i];
+					if (connection.id < 0) {
+						connection.id = repo.createTransferUsedByConnection(connection.jid, connection.type,
+																			instance);
+					}
+					transferred[i] = connection.transferred.get();
+					if (transferred[i] != connection.written) {
+						jids[updates] = connection.jid;
+						ids[updates] = connection.id;
+						transferred[updates] = transferred[i];
+						deltas[updates] = transferred[i] - connection.written;
+						// connections without updates are moved after connections with updates
+						batch[i] = batch[updates];
+						batch[updates] = connection;
+						updates++;
+					}
+				}
+				repo.updateTransferUsedByConnections(instance, jids, ids, transferred, deltas, updates);
+			} catch (TigaseDBException ex) {
+				writeErrors.increment();
+				log.log(Level.WARNING, "could not write transferred bytes of " + count + " connections", ex);
+				// connections will be written by next batch
+				for (int i = 0; i < count; i++) {
+					enqueue(batch[i]);
+				}
+				return false;
+			}
+			writeBatches.increment();
+			writes.add(updates);
+
+			for (int i = 0; i < count; i++) {
+				if (i < updates) {
+					written(batch[i], deltas[i]);
+					batch[i].written = transferred[i];
+				}
+				// closed connection keeps usage pinned until all its bytes are written
+				if (batch[i].closed && batch[i].transferred.get() == batch[i].written &&
+						connections.remove(batch[i])) {
+					batch[i].user.unpin();
+					batch[i].domain.unpin();
+				}
+				batch[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * Add bytes written to repository to usage of all scopes of connection, as they will be included in reloaded usage
+	 */
+	private void written(Connection connection, long bytes) {
+		connection.user.written += bytes;
+		connection.domain.written += bytes;
+		instanceUsage.written += bytes;
+		global.written += bytes;
+	}
+
+	/**
+	 * Write all connections and reload usage of all scopes used since previous reload
+	 */
+	private void refresh() throws TigaseDBException {
+		for (Connection connection : connections) {
+			if (connection.transferred.get() != connection.written) {
+				enqueue(connection);
+			}
+		}
+		if (!flush()) {
+			return;
+		}
+
+		instanceUsage.reload(repo.getTransferUsedByInstance(instance.toString()));
+		global.reload(repo.getTransferUsed());
+		for (Map.Entry<BareJID, Usage> e : users.entrySet()) {
+			Usage usage = e.getValue();
+			if (usage.state.compareAndSet(Usage.USED, Usage.IDLE) || !usage.evict()) {
+				usage.reload(repo.getTransferUsedByUser(e.getKey()));
+			} else {
+				users.remove(e.getKey(), usage);
+			}
+		}
+		for (Map.Entry<String, Usage> e : domains.entrySet()) {
+			Usage usage = e.getValue();
+			if (usage.state.compareAndSet(Usage.USED, Usage.IDLE) || !usage.evict()) {
+				usage.reload(repo.getTransferUsedByDomain(e.getKey()));
+			} else {
+				domains.remove(e.getKey(), usage);
+			}
+		}
+	}
+
+	private Usage getUserUsage(BareJID jid) throws TigaseDBException {
+		while (true) {
+			Usage usage = users.get(jid);
+			if (usage == null) {
+				// loaded without holding any lock, if loaded concurrently only one value is kept
+				usage = new Usage();
+				usage.base = repo.getTransferUsedByUser(jid);
+				userLoads.increment();
+				Usage current = users.putIfAbsent(jid, usage);
+				if (current != null) {
+					usage = current;
+				}
+			}
+			if (usage.use()) {
+				return usage;
+			}
+			// evicted by ledger thread in the meantime, it is loaded again
+			users.remove(jid, usage);
+		}
+	}
+
+	private Usage pinUserUsage(BareJID jid) throws TigaseDBException {
+		while (true) {
+			Usage usage = getUserUsage(jid);
+			if (usage.pin()) {
+				return usage;
+			}
+			users.remove(jid, usage);
+		}
+	}
+
+	private Usage pinDomainUsage(String domain) throws TigaseDBException {
+		while (true) {
+			Usage usage = getDomainUsage(domain);
+			if (usage.pin()) {
+				return usage;
+			}
+			domains.remove(domain, usage);
+		}
+	}
+
+	private Usage getDomainUsage(String domain) throws TigaseDBException {
+		while (true) {
+			Usage usage = domains.get(domain);
+			if (usage == null) {
+				usage = new Usage();
+				usage.base = repo.getTransferUsedByDomain(domain);
+				domainLoads.increment();
+				Usage current = domains.putIfAbsent(domain, usage);
+				if (current != null) {
+					usage = current;
+				}
+			}
+			if (usage.use()) {
+				return usage;
+			}
+			domains.remove(domain, usage);
+		}
+	}
+
+	/**
+	 * Bytes transferred by a single connection
+	 */
+	public static final class Connection {
+
+		private final Usage domain;
+		private final BareJID jid;
+		private final AtomicBoolean queued = new AtomicBoolean(false);
+		private final AtomicLong transferred = new AtomicLong(0);
+		private final Socks5ConnectionType type;
+		private final Usage user;
+		private volatile boolean closed = false;
+		// fields below are used only by ledger thread
+		private long id = -1;
+		private long written = 0;
+
+		private Connection(BareJID jid, Socks5ConnectionType type, Usage user, Usage domain) {
+			this.jid = jid;
+			this.type = type;
+			this.user = user;
+			this.domain = domain;
+		}
+	}
+
+	/**
+	 * Usage of a single scope as value loaded from repository and bytes transferred since it was loaded
+	 */
+	private static final class Usage {
+
+		// states of usage: not used since previous reload, used since previous reload, dropped by ledger thread
+		private static final int IDLE = 0;
+		private static final int USED = 1;
+		private static final int EVICTED = 2;
+
+		private final AtomicLong local = new AtomicLong(0);
+		// number of connections which add bytes to this usage and were not fully written yet
+		private final AtomicInteger pins = new AtomicInteger(0);
+		private final AtomicInteger state = new AtomicInteger(USED);
+		private volatile long base = 0;
+		// bytes of local usage written to repository since previous reload, used only by ledger thread
+		private long written = 0;
+
+		private long get() {
+			return base + local.get();
+		}
+
+		/**
+		 * Mark usage as used, so it is not evicted by next reload
+		 *
+		 * @return false if usage was already evicted and needs to be loaded again
+		 */
+		private boolean use() {
+			while (true) {
+				int current = state.get();
+				if (current != IDLE) {
+					return current == USED;
+				}
+				if (state.compareAndSet(IDLE, USED)) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * Pin usage, so it is not evicted until it is unpinned
+		 *
+		 * @return false if usage was already evicted and needs to be loaded again
+		 */
+		private boolean pin() {
+			pins.incrementAndGet();
+			if (use()) {
+				return true;
+			}
+			pins.decrementAndGet();
+			return false;
+		}
+
+		private void unpin() {
+			pins.decrementAndGet();
+		}
+
+		/**
+		 * Evict usage which was not used since previous reload, called only by ledger thread
+		 *
+		 * @return false if usage is pinned or it was used in the meantime
+		 */
+		private boolean evict() {
+			// connection pinning usage concurrently either sees it evicted or marks it as used before it is evicted
+			return pins.get() == 0 && state.compareAndSet(IDLE, EVICTED);
+		}
+
+		/**
+		 * Set usage loaded from repository, which includes bytes written since previous reload
+		 */
+		private void reload(long base) {
+			this.base = base;
+			local.addAndGet(-written);
+			written = 0;
+		}
+	}
+}
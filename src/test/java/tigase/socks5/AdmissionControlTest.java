@@ -0,0 +1,95 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author andrzej
+ */
+public class AdmissionControlTest {
+
+	@Test
+	public void testUnlimited() throws UnknownHostException {
+		AdmissionControl control = new AdmissionControl(0, 0, 0, 0);
+		InetAddress address = InetAddress.getByName("192.168.1.1");
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(control.admit(address));
+		}
+	}
+
+	@Test
+	public void testConnectionsPerAddress() throws UnknownHostException {
+		AdmissionControl control = new AdmissionControl(0, 0, 2, 0);
+		InetAddress first = InetAddress.getByName("192.168.1.1");
+		InetAddress second = InetAddress.getByName("192.168.1.2");
+
+		assertTrue(control.admit(first));
+		assertTrue(control.admit(first));
+		assertFalse(control.admit(first));
+		assertTrue(control.admit(second));
+
+		control.release(first);
+		assertTrue(control.admit(first));
+		assertFalse(control.admit(first));
+	}
+
+	@Test
+	public void testIPv6CountedPerPrefix() throws UnknownHostException {
+		AdmissionControl control = new AdmissionControl(0, 0, 1, 0);
+		assertTrue(control.admit(InetAddress.getByName("2001:db8::1")));
+		assertFalse(control.admit(InetAddress.getByName("2001:db8::2")));
+		assertTrue(control.admit(InetAddress.getByName("2001:db8:0:1::1")));
+	}
+
+	@Test
+	public void testConnections() throws UnknownHostException {
+		AdmissionControl control = new AdmissionControl(2, 0, 0, 0);
+		InetAddress first = InetAddress.getByName("192.168.1.1");
+		InetAddress second = InetAddress.getByName("192.168.1.2");
+
+		assertTrue(control.admit(first));
+		assertTrue(control.admit(second));
+		assertFalse(control.admit(first));
+
+		control.release(second);
+		assertTrue(control.admit(first));
+	}
+
+	@Test
+	public void testRatePerAddress() throws UnknownHostException {
+		AdmissionControl control = new AdmissionControl(0, 0, 0, 3);
+		InetAddress first = InetAddress.getByName("192.168.1.1");
+		InetAddress second = InetAddress.getByName("192.168.1.2");
+
+		int admitted = 0;
+		for (int i = 0; i < 10; i++) {
+			if (control.admit(first)) {
+				admitted++;
+			}
+		}
+		// counters are reset each second, so test could cross boundary of a second once
+		assertTrue(admitted >= 3 && admitted <= 6);
+		assertTrue(control.admit(second));
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author andrzej
+ */
+public class BufferPoolTest {
+
+	@Test
+	public void testSizeClasses() {
+		BufferPool pool = new BufferPool(4096, 65536, 16);
+		assertEquals(4096, pool.getMinBufferSize());
+		assertEquals(65536, pool.getMaxBufferSize());
+		assertEquals(8192, pool.getNextSize(4096));
+		assertEquals(65536, pool.getNextSize(65536));
+		assertEquals(4096, pool.getPreviousSize(4096));
+		assertEquals(32768, pool.getPreviousSize(65536));
+
+		assertEquals(4096, pool.borrow(1).capacity());
+		assertEquals(8192, pool.borrow(5000).capacity());
+		assertEquals(65536, pool.borrow(100000).capacity());
+		assertEquals(65536, pool.borrow().capacity());
+	}
+
+	@Test
+	public void testReuse() {
+		BufferPool pool = new BufferPool(1024, 1024, 16);
+		List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		for (int i = 0; i < 16; i++) {
+			ByteBuffer buffer = pool.borrow(1024);
+			assertTrue(buffer.isDirect());
+			buffers.add(buffer);
+		}
+
+		ByteBuffer buffer = buffers.get(0);
+		buffer.put((byte) 1);
+		pool.release(buffer);
+		ByteBuffer reused = pool.borrow(1024);
+		assertSame(buffer, reused);
+		// buffer is cleared before it is returned
+		assertEquals(0, reused.position());
+		assertEquals(reused.capacity(), reused.limit());
+	}
+
+	@Test
+	public void testHeapBufferAfterLimit() {
+		BufferPool pool = new BufferPool(1024, 1024, 16);
+		for (int i = 0; i < 16; i++) {
+			assertTrue(pool.borrow(1024).isDirect());
+		}
+		ByteBuffer buffer = pool.borrow(1024);
+		assertFalse(buffer.isDirect());
+		assertEquals(1024, buffer.capacity());
+		// heap buffers are not pooled
+		pool.release(buffer);
+		assertNotSame(buffer, pool.borrow(1024));
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author andrzej
+ */
+public class HandshakeParserTest {
+
+	private static final String ADDRESS = "0123456789abcdef0123456789abcdef01234567";
+
+	@Test
+	public void testWelcome() {
+		ByteBuffer in = ByteBuffer.wrap(new byte[]{0x05, 0x02, 0x02, 0x00, 0x01});
+		assertEquals(HandshakeParser.Result.Accepted, HandshakeParser.parseWelcome(in));
+		assertEquals(4, in.position());
+
+		in = ByteBuffer.wrap(new byte[]{0x05, 0x01, 0x02});
+		assertEquals(HandshakeParser.Result.Rejected, HandshakeParser.parseWelcome(in));
+
+		in = ByteBuffer.wrap(new byte[]{0x04, 0x01, 0x00});
+		assertEquals(HandshakeParser.Result.Invalid, HandshakeParser.parseWelcome(in));
+	}
+
+	@Test
+	public void testIncompleteWelcome() {
+		ByteBuffer in = ByteBuffer.wrap(new byte[]{0x05, 0x02, 0x00});
+		assertEquals(HandshakeParser.Result.Incomplete, HandshakeParser.parseWelcome(in));
+		// position is not changed, so parsing may be retried
+		assertEquals(0, in.position());
+	}
+
+	@Test
+	public void testConnect() {
+		ByteBuffer in = connect(ADDRESS);
+		assertEquals(HandshakeParser.Result.Accepted, HandshakeParser.parseConnect(in));
+		assertFalse(in.hasRemaining());
+		assertEquals(5, HandshakeParser.getDestinationAddressOffset(0));
+		assertEquals(ADDRESS.length(), HandshakeParser.getDestinationAddressLength(in, 0));
+		assertEquals(ADDRESS, HandshakeParser.getDestinationAddress(in, 0));
+	}
+
+	@Test
+	public void testIncompleteConnect() {
+		ByteBuffer in = connect(ADDRESS);
+		in.limit(in.limit() - 1);
+		assertEquals(HandshakeParser.Result.Incomplete, HandshakeParser.parseConnect(in));
+		assertEquals(0, in.position());
+	}
+
+	@Test
+	public void testRejectedConnect() {
+		ByteBuffer in = connect(ADDRESS);
+		// BIND command
+		in.put(1, (byte) 0x02);
+		assertEquals(HandshakeParser.Result.Rejected, HandshakeParser.parseConnect(in));
+	}
+
+	@Test
+	public void testConnectReply() {
+		ByteBuffer in = connect(ADDRESS);
+		ByteBuffer reply = HandshakeParser.getConnectReply(in, 0, false);
+		ByteBuffer expected = connect(ADDRESS);
+		expected.put(1, (byte) 0x00);
+		expected.put(expected.limit() - 2, (byte) 0x00);
+		expected.put(expected.limit() - 1, (byte) 0x00);
+		assertEquals(expected, reply);
+
+		reply = HandshakeParser.getConnectReply(in, 0, true);
+		assertEquals(HandshakeParser.getWelcomeReply(), reply.duplicate().limit(2));
+		reply.position(2);
+		assertEquals(expected, reply);
+		// request is not modified
+		assertEquals(connect(ADDRESS), in);
+	}
+
+	private static ByteBuffer connect(String address) {
+		byte[] bytes = address.getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer in = ByteBuffer.allocate(5 + bytes.length + 2);
+		in.put(new byte[]{0x05, 0x01, 0x00, 0x03, (byte) bytes.length});
+		in.put(bytes);
+		in.put((byte) 0x1F).put((byte) 0x90);
+		in.flip();
+		return in;
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author andrzej
+ */
+public class StreamRegistryTest {
+
+	@Test
+	public void testPutGetRemove() {
+		StreamRegistry registry = new StreamRegistry();
+		Stream stream = new Stream(1, 2, 3, null);
+
+		assertNull(registry.putIfAbsent(stream));
+		assertSame(stream, registry.get(1, 2, 3));
+		assertSame(stream, registry.get(StreamRegistry.toHex(1, 2, 3)));
+		assertSame(stream, registry.putIfAbsent(new Stream(1, 2, 3, null)));
+		assertEquals(1, registry.size());
+
+		assertFalse(registry.remove(new Stream(1, 2, 3, null)));
+		assertTrue(registry.remove(stream));
+		assertFalse(registry.remove(stream));
+		assertNull(registry.get(1, 2, 3));
+		assertEquals(0, registry.size());
+	}
+
+	@Test
+	public void testRemoveKeepsProbedStreamsReachable() {
+		// single segment, so removed streams are often in the middle of probe sequences of other streams
+		StreamRegistry registry = new StreamRegistry(1);
+		Random random = new Random(1234);
+		List<Stream> registered = new ArrayList<Stream>();
+		for (int round = 0; round < 20; round++) {
+			for (int i = 0; i < 500; i++) {
+				Stream stream = new Stream(random.nextLong(), random.nextLong(), random.nextInt(), null);
+				assertNull(registry.putIfAbsent(stream));
+				registered.add(stream);
+			}
+			Collections.shuffle(registered, random);
+			List<Stream> removed = registered.subList(0, registered.size() / 2);
+			for (Stream stream : removed) {
+				assertTrue(registry.remove(stream));
+			}
+			for (Stream stream : removed) {
+				assertNull(registry.get(stream.getId0(), stream.getId1(), stream.getId2()));
+			}
+			removed.clear();
+			for (Stream stream : registered) {
+				assertSame(stream, registry.get(stream.getId0(), stream.getId1(), stream.getId2()));
+			}
+			assertEquals(registered.size(), registry.size());
+		}
+	}
+
+	@Test
+	public void testTableShrinksAfterRemoval() {
+		StreamRegistry registry = new StreamRegistry(1);
+		List<Stream> streams = new ArrayList<Stream>();
+		for (int i = 0; i < 1000; i++) {
+			Stream stream = new Stream(i, i, i, null);
+			registry.putIfAbsent(stream);
+			streams.add(stream);
+		}
+		int capacity = registry.getCapacity();
+		for (Stream stream : streams) {
+			registry.remove(stream);
+		}
+		assertEquals(0, registry.size());
+		assertTrue(registry.getCapacity() < capacity);
+	}
+
+	@Test
+	public void testParseId() {
+		String id = "0123456789abcdefFEDCBA9876543210deadbeef";
+		assertTrue(StreamRegistry.isId(id));
+		assertEquals(0x0123456789abcdefL, StreamRegistry.parseHex(id, 0, 16));
+		assertEquals(0xfedcba9876543210L, StreamRegistry.parseHex(id, 16, 16));
+		assertEquals(0xdeadbeefL, StreamRegistry.parseHex(id, 32, 8));
+		assertEquals(id.toLowerCase(), StreamRegistry.toHex(0x0123456789abcdefL, 0xfedcba9876543210L, 0xdeadbeef));
+
+		ByteBuffer in = ByteBuffer.wrap(("xx" + id).getBytes(StandardCharsets.US_ASCII));
+		assertTrue(StreamRegistry.isId(in, 2, StreamRegistry.ID_LENGTH));
+		assertEquals(0xdeadbeefL, StreamRegistry.parseHex(in, 34, 8));
+
+		assertFalse(StreamRegistry.isId(id.substring(1)));
+		assertFalse(StreamRegistry.isId(id.replace('a', 'g')));
+		assertNull(new StreamRegistry().get(id.replace('a', 'g')));
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author andrzej
+ */
+public class TimerWheelTest {
+
+	private TimerWheel wheel;
+
+	@Before
+	public void setUp() {
+		wheel = new TimerWheel("test-timer-wheel", 1, 64);
+		wheel.start();
+	}
+
+	@After
+	public void tearDown() {
+		wheel.stop();
+	}
+
+	@Test
+	public void testExpire() throws InterruptedException {
+		CountingTimeout timeout = new CountingTimeout();
+		long start = System.nanoTime();
+		wheel.schedule(timeout, 20);
+		assertTrue(timeout.latch.await(5, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+		assertEquals(1, timeout.count.get());
+	}
+
+	@Test
+	public void testExpireAfterFullRotation() throws InterruptedException {
+		// deadline is further than one rotation of 64 slots
+		CountingTimeout timeout = new CountingTimeout();
+		long start = System.nanoTime();
+		wheel.schedule(timeout, 150);
+		assertTrue(timeout.latch.await(5, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+	}
+
+	@Test
+	public void testCancel() throws InterruptedException {
+		CountingTimeout timeout = new CountingTimeout();
+		wheel.schedule(timeout, 10);
+		assertTrue(wheel.cancel(timeout));
+		assertFalse(wheel.cancel(timeout));
+		assertFalse(timeout.latch.await(100, TimeUnit.MILLISECONDS));
+		assertFalse(wheel.reschedule(timeout, 10));
+	}
+
+	@Test
+	public void testScheduleReplacesDeadline() throws InterruptedException {
+		CountingTimeout timeout = new CountingTimeout();
+		wheel.schedule(timeout, 10);
+		long start = System.nanoTime();
+		wheel.schedule(timeout, 100);
+		assertTrue(timeout.latch.await(5, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+		Thread.sleep(50);
+		assertEquals(1, timeout.count.get());
+	}
+
+	@Test
+	public void testRescheduleFromExpired() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(3);
+		TimerWheel.Timeout timeout = new TimerWheel.Timeout() {
+			@Override
+			protected void expired() {
+				latch.countDown();
+				if (latch.getCount() > 0) {
+					wheel.reschedule(this, 5);
+				}
+			}
+		};
+		wheel.schedule(timeout, 5);
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+	}
+
+	private static class CountingTimeout
+			extends TimerWheel.Timeout {
+
+		private final AtomicInteger count = new AtomicInteger(0);
+		private final CountDownLatch latch = new CountDownLatch(1);
+
+		@Override
+		protected void expired() {
+			count.incrementAndGet();
+			latch.countDown();
+		}
+	}
+}
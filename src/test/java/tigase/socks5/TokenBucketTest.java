@@ -0,0 +1,65 @@
+/*
+ * Tigase Socks5 Component - SOCKS5 proxy component for Tigase
+ * Copyright (C) 2011 Tigase, Inc. (office@tigase.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. Look for COPYING file in the top folder.
+ * If not, see http://www.gnu.org/licenses/.
+ */
+package tigase.socks5;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author andrzej
+ */
+public class TokenBucketTest {
+
+	@Test
+	public void testConsumeAndRefill() throws InterruptedException {
+		TokenBucket bucket = new TokenBucket(1000);
+		assertEquals(1000, bucket.available());
+		assertEquals(0, bucket.getDelay());
+
+		bucket.consume(1000);
+		assertTrue(bucket.available() < 1000);
+
+		Thread.sleep(1100);
+		// bucket is never filled above its rate
+		assertEquals(1000, bucket.available());
+	}
+
+	@Test
+	public void testDebt() {
+		TokenBucket bucket = new TokenBucket(1000);
+		// concurrent consumers may take more than available
+		bucket.consume(1500);
+		long available = bucket.available();
+		assertTrue(available < 0);
+		long delay = bucket.getDelay();
+		assertTrue(delay > TimeUnit.MILLISECONDS.toNanos(400));
+		assertTrue(delay <= TimeUnit.SECONDS.toNanos(1));
+	}
+
+	@Test
+	public void testReferences() {
+		TokenBucket bucket = new TokenBucket(1000);
+		assertSame(bucket, bucket.retain());
+		bucket.retain();
+		assertFalse(bucket.release());
+		assertTrue(bucket.release());
+	}
+}